@@ -0,0 +1,75 @@
+package com.type.ahead.search.benchmark;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Generated datasets, the same seed gives the same words on every run so numbers stay comparable.
+ * Words are glued together from syllables so they share prefixes the way real words do, scores are zipf like
+ * (the i-th word scores words / (i + 1)).
+ */
+final class BenchmarkWords {
+	private static final String[] SYLLABLES = {"ka", "re", "mo", "ti", "san", "lo", "ver", "pa", "ne", "dis", "con", "ing",
+			"tra", "el", "or", "qui", "bu", "st", "an", "ex", "ple", "gro", "mi", "un"};
+	private static final long SEED = 1;
+
+	private BenchmarkWords() {
+	}
+
+	static List<String> generate(int count) {
+		Random random = new Random(SEED);
+		Set<String> words = new LinkedHashSet<>();
+		while (words.size() < count) {
+			StringBuilder word = new StringBuilder();
+			int syllables = 2 + random.nextInt(5);
+			for (int i = 0; i < syllables; i++)
+				word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+			words.add(word.toString());
+		}
+		return new ArrayList<>(words);
+	}
+
+	static long score(int index, int count) {
+		return count / (index + 1);
+	}
+
+	/**
+	 * Prefixes of random words, shorter words give their whole word
+	 */
+	static String[] prefixes(List<String> words, int length, int count) {
+		Random random = new Random(SEED + length);
+		String[] prefixes = new String[count];
+		for (int i = 0; i < count; i++) {
+			String word = words.get(random.nextInt(words.size()));
+			prefixes[i] = word.substring(0, Math.min(length, word.length()));
+		}
+		return prefixes;
+	}
+
+	/**
+	 * The prefix with edits random inserts, deletes or substitutions
+	 */
+	static String typo(String prefix, int edits, Random random) {
+		StringBuilder typo = new StringBuilder(prefix);
+		for (int i = 0; i < edits; i++) {
+			int at = random.nextInt(typo.length() + 1);
+			char c = (char) ('a' + random.nextInt(26));
+			switch (random.nextInt(3)) {
+				case 0:
+					typo.insert(at, c);
+					break;
+				case 1:
+					if (at < typo.length() && typo.length() > 1)
+						typo.deleteCharAt(at);
+					break;
+				default:
+					if (at < typo.length())
+						typo.setCharAt(at, c);
+			}
+		}
+		return typo.toString();
+	}
+}
@@ -0,0 +1,74 @@
+package com.type.ahead.search.benchmark;
+
+import com.type.ahead.search.util.CompactTrie;
+import com.type.ahead.search.util.NodeTrie;
+import com.type.ahead.search.util.TrieBackend;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of fuzzy lookups by prefix length and max edits. Queries are prefixes of dictionary words with as
+ * many random typos as edits allowed, so every lookup has matches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FuzzySuggestBenchmark {
+	private static final int QUERIES = 1024;
+	private static final int K = 16;
+
+	@Param({"150000"})
+	int words;
+
+	@Param({"COMPACT", "NODE"})
+	String storage;
+
+	@Param({"2", "4", "6", "8", "10"})
+	int prefixLength;
+
+	@Param({"0", "1", "2"})
+	int edits;
+
+	@Param({"20000"})
+	int maxSteps;
+
+	private TrieBackend trie;
+	private String[] queries;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void load() {
+		List<String> dataset = BenchmarkWords.generate(words);
+		trie = "NODE".equals(storage) ? new NodeTrie(K) : new CompactTrie();
+		for (int i = 0; i < dataset.size(); i++)
+			trie.insert(dataset.get(i), BenchmarkWords.score(i, words));
+		Random random = new Random(prefixLength * 10L + edits);
+		queries = BenchmarkWords.prefixes(dataset, prefixLength, QUERIES);
+		for (int i = 0; i < QUERIES; i++)
+			queries[i] = BenchmarkWords.typo(queries[i], edits, random);
+	}
+
+	@Benchmark
+	public LinkedHashMap<String, Long> suggestFuzzy() {
+		next = (next + 1) & (QUERIES - 1);
+		return trie.suggestFuzzy(queries[next], edits, K, maxSteps);
+	}
+}
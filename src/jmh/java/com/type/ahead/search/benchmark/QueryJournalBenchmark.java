@@ -0,0 +1,102 @@
+package com.type.ahead.search.benchmark;
+
+import com.type.ahead.search.service.QueryJournal;
+import com.type.ahead.search.util.QueryCounter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Query logging throughput (what JedisService.logInputQuery does) with the journal on and off, 8 request threads
+ * logging zipf like picks of the benchmark words. Every iteration drains the counter and rotates and compacts
+ * the journal like a run does, so the counter and the segments don't grow over the whole trial. The journal
+ * goes to a temporary directory, -Djournal.bench.dir puts it on the disk to be measured. The teardown prints how
+ * many queries were journaled and how many the writer fell too far behind for (journal.max.pending).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class QueryJournalBenchmark {
+	private static final int WORDS = 10_000;
+
+	@Param({"false", "true"})
+	boolean journal;
+
+	@Param({"10"})
+	int fsyncIntervalMillis;
+
+	private final QueryCounter queryCounter = new QueryCounter();
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private QueryJournal queryJournal;
+	private Path dir;
+	private String[] words;
+
+	@Setup(Level.Trial)
+	public void start() throws IOException {
+		List<String> dataset = BenchmarkWords.generate(WORDS);
+		words = dataset.toArray(new String[0]);
+		String benchDir = System.getProperty("journal.bench.dir");
+		dir = benchDir == null ? Files.createTempDirectory("journal") : Files.createDirectories(Path.of(benchDir));
+		queryJournal = new QueryJournal();
+		ReflectionTestUtils.setField(queryJournal, "journalEnabled", journal);
+		ReflectionTestUtils.setField(queryJournal, "journalDir", dir.toString());
+		ReflectionTestUtils.setField(queryJournal, "fsyncIntervalMillis", fsyncIntervalMillis);
+		ReflectionTestUtils.setField(queryJournal, "maxPending", 1_000_000);
+		ReflectionTestUtils.setField(queryJournal, "queryTracker", queryCounter);
+		ReflectionTestUtils.setField(queryJournal, "meterRegistry", meterRegistry);
+		queryJournal.start();
+	}
+
+	@TearDown(Level.Iteration)
+	public void run() {
+		queryCounter.drain();
+		queryJournal.compact(queryJournal.rotate());
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws Exception {
+		queryJournal.stop();
+		if (journal)
+			System.out.printf("%njournaled %.0f queries, dropped %.0f (writer behind), %d fsyncs%n",
+					meterRegistry.counter("typeahead.journal.queries").count(), meterRegistry.counter("typeahead.journal.dropped").count(),
+					meterRegistry.timer("typeahead.journal.fsync").count());
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public void logQuery() {
+		// the i-th word with probability about 1 / (i + 1), like the benchmark scores
+		int pick = (int) Math.min(WORDS - 1, Math.exp(ThreadLocalRandom.current().nextDouble() * Math.log(WORDS)) - 1);
+		String word = words[pick];
+		queryJournal.append(word);
+		queryCounter.increment(word);
+	}
+}
@@ -0,0 +1,96 @@
+package com.type.ahead.search.benchmark;
+
+import com.type.ahead.search.service.EmbeddedRedisShards;
+import com.type.ahead.search.service.JedisService;
+import com.type.ahead.search.service.PrefixFlushService;
+import com.type.ahead.search.util.ScoreDecay;
+import com.type.ahead.search.util.TrieDataStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JedisService.loadDataToRedis against real redis-servers started in process on free ports (embedded-redis),
+ * so it runs anywhere without a redis instance, one server per shard. Each measurement is one full flush into
+ * empty databases.
+ * The services are wired by hand, the same way spring would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RedisFlushBenchmark {
+	@Param({"10000", "100000", "1000000"})
+	int words;
+
+	@Param({"NODE"})
+	TrieDataStore.Storage storage;
+
+	@Param({"500"})
+	int flushBatchSize;
+
+	@Param({"16"})
+	int redisSetSize;
+
+	@Param({"1", "4"})
+	int flushParallelism;
+
+	@Param({"1", "3"})
+	int shards;
+
+	private EmbeddedRedisShards redis;
+	private JedisService jedisService;
+
+	@Setup(Level.Trial)
+	public void start() throws IOException {
+		redis = EmbeddedRedisShards.start(shards);
+		ScoreDecay scoreDecay = new ScoreDecay(false, 24);
+		PrefixFlushService prefixFlushService = redis.prefixFlushService(redisSetSize, flushBatchSize, flushParallelism, scoreDecay);
+		jedisService = new JedisService();
+		ReflectionTestUtils.setField(jedisService, "redisSetSize", redisSetSize);
+		ReflectionTestUtils.setField(jedisService, "redisRetainRatio", 2);
+		ReflectionTestUtils.setField(jedisService, "initialReload", false);
+		ReflectionTestUtils.setField(jedisService, "redisAccessService", redis.getRedisAccessService());
+		ReflectionTestUtils.setField(jedisService, "prefixFlushService", prefixFlushService);
+		ReflectionTestUtils.setField(jedisService, "scoreDecay", scoreDecay);
+
+		List<String> dataset = BenchmarkWords.generate(words);
+		TrieDataStore trieDataStore = TrieDataStore.getTrieInstance();
+		trieDataStore.setStorage(storage);
+		trieDataStore.setRankedTopK(redisSetSize);
+		for (int i = 0; i < dataset.size(); i++)
+			trieDataStore.insertWord(dataset.get(i), BenchmarkWords.score(i, words));
+	}
+
+	@Setup(Level.Iteration)
+	public void emptyRedis() {
+		redis.flushAll();
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws IOException {
+		redis.close();
+	}
+
+	@Benchmark
+	public void loadDataToRedis() {
+		jedisService.loadDataToRedis();
+	}
+}
@@ -0,0 +1,128 @@
+package com.type.ahead.search.benchmark;
+
+import com.type.ahead.search.service.EmbeddedRedisShards;
+import com.type.ahead.search.service.PackedPrefixStore;
+import com.type.ahead.search.service.PrefixFlushService;
+import com.type.ahead.search.service.RedisAccessService;
+import com.type.ahead.search.util.ScoreDecay;
+import com.type.ahead.search.util.TrieDataStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import redis.clients.jedis.resps.Tuple;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The sorted set per prefix layout against the packed layout (PackedPrefixStore) in one embedded redis, both
+ * written from the same trie export. The setup prints what each layout takes (MEMORY USAGE of all its keys),
+ * the benchmarks are the read of one prefix in each layout. readPackedColdWords drops the id to word cache
+ * before every read, the worst case of two round trips.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class RedisLayoutBenchmark {
+	private static final int PREFIXES = 1024;
+
+	@Param({"20000", "200000"})
+	int words;
+
+	@Param({"256", "1024"})
+	int buckets;
+
+	@Param({"16"})
+	int redisSetSize;
+
+	@Param({"3", "5"})
+	int prefixLength;
+
+	private EmbeddedRedisShards redis;
+	private RedisAccessService redisAccessService;
+	private PackedPrefixStore packedPrefixStore;
+	private String[] prefixes;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void load() throws IOException {
+		redis = EmbeddedRedisShards.start(1, "hash-max-ziplist-entries 512", "hash-max-ziplist-value 128");
+		redisAccessService = redis.getRedisAccessService();
+		PrefixFlushService prefixFlushService = redis.prefixFlushService(redisSetSize, 500, 1, new ScoreDecay(false, 24));
+		packedPrefixStore = redis.packedPrefixStore(redisSetSize, buckets, words, 500, new ScoreDecay(false, 24));
+
+		List<String> dataset = BenchmarkWords.generate(words);
+		TrieDataStore trieDataStore = TrieDataStore.getTrieInstance();
+		trieDataStore.reset();
+		trieDataStore.setRankedTopK(redisSetSize);
+		for (int i = 0; i < dataset.size(); i++)
+			trieDataStore.insertWord(dataset.get(i), BenchmarkWords.score(i, words));
+		Map<String, Map<String, Double>> suggestionsByPrefix = new HashMap<>();
+		trieDataStore.exportTopK(redisSetSize, (prefix, topK) -> {
+			Map<String, Double> suggestions = new HashMap<>();
+			topK.forEach((word, score) -> suggestions.put(word, score.doubleValue()));
+			synchronized (suggestionsByPrefix) {
+				suggestionsByPrefix.put(prefix, suggestions);
+			}
+		});
+		trieDataStore.reset();
+		prefixFlushService.flush(suggestionsByPrefix.keySet(), suggestionsByPrefix::get);
+		packedPrefixStore.write(suggestionsByPrefix.keySet(), suggestionsByPrefix::get);
+		prefixes = BenchmarkWords.prefixes(dataset, prefixLength, PREFIXES);
+
+		long[] total = redisAccessService.memoryUsage("*");
+		long[] packed = new long[2];
+		for (String pattern : new String[]{"t:*", "w:*", "i:*"}) {
+			long[] usage = redisAccessService.memoryUsage(pattern);
+			packed[0] += usage[0];
+			packed[1] += usage[1];
+			System.out.printf("%n%s %d keys %d bytes", pattern, usage[0], usage[1]);
+		}
+		System.out.printf("%nsorted sets %d keys %d bytes, packed %d keys %d bytes, %.1f bytes per word against %.1f%n",
+				total[0] - packed[0], total[1] - packed[1], packed[0], packed[1],
+				(double) packed[1] / words, (double) (total[1] - packed[1]) / words);
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws IOException {
+		redis.close();
+	}
+
+	private String nextPrefix() {
+		next = (next + 1) & (PREFIXES - 1);
+		return prefixes[next];
+	}
+
+	@Benchmark
+	public List<Tuple> readSortedSet() {
+		String prefix = nextPrefix();
+		return redisAccessService.execute(prefix, jedis -> jedis.zrevrangeWithScores(prefix, 0, redisSetSize - 1));
+	}
+
+	@Benchmark
+	public List<Tuple> readPacked() {
+		return packedPrefixStore.read(nextPrefix(), redisSetSize);
+	}
+
+	@Benchmark
+	public List<Tuple> readPackedColdWords() {
+		packedPrefixStore.clearWordCache();
+		return packedPrefixStore.read(nextPrefix(), redisSetSize);
+	}
+}
@@ -0,0 +1,74 @@
+package com.type.ahead.search.benchmark;
+
+import com.type.ahead.search.util.TrieDataStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trie lookups by prefix length. Sample time mode so the report has latency percentiles, not just the mean.
+ * suggestAll is the unbounded walk behind /getAll/{prefix}, suggestTopK the ranked top k the flush uses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SuggestBenchmark {
+	private static final int PREFIXES = 1024;
+
+	@Param({"10000", "100000", "1000000"})
+	int words;
+
+	@Param({"NODE", "COMPACT"})
+	TrieDataStore.Storage storage;
+
+	@Param({"1", "2", "3", "5", "8"})
+	int prefixLength;
+
+	@Param({"16"})
+	int k;
+
+	private TrieDataStore trieDataStore;
+	private String[] prefixes;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void load() {
+		List<String> dataset = BenchmarkWords.generate(words);
+		trieDataStore = TrieDataStore.getTrieInstance();
+		trieDataStore.setStorage(storage);
+		trieDataStore.setRankedTopK(k);
+		for (int i = 0; i < dataset.size(); i++)
+			trieDataStore.insertWord(dataset.get(i), BenchmarkWords.score(i, words));
+		prefixes = BenchmarkWords.prefixes(dataset, prefixLength, PREFIXES);
+	}
+
+	private String nextPrefix() {
+		next = (next + 1) & (PREFIXES - 1);
+		return prefixes[next];
+	}
+
+	@Benchmark
+	public List<String> suggestAll() {
+		return trieDataStore.suggest(nextPrefix());
+	}
+
+	@Benchmark
+	public List<String> suggestTopK() {
+		return trieDataStore.suggest(nextPrefix(), k);
+	}
+}
@@ -0,0 +1,100 @@
+package com.type.ahead.search.benchmark;
+
+import com.type.ahead.search.util.TrieDataStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Building the trie and listing all its prefixes, the two steps in front of every redis flush, and exportTopK
+ * which replaces listing the prefixes and running suggest for each one
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TrieBenchmark {
+	@Param({"10000", "100000", "1000000"})
+	int words;
+
+	@Param({"NODE", "COMPACT"})
+	TrieDataStore.Storage storage;
+
+	@Param({"16"})
+	int rankedTopK;
+
+	private List<String> dataset;
+
+	@Setup(Level.Trial)
+	public void generate() {
+		dataset = BenchmarkWords.generate(words);
+	}
+
+	private TrieDataStore emptyTrie() {
+		TrieDataStore trieDataStore = TrieDataStore.getTrieInstance();
+		trieDataStore.setStorage(storage);
+		trieDataStore.setRankedTopK(rankedTopK);
+		return trieDataStore;
+	}
+
+	@Benchmark
+	public TrieDataStore trieLoadData(EmptyTrie emptyTrie) {
+		emptyTrie.trieDataStore.TrieLoadData(dataset);
+		return emptyTrie.trieDataStore;
+	}
+
+	@Benchmark
+	public Set<String> getAllTriePrefixes(LoadedTrie loadedTrie) {
+		return loadedTrie.trieDataStore.getAllTriePrefixes();
+	}
+
+	@Benchmark
+	public long exportTopK(LoadedTrie loadedTrie) {
+		LongAdder suggestions = new LongAdder();
+		loadedTrie.trieDataStore.exportTopK(rankedTopK, (prefix, topK) -> suggestions.add(topK.size()));
+		return suggestions.sum();
+	}
+
+	/**
+	 * A fresh trie for every call of trieLoadData
+	 */
+	@State(Scope.Benchmark)
+	public static class EmptyTrie {
+		TrieDataStore trieDataStore;
+
+		@Setup(Level.Invocation)
+		public void reset(TrieBenchmark benchmark) {
+			trieDataStore = benchmark.emptyTrie();
+		}
+	}
+
+	/**
+	 * The trie loaded once per trial, for the benchmarks that only read it
+	 */
+	@State(Scope.Benchmark)
+	public static class LoadedTrie {
+		TrieDataStore trieDataStore;
+
+		@Setup(Level.Trial)
+		public void load(TrieBenchmark benchmark) {
+			trieDataStore = benchmark.emptyTrie();
+			trieDataStore.TrieLoadData(benchmark.dataset);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.type.ahead.search.loadgen;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies in microseconds per endpoint, recorded from any number of threads. Two histograms each: response time
+ * counts from when the request was due (the keystroke or the log entry), so a service that falls behind shows up
+ * in it instead of just slowing the generator down (coordinated omission), service time from sending to the
+ * last byte of the response.
+ */
+final class LatencyReport {
+	static final String SUGGEST = "suggest";
+	static final String QUERY = "query";
+
+	private static final class Endpoint {
+		final Recorder response = new Recorder(3);
+		final Recorder service = new Recorder(3);
+		final LongAdder errors = new LongAdder();
+		final Histogram totalResponse = new Histogram(3);
+		final Histogram totalService = new Histogram(3);
+		long totalErrors;
+	}
+
+	private final Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+	private final long startNanos;
+	private long measuredNanos;
+
+	LatencyReport(long startNanos) {
+		this.startNanos = startNanos;
+		endpoints.put(SUGGEST, new Endpoint());
+		endpoints.put(QUERY, new Endpoint());
+	}
+
+	static String endpointOf(String path) {
+		return path.contains("/query/") ? QUERY : SUGGEST;
+	}
+
+	void record(String endpoint, long dueNanos, long sentNanos, long doneNanos, boolean ok) {
+		Endpoint e = endpoints.get(endpoint);
+		if (!ok) {
+			e.errors.increment();
+			return;
+		}
+		e.response.recordValue(Math.max(0, doneNanos - dueNanos) / 1000);
+		e.service.recordValue((doneNanos - sentNanos) / 1000);
+	}
+
+	/**
+	 * Prints the interval since the last call, and adds it to the totals when measuring (past the warmup)
+	 */
+	synchronized void interval(long intervalNanos, boolean measuring) {
+		StringBuilder line = new StringBuilder(String.format("%6.1fs %s", (System.nanoTime() - startNanos) / 1e9, measuring ? "" : "warmup "));
+		endpoints.forEach((name, e) -> {
+			Histogram response = e.response.getIntervalHistogram();
+			Histogram service = e.service.getIntervalHistogram();
+			long errors = e.errors.sumThenReset();
+			line.append(String.format(" | %s %8.1f req/s p50 %7.2fms p99 %7.2fms max %7.2fms errors %d", name,
+					response.getTotalCount() / (intervalNanos / 1e9), millis(response, 50), millis(response, 99),
+					response.getMaxValue() / 1000d, errors));
+			if (measuring) {
+				e.totalResponse.add(response);
+				e.totalService.add(service);
+				e.totalErrors += errors;
+			}
+		});
+		if (measuring)
+			measuredNanos += intervalNanos;
+		System.out.println(line);
+	}
+
+	/**
+	 * Throughput and percentiles of everything measured, per endpoint. With hgrmDir the full percentile
+	 * distributions are written there as well ({endpoint}-response.hgrm, {endpoint}-service.hgrm, in ms), the
+	 * format the HdrHistogram plotter reads.
+	 */
+	synchronized void summary(Path hgrmDir) throws IOException {
+		double seconds = measuredNanos / 1e9;
+		System.out.printf("%n%.0f seconds measured%n", seconds);
+		System.out.printf("%-8s %-9s %10s %9s %9s %9s %9s %9s %9s %8s%n",
+				"endpoint", "latency", "requests", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "errors");
+		endpoints.forEach((name, e) -> {
+			print(name, "response", e.totalResponse, seconds, e.totalErrors);
+			print(name, "service", e.totalService, seconds, e.totalErrors);
+		});
+		if (hgrmDir == null)
+			return;
+		Files.createDirectories(hgrmDir);
+		for (Map.Entry<String, Endpoint> entry : endpoints.entrySet()) {
+			write(hgrmDir.resolve(entry.getKey() + "-response.hgrm"), entry.getValue().totalResponse);
+			write(hgrmDir.resolve(entry.getKey() + "-service.hgrm"), entry.getValue().totalService);
+		}
+		System.out.println("percentile distributions written to " + hgrmDir);
+	}
+
+	private static void print(String endpoint, String latency, Histogram histogram, double seconds, long errors) {
+		System.out.printf("%-8s %-9s %10d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f %8d%n", endpoint, latency,
+				histogram.getTotalCount(), histogram.getTotalCount() / seconds, millis(histogram, 50), millis(histogram, 90),
+				millis(histogram, 99), millis(histogram, 99.9), histogram.getMaxValue() / 1000d, errors);
+	}
+
+	private static void write(Path file, Histogram histogram) throws IOException {
+		try (PrintStream out = new PrintStream(new FileOutputStream(file.toFile()))) {
+			histogram.outputPercentileDistribution(out, 1000d);
+		}
+	}
+
+	private static double millis(Histogram histogram, double percentile) {
+		return histogram.getValueAtPercentile(percentile) / 1000d;
+	}
+}
@@ -0,0 +1,251 @@
+package com.type.ahead.search.loadgen;
+
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a running service over HTTP the way people type, unlike /test/runScenario and /test/logQuery which loop
+ * over the word list inside the service. Every simulated user picks a word (see Workload), asks for suggestions
+ * at every keystroke, sometimes submits the word to /query/{word} and thinks before the next one. With -replay
+ * the requests of a traffic log (see TrafficLog) are sent at their recorded offsets instead, -record writes the
+ * traffic of a run as such a log. Prints throughput and latency every -interval seconds and percentiles of the
+ * whole run after it, see LatencyReport.
+ * <p>
+ * To run it against a stand-in redis on this machine, start the generator with -standinRedis 6379 (an embedded
+ * redis, it waits up to -wait seconds for the service) and the service with mvn spring-boot:run.
+ */
+public final class LoadGenerator {
+	private static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+	static {
+		DEFAULTS.put("baseUrl", "http://localhost:8080");
+		DEFAULTS.put("suggestPath", "/prefix-search/getAll/redis/");
+		DEFAULTS.put("queryPath", "/prefix-search/query/");
+		DEFAULTS.put("users", "32");                 // concurrent users, for -replay the requests in flight at most
+		DEFAULTS.put("duration", "60");              // seconds measured, after the warmup
+		DEFAULTS.put("warmup", "10");                // seconds, best a multiple of -interval
+		DEFAULTS.put("interval", "5");               // seconds between interval reports
+		DEFAULTS.put("keystrokeMillis", "150");      // mean gap between two keystrokes of a user
+		DEFAULTS.put("thinkMillis", "2000");         // mean pause between two words of a user
+		DEFAULTS.put("skew", "1.0");                 // zipf exponent of the word popularity, 0 is uniform
+		DEFAULTS.put("submitRatio", "0.3");          // share of typed words submitted to the query path
+		DEFAULTS.put("minPrefix", "1");              // keystrokes before the first suggestion request
+		DEFAULTS.put("words", "");                   // vocabulary file, most popular first, default common.word.list
+		DEFAULTS.put("vocabulary", "0");             // words of the vocabulary used, 0 is all
+		DEFAULTS.put("seed", "1");
+		DEFAULTS.put("record", "");                  // traffic log to write
+		DEFAULTS.put("replay", "");                  // traffic log to send instead of simulated users
+		DEFAULTS.put("speed", "1.0");                // replay speed, 2 sends a log twice as fast
+		DEFAULTS.put("hgrm", "");                    // directory for the percentile distributions
+		DEFAULTS.put("standinRedis", "");            // port of an embedded redis to start for the service
+		DEFAULTS.put("wait", "120");                 // seconds to wait for /actuator/health
+	}
+
+	private final Map<String, String> options;
+	private final HttpClient client;
+	private LatencyReport report;
+	private TrafficLog recording;
+	private long startNanos;
+
+	private LoadGenerator(Map<String, String> options) {
+		this.options = options;
+		client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(5)).build();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = parse(args);
+		if (options == null) {
+			System.out.println("options (-name value):");
+			DEFAULTS.forEach((name, value) -> System.out.printf("  -%-16s %s%n", name, value.isEmpty() ? "-" : value));
+			return;
+		}
+		RedisServer standin = null;
+		if (!options.get("standinRedis").isEmpty()) {
+			int port = Integer.parseInt(options.get("standinRedis"));
+			standin = RedisServer.newRedisServer().port(port).setting("save \"\"").setting("appendonly no").build();
+			standin.start();
+			System.out.printf("stand-in redis on port %d, start the service against it (redis.port=%d)%n", port, port);
+		}
+		try {
+			new LoadGenerator(options).run();
+		} finally {
+			if (standin != null)
+				standin.stop();
+		}
+	}
+
+	private static Map<String, String> parse(String[] args) {
+		Map<String, String> options = new HashMap<>(DEFAULTS);
+		for (int i = 0; i < args.length; i++) {
+			String name = args[i].startsWith("-") ? args[i].substring(1) : args[i];
+			if (!DEFAULTS.containsKey(name) || i + 1 == args.length) {
+				if (!"help".equals(name))
+					System.out.println("unknown option or missing value: " + args[i]);
+				return null;
+			}
+			options.put(name, args[++i]);
+		}
+		return options;
+	}
+
+	private void run() throws Exception {
+		waitForService();
+		if (!options.get("record").isEmpty())
+			recording = TrafficLog.create(Paths.get(options.get("record")));
+		long intervalNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("interval")));
+		long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmup")));
+		ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+		AtomicLong lastReport = new AtomicLong();
+		// an interval is measured when it starts after the warmup, give or take half an interval of scheduling
+		Runnable reportInterval = () -> {
+			long now = System.nanoTime();
+			long intervalStart = lastReport.getAndSet(now);
+			report.interval(now - intervalStart, intervalStart - startNanos + intervalNanos / 2 >= warmupNanos);
+		};
+		startNanos = System.nanoTime();
+		report = new LatencyReport(startNanos);
+		lastReport.set(startNanos);
+		reporter.scheduleAtFixedRate(reportInterval, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+		try {
+			if (options.get("replay").isEmpty())
+				simulateUsers(warmupNanos + TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration"))));
+			else
+				replay(TrafficLog.read(Paths.get(options.get("replay"))));
+		} finally {
+			reporter.shutdown();
+			reporter.awaitTermination(1, TimeUnit.MINUTES);
+			reportInterval.run();
+			if (recording != null)
+				recording.close();
+		}
+		report.summary(options.get("hgrm").isEmpty() ? null : Paths.get(options.get("hgrm")));
+	}
+
+	private void waitForService() throws InterruptedException {
+		URI health = URI.create(options.get("baseUrl") + "/actuator/health");
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("wait")));
+		boolean told = false;
+		while (true) {
+			try {
+				HttpResponse<String> response = client.send(HttpRequest.newBuilder(health).timeout(Duration.ofSeconds(5)).build(),
+						HttpResponse.BodyHandlers.ofString());
+				if (response.statusCode() == 200)
+					return;
+			} catch (IOException e) {
+				// not up yet
+			}
+			if (System.nanoTime() > deadline)
+				throw new IllegalStateException("service at " + options.get("baseUrl") + " not up after " + options.get("wait") + " seconds");
+			if (!told)
+				System.out.println("waiting for " + health);
+			told = true;
+			Thread.sleep(1000);
+		}
+	}
+
+	private void simulateUsers(long runNanos) throws Exception {
+		Workload workload = new Workload(
+				Workload.vocabulary(options.get("words").isEmpty() ? null : Paths.get(options.get("words")), Integer.parseInt(options.get("vocabulary"))),
+				Double.parseDouble(options.get("skew")), Double.parseDouble(options.get("keystrokeMillis")),
+				Double.parseDouble(options.get("thinkMillis")), Double.parseDouble(options.get("submitRatio")),
+				Integer.parseInt(options.get("minPrefix")));
+		int users = Integer.parseInt(options.get("users"));
+		long seed = Long.parseLong(options.get("seed"));
+		System.out.printf("%d users typing words out of %d for %d seconds%n", users, workload.size(), TimeUnit.NANOSECONDS.toSeconds(runNanos));
+		long deadline = startNanos + runNanos;
+		ExecutorService executor = Executors.newFixedThreadPool(users);
+		List<Future<?>> running = new ArrayList<>();
+		for (int user = 0; user < users; user++) {
+			Random random = new Random(seed * 31 + user);
+			running.add(executor.submit(() -> {
+				long due = startNanos + workload.thinkNanos(random);   // users don't all start on the same keystroke
+				while (due < deadline) {
+					String word = workload.nextWord(random);
+					for (String prefix : workload.keystrokes(word)) {
+						send(options.get("suggestPath") + encode(prefix), due);
+						due += workload.keystrokeGapNanos(random);
+					}
+					if (workload.submits(random))
+						send(options.get("queryPath") + encode(word), due);
+					due += workload.thinkNanos(random);
+				}
+				return null;
+			}));
+		}
+		executor.shutdown();
+		for (Future<?> user : running)
+			user.get();
+	}
+
+	/**
+	 * Sends the path when it is due and waits for the response, a user only types on when it saw the suggestions
+	 * of the last keystroke, its later keystrokes then are late and count as such
+	 */
+	private void send(String path, long dueNanos) throws IOException, InterruptedException {
+		sleepUntil(dueNanos);
+		if (recording != null)
+			recording.append(TimeUnit.NANOSECONDS.toMillis(dueNanos - startNanos), path);
+		long sent = System.nanoTime();
+		boolean ok;
+		try {
+			ok = succeeded(client.send(request(path), HttpResponse.BodyHandlers.discarding()).statusCode());
+		} catch (IOException e) {
+			ok = false;
+		}
+		report.record(LatencyReport.endpointOf(path), dueNanos, sent, System.nanoTime(), ok);
+	}
+
+	private void replay(List<TrafficLog.Entry> entries) throws InterruptedException {
+		int users = Integer.parseInt(options.get("users"));
+		double speed = Double.parseDouble(options.get("speed"));
+		System.out.printf("replaying %d requests at %.1fx, at most %d in flight%n", entries.size(), speed, users);
+		Semaphore inFlight = new Semaphore(users);
+		for (TrafficLog.Entry entry : entries) {
+			long due = startNanos + (long) (TimeUnit.MILLISECONDS.toNanos(entry.offsetMillis) / speed);
+			sleepUntil(due);
+			inFlight.acquire();
+			long sent = System.nanoTime();
+			client.sendAsync(request(entry.path), HttpResponse.BodyHandlers.discarding()).whenComplete((response, failure) -> {
+				report.record(LatencyReport.endpointOf(entry.path), due, sent, System.nanoTime(),
+						failure == null && succeeded(response.statusCode()));
+				inFlight.release();
+			});
+		}
+		inFlight.acquire(users);
+	}
+
+	private HttpRequest request(String path) {
+		return HttpRequest.newBuilder(URI.create(options.get("baseUrl") + path)).timeout(Duration.ofSeconds(10)).build();
+	}
+
+	private static boolean succeeded(int status) {
+		return status / 100 == 2 || status == 304;
+	}
+
+	private static String encode(String text) {
+		return URLEncoder.encode(text, StandardCharsets.UTF_8).replace("+", "%20");
+	}
+
+	private static void sleepUntil(long dueNanos) throws InterruptedException {
+		long wait = dueNanos - System.nanoTime();
+		if (wait > 0)
+			TimeUnit.NANOSECONDS.sleep(wait);
+	}
+}
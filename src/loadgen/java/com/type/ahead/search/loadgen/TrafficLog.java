@@ -0,0 +1,65 @@
+package com.type.ahead.search.loadgen;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Recorded traffic, a line per request: milliseconds since the start of the run, a tab and the request path
+ * with its query string, e.g. "1520\t/prefix-search/getAll/redis/ne". A run with -record writes one, -replay
+ * sends the requests of one at the same offsets. Logs of real traffic (an access log cut down to these two
+ * columns) replay the same way, lines don't have to be in order.
+ */
+final class TrafficLog implements Closeable {
+	static final class Entry {
+		final long offsetMillis;
+		final String path;
+
+		Entry(long offsetMillis, String path) {
+			this.offsetMillis = offsetMillis;
+			this.path = path;
+		}
+	}
+
+	private final BufferedWriter writer;
+
+	private TrafficLog(BufferedWriter writer) {
+		this.writer = writer;
+	}
+
+	static TrafficLog create(Path file) throws IOException {
+		return new TrafficLog(Files.newBufferedWriter(file, StandardCharsets.UTF_8));
+	}
+
+	static List<Entry> read(Path file) throws IOException {
+		List<Entry> entries = new ArrayList<>();
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			int tab = line.indexOf('\t');
+			if (line.isBlank() || line.startsWith("#"))
+				continue;
+			if (tab < 0)
+				throw new IOException("expected offset<TAB>path, got: " + line);
+			entries.add(new Entry(Long.parseLong(line.substring(0, tab).trim()), line.substring(tab + 1).trim()));
+		}
+		entries.sort(Comparator.comparingLong(entry -> entry.offsetMillis));
+		return entries;
+	}
+
+	synchronized void append(long offsetMillis, String path) throws IOException {
+		writer.write(Long.toString(offsetMillis));
+		writer.write('\t');
+		writer.write(path);
+		writer.newLine();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		writer.close();
+	}
+}
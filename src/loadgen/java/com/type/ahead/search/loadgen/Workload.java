@@ -0,0 +1,103 @@
+package com.type.ahead.search.loadgen;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * What simulated users type: words picked with zipf skew (the i-th word of the vocabulary with probability
+ * proportional to 1 / (i + 1)^skew, so keep the vocabulary most popular first), typed a keystroke at a time with
+ * exponentially distributed gaps around the mean cadence, and a pause to think between two words.
+ */
+final class Workload {
+	private final List<String> words;
+	private final double[] cumulative;
+	private final double keystrokeMillis;
+	private final double thinkMillis;
+	private final double submitRatio;
+	private final int minPrefix;
+
+	Workload(List<String> words, double skew, double keystrokeMillis, double thinkMillis, double submitRatio, int minPrefix) {
+		this.words = words;
+		this.keystrokeMillis = keystrokeMillis;
+		this.thinkMillis = thinkMillis;
+		this.submitRatio = submitRatio;
+		this.minPrefix = minPrefix;
+		cumulative = new double[words.size()];
+		double sum = 0;
+		for (int i = 0; i < words.size(); i++)
+			cumulative[i] = sum += 1 / Math.pow(i + 1, skew);
+		for (int i = 0; i < words.size(); i++)
+			cumulative[i] /= sum;
+	}
+
+	/**
+	 * The vocabulary: word per line of the file (anything after a tab, like a score, is ignored), or
+	 * common.word.list of the service's application.properties when there is no file. At most size words.
+	 */
+	static List<String> vocabulary(Path file, int size) throws IOException {
+		List<String> words = new ArrayList<>();
+		if (file != null) {
+			for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+				String word = line.split("\t", 2)[0].trim();
+				if (!word.isEmpty())
+					words.add(word);
+			}
+		} else {
+			Properties properties = new Properties();
+			try (InputStream in = Workload.class.getResourceAsStream("/application.properties")) {
+				if (in == null)
+					throw new IOException("no application.properties on the classpath, pass -words");
+				properties.load(in);
+			}
+			for (String word : properties.getProperty("common.word.list", "").split(","))
+				if (!word.isBlank())
+					words.add(word.trim());
+		}
+		if (words.isEmpty())
+			throw new IOException("empty vocabulary");
+		return size > 0 && size < words.size() ? words.subList(0, size) : words;
+	}
+
+	int size() {
+		return words.size();
+	}
+
+	String nextWord(Random random) {
+		int i = Arrays.binarySearch(cumulative, random.nextDouble());
+		return words.get(Math.min(i < 0 ? -i - 1 : i, words.size() - 1));
+	}
+
+	/**
+	 * The prefixes typed for the word, one per keystroke from minPrefix characters on
+	 */
+	List<String> keystrokes(String word) {
+		List<String> prefixes = new ArrayList<>();
+		for (int length = Math.min(minPrefix, word.length()); length <= word.length(); length++)
+			prefixes.add(word.substring(0, length));
+		return prefixes;
+	}
+
+	boolean submits(Random random) {
+		return random.nextDouble() < submitRatio;
+	}
+
+	long keystrokeGapNanos(Random random) {
+		return exponentialNanos(random, keystrokeMillis);
+	}
+
+	long thinkNanos(Random random) {
+		return exponentialNanos(random, thinkMillis);
+	}
+
+	private static long exponentialNanos(Random random, double meanMillis) {
+		return (long) (-Math.log(1 - random.nextDouble()) * meanMillis * 1_000_000);
+	}
+}
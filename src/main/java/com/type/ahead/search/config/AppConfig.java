@@ -1,16 +1,102 @@
 package com.type.ahead.search.config;
 
+import com.type.ahead.search.service.RedisShards;
+import com.type.ahead.search.util.HeavyHitterTracker;
+import com.type.ahead.search.util.QueryCounter;
+import com.type.ahead.search.util.QueryTracker;
+import com.type.ahead.search.util.ScoreDecay;
+import com.type.ahead.search.util.VirtualThreads;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableScheduling;
-import redis.clients.jedis.Jedis;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 @Configuration
 @EnableScheduling
+@Slf4j
 public class AppConfig {
+    /**
+     * A Jedis connection is not thread safe, request threads and the scheduler each borrow their own
+     * connection from these pools (see RedisAccessService). redis.shards lists the endpoints the prefix keys
+     * are split over, when it is empty everything goes to redis.host:redis.port.
+     */
+    @Bean(destroyMethod = "close")
+    public RedisShards redisShards(@Value("${redis.host}") String host,
+                                   @Value("${redis.port}") int port,
+                                   @Value("${redis.shards}") List<String> shards,
+                                   @Value("${redis.timeout.millis}") int timeoutMillis,
+                                   @Value("${redis.pool.max.total}") int maxTotal,
+                                   @Value("${redis.pool.max.idle}") int maxIdle,
+                                   @Value("${redis.pool.min.idle}") int minIdle,
+                                   @Value("${redis.pool.max.wait.millis}") long maxWaitMillis) {
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(maxTotal);
+        poolConfig.setMaxIdle(maxIdle);
+        poolConfig.setMinIdle(minIdle);
+        poolConfig.setMaxWait(Duration.ofMillis(maxWaitMillis));
+        List<String> endpoints = new ArrayList<>();
+        for (String shard : shards) {
+            if (!shard.isBlank())
+                endpoints.add(shard.trim());
+        }
+        if (endpoints.isEmpty())
+            endpoints.add(host + ":" + port);
+        LinkedHashMap<String, JedisPool> pools = new LinkedHashMap<>();
+        for (String endpoint : endpoints) {
+            HostAndPort hostAndPort = HostAndPort.from(endpoint);
+            pools.put(endpoint, new JedisPool(poolConfig, hostAndPort.getHost(), hostAndPort.getPort(), timeoutMillis));
+        }
+        return new RedisShards(pools);
+    }
+
+    /**
+     * EXACT counts every distinct query, HEAVY_HITTERS keeps memory fixed and only reports the top queries
+     */
+    @Bean
+    public QueryTracker queryTracker(@Value("${query.tracking.mode}") QueryTracker.Mode mode,
+                                     @Value("${query.sketch.epsilon}") double epsilon,
+                                     @Value("${query.sketch.delta}") double delta,
+                                     @Value("${query.sketch.top.k}") int topK) {
+        if (mode == QueryTracker.Mode.HEAVY_HITTERS)
+            return new HeavyHitterTracker(epsilon, delta, topK);
+        return new QueryCounter();
+    }
+
+    /**
+     * Scores are stored decayed when score.decay.enabled, plain counts otherwise
+     */
     @Bean
-    public Jedis jedis() {
-        return new Jedis();
+    public ScoreDecay scoreDecay(@Value("${score.decay.enabled}") boolean enabled,
+                                 @Value("${score.decay.half.life.hours}") double halfLifeHours) {
+        return new ScoreDecay(enabled, halfLifeHours);
     }
 
+    /**
+     * PLATFORM serves requests on tomcat's worker pool (server.tomcat.threads.max), every request thread blocks
+     * on redis so the pool size caps throughput. VIRTUAL hands each request to a virtual thread of its own, a
+     * request waiting on redis then only parks its virtual thread. Needs a JDK 21+ runtime, on older ones the
+     * worker pool stays in place.
+     */
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> requestExecutionCustomizer(@Value("${request.execution.mode}") VirtualThreads.ExecutionMode mode) {
+        return protocolHandler -> {
+            if (mode != VirtualThreads.ExecutionMode.VIRTUAL)
+                return;
+            VirtualThreads.newThreadPerTaskExecutor().ifPresentOrElse(executor -> {
+                protocolHandler.setExecutor(executor);
+                log.info("serving requests on virtual threads");
+            }, () -> log.warn("request.execution.mode=VIRTUAL needs java 21 or newer (or --enable-preview on 19 and 20), running {} so requests stay on the tomcat worker pool",
+                    Runtime.version().feature()));
+        };
+    }
 }
@@ -1,16 +1,31 @@
 package com.type.ahead.search.controller;
 
+import com.type.ahead.search.service.DictionaryIngestService;
+import com.type.ahead.search.service.FuzzySuggestService;
 import com.type.ahead.search.service.JedisService;
+import com.type.ahead.search.service.PackedPrefixStore;
+import com.type.ahead.search.service.PrefixFlushService;
+import com.type.ahead.search.service.RedisAccessService;
+import com.type.ahead.search.service.SuggestionService;
+import com.type.ahead.search.util.QueryCounter;
+import com.type.ahead.search.util.SuggestionCodec;
 import com.type.ahead.search.util.TrieDataStore;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.resps.Tuple;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 @RestController
 @RequestMapping("/prefix-search")
@@ -27,24 +42,41 @@ public class MainController {
 
     private final TrieDataStore trieDataStore = TrieDataStore.getTrieInstance();
     @Autowired
-    private Jedis jedis;
+    private RedisAccessService redisAccessService;
 
-    private Map<String, Long> memberScoreMap = new HashMap<>();
-    private Set<String> newWordSet = new HashSet<>();
+    private final QueryCounter memberScoreMap = new QueryCounter();
+    private final Set<String> newWordSet = ConcurrentHashMap.newKeySet();
 
     @Autowired
     private JedisService jedisService;
 
+    @Autowired
+    private PrefixFlushService prefixFlushService;
+
+    @Autowired
+    private PackedPrefixStore packedPrefixStore;
+
+    @Value("${redis.layout}")
+    PackedPrefixStore.Layout redisLayout;
+
+    @Autowired
+    private FuzzySuggestService fuzzySuggestService;
+
+    @Autowired
+    private DictionaryIngestService dictionaryIngestService;
+
+    @Autowired
+    private SuggestionService suggestionService;
+
+    @Value("${suggest.cache.max.age.seconds}")
+    long suggestCacheMaxAgeSeconds;
+
     @CrossOrigin
     @GetMapping("/test/logQuery/{start}/{end}")
     public ResponseEntity<?> logQuery(@PathVariable int start, @PathVariable int end) {
         try {
             for (String word : wordList.subList(start, end))
-                if (!jedisService.systemDown) {
-                    jedisService.logInputQuery(word);
-                } else {
-                    log.warn("Query not processed system is down {}", word);
-                }
+                jedisService.logInputQuery(word);
             return ResponseEntity.status(HttpStatus.OK).body("SUCCESS" + "\n");
         } catch (Exception e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error");
@@ -60,6 +92,7 @@ public class MainController {
             trieDataStore.TrieLoadData(wordList.subList(0, 15000)); // load first thousands words into a trie
 
             log.info("total nodes in the trie after loading words {}", TrieDataStore.getTrieSize());
+            log.info("trie memory after loading words {}", TrieDataStore.getTrieMemoryReport());
             loadWordsToRedis(); // load same words to redis
             log.info("reset trie");
             trieDataStore.reset(); // reset the trie freeing up memory
@@ -90,7 +123,7 @@ public class MainController {
             log.info("size of new words set {}", newWordSet.size());
             log.info("total nodes in the trie {}", TrieDataStore.getTrieSize());
 
-            redisIncreaseScoreOfExistingMembers(memberScoreMap);
+            redisIncreaseScoreOfExistingMembers(memberScoreMap.drain());
 //            trieDataStore.setAllWords(newWordSet);
             loadWordsToRedis();
             for (String word : wordList.subList(15000, 20000)) { // HashMap count check
@@ -98,9 +131,10 @@ public class MainController {
                 // should not be added to the trie
                 processQuery(word);
             }
-            redisIncreaseScoreOfExistingMembers(memberScoreMap);
+            redisIncreaseScoreOfExistingMembers(memberScoreMap.drain());
             // load map of existing words into redis by increasing score
-            jedis.flushDB(); // reset cache
+            redisAccessService.executeOnEachShard(Jedis::flushDB); // reset cache
+            packedPrefixStore.clearWordCache();   // the word ids go with it
 
             return ResponseEntity.status(HttpStatus.OK).body("SUCCESS" + "\n");
         } catch (Exception e) {
@@ -109,20 +143,10 @@ public class MainController {
     }
 
     private void redisIncreaseScoreOfExistingMembers(Map<String, Long> memberScoreMap) {
-        for (Map.Entry<String, Long> member : memberScoreMap.entrySet()) {
-            String word = member.getKey();
-            Long wordScore = member.getValue();
-            List<String> allPrefixesForWord = extractAllPrefixes(word);
-            for (String prefix : allPrefixesForWord) {
-                long setSize = jedis.zcount(prefix, 0d, Double.MAX_VALUE);
-                if (setSize < redisSetSize) {
-                    jedis.zincrby(prefix, wordScore, word);
-                } else {
-                    jedis.zpopmin(prefix);
-                    jedis.zincrby(prefix, wordScore, word);
-                }
-            }
-        }
+        if (redisLayout == PackedPrefixStore.Layout.PACKED)
+            packedPrefixStore.incrementScores(memberScoreMap);
+        else
+            prefixFlushService.incrementScores(memberScoreMap);
     }
 
 
@@ -138,22 +162,30 @@ public class MainController {
         }
     }
 
+    /**
+     * Streams a word&lt;TAB&gt;score file of ingest.dir on the server into the trie and redis, returns once it is
+     * all loaded
+     * @param path file name relative to ingest.dir
+     */
+    @CrossOrigin
+    @PostMapping("/loadWords/file")
+    public ResponseEntity<?> loadWordsFromFile(@RequestParam String path) {
+        try {
+            return ResponseEntity.status(HttpStatus.OK).body(dictionaryIngestService.ingest(dictionaryIngestService.resolve(path)) + "\n");
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage() + "\n");
+        } catch (Exception e) {
+            log.error("", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error");
+        }
+    }
+
     @CrossOrigin
     @GetMapping("/query/{word}")
     public ResponseEntity<?> processQuery(@PathVariable String word) {
         try {
-            boolean wordAlreadyInCache = jedis.exists(word);
-            List<String> suggestions = jedis.zrange(word, 0, -1); //FIXME: sometimes word can be already present as a prefix even if not encountered before
-            /*
-             eg . if we had earlier processed the word herself , her will be present as a prefix in cache even though it won't contain the word her same for word he
-                need to find a better approach to fix such issues.
-             */
-            if (wordAlreadyInCache && suggestions.contains(word)) {
-                if (memberScoreMap.containsKey(word)) {
-                    memberScoreMap.put(word, memberScoreMap.get(word) + 1);
-                } else {
-                    memberScoreMap.put(word, 1L);
-                }
+            if (!jedisService.findWordsInCache(Collections.singletonList(word)).isEmpty()) {
+                memberScoreMap.increment(word);
             } else {
                 newWordSet.add(word);
                 trieDataStore.insertWord(word);
@@ -168,30 +200,18 @@ public class MainController {
     @GetMapping("/loadWords/redis/")
     public ResponseEntity<?> loadWordsToRedis() {
         try {
-            Map<String, Double> suggestionWithScore = new HashMap<>();
-            for (String prefix : trieDataStore.getAllTriePrefixes()) {
-//                jedis.set("key", "value");
-//                suggestionMap.put(prefix, trieDataStore.suggest(prefix));
-                List<String> suggestionsList = trieDataStore.suggest(prefix);
-                int i = 0;
-                for (String suggestion : suggestionsList) {
+            Function<String, Map<String, Double>> suggestionsOf = prefix -> {
+                Map<String, Double> suggestionWithScore = new HashMap<>();
+                for (String suggestion : trieDataStore.suggest(prefix, redisSetSize / redisRetainRatio)) {
                     suggestionWithScore.put(suggestion, 0d);
-                    i++;
-                    if (i == redisSetSize / redisRetainRatio) break;
-                }
-//                String[] suggestionsArray = suggestionsList.toArray(new String[suggestionsList.size()]);
-//                jedis.lpush(prefix, suggestionsArray);
-                if (jedis.exists(prefix)) {
-                    double existingSuggestionListSize = jedis.zcount(prefix, 0, Double.MAX_VALUE);
-                    if (existingSuggestionListSize + suggestionWithScore.size() > redisSetSize) {
-                        double extraElements = (existingSuggestionListSize + suggestionWithScore.size()) - redisSetSize;
-                        jedis.zremrangeByRank(prefix, 0, (long) extraElements - 1);  // remove extra elements with the lowest scores
-                    }
                 }
-                jedis.zadd(prefix, suggestionWithScore);  // key present then add if final size less or equal to max size
-                suggestionWithScore = new HashMap<>();
-            }
-            log.info(jedis.ping());
+                return suggestionWithScore;
+            };
+            if (redisLayout == PackedPrefixStore.Layout.PACKED)
+                packedPrefixStore.flush(trieDataStore.getAllTriePrefixes(), suggestionsOf);
+            else
+                prefixFlushService.flush(trieDataStore.getAllTriePrefixes(), suggestionsOf);
+            log.info("{}", redisAccessService.executeOnEachShard(Jedis::ping));
             return ResponseEntity.status(HttpStatus.OK).body("SUCCESS" + "\n");
 
         } catch (Exception e) {
@@ -201,12 +221,12 @@ public class MainController {
 
     @CrossOrigin
     @GetMapping("/getAll/{prefix}")
-    public ResponseEntity<?> getMatches(@PathVariable String prefix) {
+    public ResponseEntity<?> getMatches(@PathVariable String prefix, @RequestParam(required = false) Integer limit) {
         try {
 //            trieDataStore.TrieLoadData(words);
             log.info("trie datastore size :{}", TrieDataStore.getTrieSize());
-            trieDataStore.getAllTriePrefixes();
-            return ResponseEntity.status(HttpStatus.OK).body(trieDataStore.suggest(prefix) + "\n");
+            List<String> suggestions = limit == null ? trieDataStore.suggest(prefix) : trieDataStore.suggest(prefix, limit);
+            return ResponseEntity.status(HttpStatus.OK).body(suggestions + "\n");
         } catch (Exception e) {
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error");
         }
@@ -216,17 +236,72 @@ public class MainController {
     @GetMapping("/getAll/redis/{prefix}")
     public ResponseEntity<?> getMatchesFromRedis(@PathVariable String prefix) {
         try {
-            if (!jedisService.systemDown)
-                return ResponseEntity.status(HttpStatus.OK).body(jedis.zrevrangeWithScores(prefix, 0, -1) + "\n");
-            else
-                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("System down!");
+            return ResponseEntity.status(HttpStatus.OK).body(suggestionService.suggest(prefix, redisSetSize) + "\n");
+
+        } catch (Exception e) {
+            log.error("", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error");
+        }
+    }
+
+    /**
+     * Suggestions of a prefix for clients: the best limit suggestions (default and max redis.sorted.set.size) as a
+     * compact JSON array, or length prefixed binary with format=binary (see SuggestionCodec). The ETag is taken
+     * from the body, so a repeat keystroke gets a 304 until the suggestions of the prefix change, and edge caches
+     * may keep the response for suggest.cache.max.age.seconds.
+     */
+    @CrossOrigin
+    @GetMapping("/suggest/{prefix}")
+    public ResponseEntity<?> suggest(@PathVariable String prefix,
+                                     @RequestParam(required = false) Integer limit,
+                                     @RequestParam(defaultValue = "false") boolean withScores,
+                                     @RequestParam(defaultValue = "json") String format,
+                                     WebRequest request) {
+        try {
+            if (limit != null && limit < 1)
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("limit must be at least 1\n");
+            boolean binary = "binary".equals(format);
+            if (!binary && !"json".equals(format))
+                return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("format must be json or binary\n");
+            List<Tuple> suggestions = suggestionService.suggest(prefix, limit == null ? redisSetSize : Math.min(limit, redisSetSize));
+            byte[] body = binary ? SuggestionCodec.binary(suggestions, withScores) : SuggestionCodec.json(suggestions, withScores);
+            String etag = SuggestionCodec.etag(body);
+            CacheControl cacheControl = CacheControl.maxAge(suggestCacheMaxAgeSeconds, TimeUnit.SECONDS).cachePublic();
+            if (request.checkNotModified(etag))
+                return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(etag).cacheControl(cacheControl).build();
+            return ResponseEntity.ok()
+                    .contentType(binary ? MediaType.APPLICATION_OCTET_STREAM : MediaType.APPLICATION_JSON)
+                    .eTag(etag)
+                    .cacheControl(cacheControl)
+                    .body(body);
+        } catch (Exception e) {
+            log.error("", e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error");
+        }
+    }
 
+    @CrossOrigin
+    @GetMapping("/getAll/fuzzy/{prefix}")
+    public ResponseEntity<?> getFuzzyMatches(@PathVariable String prefix, @RequestParam(required = false) Integer maxEdits) {
+        try {
+            List<Tuple> suggestions = maxEdits == null ? fuzzySuggestService.suggest(prefix) : fuzzySuggestService.suggest(prefix, maxEdits);
+            return ResponseEntity.status(HttpStatus.OK).body(suggestions + "\n");
         } catch (Exception e) {
             log.error("", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error");
         }
     }
 
+    @CrossOrigin
+    @GetMapping("/redis/pool")
+    public ResponseEntity<?> getRedisPoolStats() {
+        try {
+            return ResponseEntity.status(HttpStatus.OK).body(redisAccessService.getPoolStats() + "\n");
+        } catch (Exception e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Error");
+        }
+    }
+
     @CrossOrigin
     @GetMapping("/getAll")
     public ResponseEntity<?> getAllSuggestionForAllPrefixes() {
@@ -241,12 +316,4 @@ public class MainController {
         }
     }
 
-    private List<String> extractAllPrefixes(String word) {
-        List<String> prefixes = new ArrayList<>();
-        for (int i = 1; i <= word.length(); i++) {
-            prefixes.add(word.substring(0, i));
-        }
-        return prefixes;
-    }
-
 }
@@ -0,0 +1,155 @@
+package com.type.ahead.search.service;
+
+import com.type.ahead.search.util.TrieDataStore;
+import com.type.ahead.search.util.WordScoreFileReader;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Bulk loads a dictionary file of "word&lt;TAB&gt;score" lines into the trie and redis. A reader thread parses the
+ * file in chunks of ingest.chunk.size words into a queue of ingest.queue.chunks, the calling thread inserts them
+ * into the trie. The queue is bounded so the reader blocks when inserting falls behind (back-pressure), and
+ * every ingest.flush.words words the trie is merged into redis and reset, so the heap used stays the same for
+ * a file of ten thousand or tens of millions of words. Merging compares scores (see JedisService.mergeDataToRedis),
+ * so a word of a later part doesn't push out a better one of an earlier part.
+ * <p>
+ * Only files under ingest.dir are loaded, see resolve.
+ */
+@Service
+@Slf4j
+public class DictionaryIngestService {
+    @Value("${ingest.chunk.size}")
+    Integer chunkSize;
+
+    @Value("${ingest.queue.chunks}")
+    Integer queueChunks;
+
+    @Value("${ingest.flush.words}")
+    Integer flushWords;
+
+    @Value("${ingest.read.buffer.bytes}")
+    Integer readBufferBytes;
+
+    @Value("${ingest.dir}")
+    String ingestDir;
+
+    @Autowired
+    private JedisService jedisService;
+
+    @Autowired
+    private FuzzySuggestService fuzzySuggestService;
+
+    @Autowired
+    private SuggestionSnapshotService suggestionSnapshotService;
+
+    private final TrieDataStore trieDataStore = TrieDataStore.getTrieInstance();
+
+    // marks the end of the file in the queue
+    private static final WordScoreFileReader.Chunk END = new WordScoreFileReader.Chunk(0);
+
+    /**
+     * @param path file name relative to ingest.dir, as a client sends it
+     * @return the file, when it is inside ingest.dir once "..", absolute paths and symbolic links are followed
+     * @throws IllegalArgumentException for anything outside of it
+     */
+    public Path resolve(String path) throws IOException {
+        Path dir = Paths.get(ingestDir).toAbsolutePath().normalize();
+        Path file = dir.resolve(path).normalize();
+        if (!file.startsWith(dir) || Files.exists(file) && !file.toRealPath().startsWith(dir.toRealPath()))
+            throw new IllegalArgumentException(path + " is not a file under ingest.dir");
+        return file;
+    }
+
+    /**
+     * @return one line summary of the load
+     */
+    public String ingest(Path file) throws IOException {
+        long start = System.currentTimeMillis();
+        try (WordScoreFileReader reader = new WordScoreFileReader(file, readBufferBytes)) {
+            BlockingQueue<WordScoreFileReader.Chunk> chunks = new ArrayBlockingQueue<>(queueChunks);
+            AtomicReference<Exception> readFailure = new AtomicReference<>();
+            Thread readerThread = new Thread(() -> {
+                try {
+                    try {
+                        WordScoreFileReader.Chunk chunk;
+                        while ((chunk = reader.nextChunk(chunkSize)) != null)
+                            chunks.put(chunk);
+                    } catch (IOException | RuntimeException e) {
+                        readFailure.set(e);
+                    }
+                    chunks.put(END);
+                } catch (InterruptedException e) {
+                    // inserting failed, nobody waits for the rest of the file
+                }
+            }, "dictionary-ingest-reader");
+            readerThread.setDaemon(true);
+            readerThread.start();
+
+            long words;
+            try {
+                words = jedisService.runExclusively(() -> insertAndFlush(chunks, reader, start));
+            } finally {
+                readerThread.interrupt();    // only does something when inserting failed half way
+            }
+            if (readFailure.get() != null)
+                throw new IOException("reading " + file + " failed after " + words + " words", readFailure.get());
+            fuzzySuggestService.saveSnapshot();
+            suggestionSnapshotService.rebuild();
+            long millis = System.currentTimeMillis() - start;
+            String report = String.format("file=%s words=%d skippedLines=%d bytes=%d millis=%d wordsPerSecond=%d",
+                    file, words, reader.getSkippedLines(), reader.getBytesRead(), millis, millis == 0 ? words : words * 1000 / millis);
+            log.info("ingest done {}", report);
+            return report;
+        }
+    }
+
+    private long insertAndFlush(BlockingQueue<WordScoreFileReader.Chunk> chunks, WordScoreFileReader reader, long start) {
+        trieDataStore.reset();
+        long words = 0;
+        long unflushed = 0;
+        try {
+            WordScoreFileReader.Chunk chunk;
+            while ((chunk = chunks.take()) != END) {
+                for (int i = 0; i < chunk.size; i++)
+                    trieDataStore.insertWord(chunk.words[i], chunk.scores[i]);
+                fuzzySuggestService.addWords(chunk);
+                words += chunk.size;
+                unflushed += chunk.size;
+                if (unflushed >= flushWords) {
+                    flush();
+                    unflushed = 0;
+                    logProgress(words, reader, start);
+                }
+            }
+            if (unflushed > 0)
+                flush();
+            return words;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("ingest interrupted after " + words + " words", e);
+        } finally {
+            trieDataStore.reset();
+        }
+    }
+
+    private void flush() {
+        jedisService.mergeDataToRedis();
+        trieDataStore.reset();
+    }
+
+    private void logProgress(long words, WordScoreFileReader reader, long start) {
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        log.info("ingested {} words, {}% of the file, {} words/sec", words,
+                reader.getFileBytes() == 0 ? 100 : reader.getBytesRead() * 100 / reader.getFileBytes(), words * 1000 / millis);
+    }
+}
@@ -0,0 +1,251 @@
+package com.type.ahead.search.service;
+
+import com.type.ahead.search.util.CompactTrie;
+import com.type.ahead.search.util.ScoreDecay;
+import com.type.ahead.search.util.WordScoreFileReader;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+import redis.clients.jedis.resps.Tuple;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Typo tolerant suggestions for prefixes redis has nothing for. The trie of the data loading job only holds
+ * the words of the current run, so this keeps its own compact trie with every word in the cache: loaded from
+ * redis at startup (a word is in the cache when it is a member of its own prefix set) and kept up to date with
+ * the queries of every run. Lookups are bounded to fuzzy.max.edits edits and fuzzy.max.steps trie steps.
+ * <p>
+ * The dictionary is written to trie.snapshot.path after a rebuild, after a bulk load and once the runs added
+ * trie.snapshot.save.unsaved.words queries since the last save (and what is left at shutdown), a restart loads
+ * it back from there (see CompactTrie.loadSnapshot) instead of scanning all of redis. Rewriting all of it for the
+ * few queries of every run would cost more than the run.
+ */
+@Service
+@Slf4j
+public class FuzzySuggestService {
+    @Value("${fuzzy.enabled}")
+    boolean fuzzyEnabled;
+
+    @Value("${fuzzy.max.edits}")
+    Integer maxEdits;
+
+    @Value("${fuzzy.max.steps}")
+    Integer maxSteps;
+
+    @Value("${fuzzy.scan.count}")
+    Integer scanCount;
+
+    @Value("${redis.sorted.set.size}")
+    Integer redisSetSize;
+
+    @Value("${redis.layout}")
+    PackedPrefixStore.Layout redisLayout;
+
+    @Value("${trie.snapshot.enabled}")
+    boolean trieSnapshotEnabled;
+
+    @Value("${trie.snapshot.path}")
+    String trieSnapshotPath;
+
+    @Value("${trie.snapshot.save.unsaved.words}")
+    Integer saveUnsavedWords;
+
+    @Autowired
+    private RedisAccessService redisAccessService;
+
+    @Autowired
+    private PackedPrefixStore packedPrefixStore;
+
+    @Autowired
+    private ScoreDecay scoreDecay;
+
+    private CompactTrie dictionary = new CompactTrie();
+    // lookups run concurrently, only adding the queries of a run blocks them for a moment
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // words added or rescored since the dictionary was last written out
+    private final AtomicInteger unsavedWords = new AtomicInteger();
+
+    public boolean isEnabled() {
+        return fuzzyEnabled;
+    }
+
+    public List<Tuple> suggest(String prefix) {
+        return suggest(prefix, maxEdits);
+    }
+
+    /**
+     * @param edits max edits for this lookup, capped at fuzzy.max.edits
+     * @return up to redis.sorted.set.size words, fewest edits first then highest score
+     */
+    public List<Tuple> suggest(String prefix, int edits) {
+        LinkedHashMap<String, Long> matches;
+        lock.readLock().lock();
+        try {
+            matches = dictionary.suggestFuzzy(prefix, Math.min(edits, maxEdits), redisSetSize, maxSteps);
+        } finally {
+            lock.readLock().unlock();
+        }
+        List<Tuple> suggestions = new ArrayList<>(matches.size());
+        matches.forEach((word, score) -> suggestions.add(new Tuple(word, score.doubleValue())));
+        return suggestions;
+    }
+
+    /**
+     * @param wordScores word to number of times it was queried in the last run
+     */
+    public void addQueries(Map<String, Long> wordScores) {
+        if (!fuzzyEnabled)
+            return;
+        lock.writeLock().lock();
+        try {
+            wordScores.forEach(dictionary::insert);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (unsavedWords.addAndGet(wordScores.size()) >= saveUnsavedWords)
+            saveSnapshot();
+    }
+
+    /**
+     * Adds a chunk of a bulk load, the snapshot is left to saveSnapshot once the load is done
+     */
+    public void addWords(WordScoreFileReader.Chunk chunk) {
+        if (!fuzzyEnabled)
+            return;
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < chunk.size; i++)
+                dictionary.insert(chunk.words[i], chunk.scores[i]);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        unsavedWords.addAndGet(chunk.size);
+    }
+
+    /**
+     * Startup: takes the dictionary from the trie snapshot, it is only rebuilt from redis when there is no
+     * snapshot or it can't be read
+     */
+    public void load() {
+        if (!fuzzyEnabled)
+            return;
+        Path path = Paths.get(trieSnapshotPath);
+        if (trieSnapshotEnabled && Files.exists(path)) {
+            long start = System.currentTimeMillis();
+            try {
+                CompactTrie loaded = CompactTrie.loadSnapshot(path);
+                swap(loaded);
+                log.info("fuzzy dictionary loaded from {} with {} words in {} ms", path, loaded.getWordCount(), System.currentTimeMillis() - start);
+                return;
+            } catch (IOException e) {
+                log.warn("could not load trie snapshot {}, rebuilding from redis", path, e);
+            }
+        }
+        rebuild();
+    }
+
+    /**
+     * Builds the dictionary from the words in redis and swaps it in. Scans all sorted sets (shadow keys left by a
+     * failed run are skipped) and looks each key up in its own set with one pipeline per scan page, on all the
+     * shards at once. With redis.layout=PACKED the interned words are looked up in their own lists instead
+     * (PackedPrefixStore.ownScores).
+     */
+    public void rebuild() {
+        if (!fuzzyEnabled)
+            return;
+        long start = System.currentTimeMillis();
+        CompactTrie next = new CompactTrie();
+        long now = System.currentTimeMillis();
+        if (redisLayout == PackedPrefixStore.Layout.PACKED)
+            packedPrefixStore.ownScores(packedPrefixStore.internedWords(scanCount)).forEach((word, score) ->
+                    next.insert(word, Math.round(scoreDecay.decayedCount(score, now))));
+        else
+            redisAccessService.executeOnEachShard(jedis -> sortedSetWords(jedis, now)).forEach(shardWords -> shardWords.forEach(next::insert));
+        swap(next);
+        log.info("fuzzy dictionary rebuilt with {} words in {} ms", next.getWordCount(), System.currentTimeMillis() - start);
+        saveSnapshot();
+    }
+
+    private Map<String, Long> sortedSetWords(Jedis jedis, long now) {
+        Map<String, Long> shardWords = new HashMap<>();
+        ScanParams scanParams = new ScanParams().count(scanCount);
+        String cursor = ScanParams.SCAN_POINTER_START;
+        do {
+            ScanResult<String> page = jedis.scan(cursor, scanParams, "zset");
+            Map<String, Response<Double>> scores = new HashMap<>();
+            Pipeline pipeline = jedis.pipelined();
+            for (String key : page.getResult()) {
+                if (!key.startsWith(PrefixFlushService.shadowKey("")))
+                    scores.put(key, pipeline.zscore(key, key));
+            }
+            pipeline.sync();
+            scores.forEach((word, score) -> {
+                if (score.get() != null)
+                    shardWords.put(word, Math.round(scoreDecay.decayedCount(score.get(), now)));
+            });
+            cursor = page.getCursor();
+        } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        return shardWords;
+    }
+
+    private void swap(CompactTrie next) {
+        lock.writeLock().lock();
+        try {
+            dictionary = next;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes out what the runs added since the last save
+     */
+    @PreDestroy
+    public void saveUnsaved() {
+        if (unsavedWords.get() > 0)
+            saveSnapshot();
+    }
+
+    int getUnsavedWords() {
+        return unsavedWords.get();
+    }
+
+    /**
+     * Only one job at a time changes the dictionary (see JedisService.runExclusively), a read lock is enough
+     * to keep it still while it is written out
+     */
+    public void saveSnapshot() {
+        if (!fuzzyEnabled || !trieSnapshotEnabled)
+            return;
+        long start = System.currentTimeMillis();
+        Path path = Paths.get(trieSnapshotPath);
+        lock.readLock().lock();
+        try {
+            if (path.getParent() != null)
+                Files.createDirectories(path.getParent());
+            int saving = unsavedWords.get();
+            dictionary.writeSnapshot(path);
+            unsavedWords.addAndGet(-saving);
+            log.info("trie snapshot of {} words written to {} in {} ms", dictionary.getWordCount(), path, System.currentTimeMillis() - start);
+        } catch (IOException e) {
+            log.error("could not write trie snapshot {}", path, e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
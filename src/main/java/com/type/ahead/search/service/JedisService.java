@@ -1,19 +1,33 @@
 package com.type.ahead.search.service;
 
 
+import com.type.ahead.search.util.QueryTracker;
+import com.type.ahead.search.util.ScoreDecay;
 import com.type.ahead.search.util.TrieDataStore;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Response;
 
 import javax.annotation.PostConstruct;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 
 @Service
 @Slf4j
@@ -29,17 +43,91 @@ public class JedisService {
 
     @Value("${data.load.size}")
     Integer dataLoadSize;
+
+    @Value("${trie.ranked.mode}")
+    boolean trieRankedMode;
+
+    @Value("${redis.layout}")
+    PackedPrefixStore.Layout redisLayout;
+
+    @Value("${trie.storage}")
+    TrieDataStore.Storage trieStorage;
     private final TrieDataStore trieDataStore = TrieDataStore.getTrieInstance();
 
-    // A map to keep track of all the input queries with score (score represents how many times each query was passed)
-    private Map<String, Long> queryScoreMap = new HashMap<>();
+    // Keeps track of all the input queries with score (score represents how many times each query was passed)
+    // logged from request threads and drained by the scheduler without locking
+    @Autowired
+    private QueryTracker queryScoreMap;
 
     private boolean initialReload = true;
 
-    public boolean systemDown = false;
+    @Autowired
+    private RedisAccessService redisAccessService;
+
+    @Autowired
+    private SuggestionSnapshotService suggestionSnapshotService;
 
     @Autowired
-    private Jedis jedis;
+    private PrefixFlushService prefixFlushService;
+
+    @Autowired
+    private PackedPrefixStore packedPrefixStore;
+
+    @Autowired
+    private FuzzySuggestService fuzzySuggestService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ScoreDecay scoreDecay;
+
+    // replays the queries of the last process into queryScoreMap before the starter data is loaded
+    @Autowired
+    private QueryJournal queryJournal;
+
+    private Counter loggedQueries;
+    private Counter droppedQueries;
+    private DistributionSummary cleanupQueries;
+    private DistributionSummary cleanupPrefixes;
+    // one timer per outcome of a run, looked up once
+    private Timer cleanupSuccess;
+    private Timer cleanupPartial;
+    private Timer cleanupFailure;
+    // the trie is reset after every run, so its size is kept from the moment it is flushed
+    private final AtomicLong flushedTrieBytes = new AtomicLong();
+    private final AtomicLong flushedTrieNodes = new AtomicLong();
+
+    private void registerMeters() {
+        loggedQueries = Counter.builder("typeahead.queries.logged").register(meterRegistry);
+        droppedQueries = Counter.builder("typeahead.queries.dropped")
+                .description("logged queries left out of a run by query.tracking.mode=HEAVY_HITTERS")
+                .register(meterRegistry);
+        Gauge.builder("typeahead.queries.pending", queryScoreMap, QueryTracker::size)
+                .description("distinct queries waiting for the next run")
+                .register(meterRegistry);
+        Gauge.builder("typeahead.trie.nodes", flushedTrieNodes, AtomicLong::get)
+                .description("trie nodes at the last flush")
+                .register(meterRegistry);
+        Gauge.builder("typeahead.trie.memory", flushedTrieBytes, AtomicLong::get)
+                .description("estimated trie heap at the last flush")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        cleanupQueries = DistributionSummary.builder("typeahead.cleanup.queries").description("distinct queries per run")
+                .register(meterRegistry);
+        cleanupPrefixes = DistributionSummary.builder("typeahead.cleanup.prefixes").description("prefix keys rewritten per run")
+                .register(meterRegistry);
+        cleanupSuccess = cleanupTimer("success");
+        cleanupPartial = cleanupTimer("partial");
+        cleanupFailure = cleanupTimer("failure");
+    }
+
+    private Timer cleanupTimer(String outcome) {
+        return Timer.builder("typeahead.cleanup")
+                .description("scheduled runs of cleanUpAndDataLoading")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
 
     /**
      * This method is responsible for the initial setup needed for the service to work
@@ -53,13 +141,26 @@ public class JedisService {
      */
     @PostConstruct
     public void loadStarterDataToTrieAndRedis() {
+        registerMeters();
+        // In ranked mode every trie node keeps its own top redisSetSize suggestions
+        trieDataStore.setStorage(trieStorage);
+        trieDataStore.setRankedTopK(trieRankedMode ? redisSetSize : 0);
+        // shadow keys of a run the last process didn't finish aren't cached prefixes, they go before the check
+        prefixFlushService.dropShadowKeys();
         // Checking DB size if redis is not empty we don't need to reload the data at each startup
-        if (jedis.dbSize() == 0) {
+        boolean redisWasEmpty = redisAccessService.executeOnEachShard(Jedis::dbSize).stream().mapToLong(Long::longValue).sum() == 0;
+        if (redisWasEmpty) {
             trieDataStore.TrieLoadData(wordList.subList(0, dataLoadSize));
             loadDataToRedis();
             trieDataStore.reset();
         }
         initialReload = false;
+        suggestionSnapshotService.rebuild();
+        // a trie snapshot written against an older redis would suggest words that are no longer cached
+        if (redisWasEmpty)
+            fuzzySuggestService.rebuild();
+        else
+            fuzzySuggestService.load();
     }
 
     /**
@@ -67,97 +168,235 @@ public class JedisService {
      * and then again periodically as a cron job.
      */
     public void loadDataToRedis() {
-        Map<String, Double> prefixToSuggestionListWithScoreMap = new HashMap<>();
-        // Get all possible prefixes of all the words stored in the TrieDataStore and Iterate over them
-        for (String prefix : trieDataStore.getAllTriePrefixes()) {
-            // Get all suggestions for a given prefix
-            List<String> suggestionsList = trieDataStore.suggest(prefix);
-            int i = 0;
-            for (String suggestion : suggestionsList) {
-                prefixToSuggestionListWithScoreMap.put(suggestion, initialReload ? 0d : queryScoreMap.get(suggestion)); // during initial reload set score of each suggestion to
-                i++;                                                                                                    // Other wise get score from queryScoreMap
-                if (i == redisSetSize / (initialReload ? 1 : redisRetainRatio)) break;
-            }
-            if (jedis.exists(prefix)) {
-                double existingSuggestionListSize = jedis.zcount(prefix, 0, Double.MAX_VALUE);
-                if (existingSuggestionListSize + prefixToSuggestionListWithScoreMap.size() > redisSetSize) {
-                    double extraElements = (existingSuggestionListSize + prefixToSuggestionListWithScoreMap.size()) - redisSetSize;
-                    jedis.zremrangeByRank(prefix, 0, (long) extraElements - 1);  // remove extra elements with the lowest scores
-                }
-            }
-            jedis.zadd(prefix, prefixToSuggestionListWithScoreMap);  // key present then add if final size less or equal to max size
-            prefixToSuggestionListWithScoreMap = new HashMap<>();
-        }
+        loadDataToRedis(UnaryOperator.identity());
     }
 
-    public void logInputQuery(String word) {
-        if (queryScoreMap.containsKey(word)) {
-            queryScoreMap.put(word, queryScoreMap.get(word) + 1);
-        } else {
-            queryScoreMap.put(word, 1l);
-        }
+    /**
+     * @param keyOf redis key each prefix is written to, the periodic job writes to the shadow keys (sorted set
+     *              layout only, the packed lists are written in place)
+     */
+    private void loadDataToRedis(UnaryOperator<String> keyOf) {
+        // during initial reload keep a full list per prefix with score 0, other wise retain only part of it
+        // and use the score the word was inserted with (it's score from queryScoreMap), decayed as of now
+        boolean zeroScores = initialReload;
+        flushTrie(redisSetSize / (zeroScores ? 1 : redisRetainRatio), zeroScores, isPacked()
+                ? packedPrefixStore::flushPartitions
+                : (firstChars, export) -> prefixFlushService.flushPartitions(firstChars, export, keyOf));
     }
 
-    public void processQuery(String word, Long wordScore) {
-        boolean wordAlreadyInCacheAsKey = jedis.exists(word);
-        List<String> suggestions = jedis.zrange(word, 0, -1); //FIXME: sometimes word can be already present as a prefix even if not encountered before
-            /*
-             eg . if we had earlier processed the word herself , her will be present as a prefix in cache even though it won't contain the word her same for word he
-                need to find a better approach to fix such issues.
-             */
-        if (!isWordInCache(word, wordAlreadyInCacheAsKey, suggestions)) {
-            trieDataStore.insertWord(word);
+    /**
+     * Bulk loads: merges the full top redis.sorted.set.size of every prefix in the trie into the live keys, a
+     * word only takes the place of a member with a lower score and a word already there keeps the higher of
+     * its two scores (see PrefixFlushService.mergePartitions), so a file loaded in several flushes ends up with
+     * the same lists as if it was flushed at once
+     */
+    public void mergeDataToRedis() {
+        flushTrie(redisSetSize, false, isPacked() ? packedPrefixStore::mergePartitions : prefixFlushService::mergePartitions);
+    }
+
+    private boolean isPacked() {
+        return redisLayout == PackedPrefixStore.Layout.PACKED;
+    }
+
+    /**
+     * @param limit  suggestions per prefix
+     * @param writer writes the partitions of the first characters it gets, handing each to the export
+     */
+    private void flushTrie(int limit, boolean zeroScores,
+                           BiConsumer<Collection<Character>, BiConsumer<Character, BiConsumer<String, Map<String, Double>>>> writer) {
+        long now = System.currentTimeMillis();
+        flushedTrieNodes.set(TrieDataStore.getTrieSize());
+        flushedTrieBytes.set(TrieDataStore.getTrieMemoryBytes());
+        BiFunction<String, LinkedHashMap<String, Long>, Map<String, Double>> toStoredScores = (prefix, suggestions) -> {
+            Map<String, Double> prefixToSuggestionListWithScoreMap = new HashMap<>();
+            suggestions.forEach((suggestion, score) ->
+                    prefixToSuggestionListWithScoreMap.put(suggestion, scoreDecay.stored(zeroScores ? 0 : score, now)));
+            return prefixToSuggestionListWithScoreMap;
+        };
+        if (trieDataStore.isTrackingChanges()) {
+            // only the prefixes whose top suggestions changed since the last flush, a partition per first character
+            Map<Character, Set<String>> changedPrefixes = trieDataStore.getChangedPrefixes();
+            writer.accept(changedPrefixes.keySet(), (firstChar, sink) -> {
+                for (String prefix : changedPrefixes.get(firstChar))
+                    sink.accept(prefix, toStoredScores.apply(prefix, trieDataStore.suggestWithScores(prefix, limit)));
+            });
         } else {
-            redisIncreaseScoreOfExistingMembers(word, wordScore);
-//            memberScoreMapNew.remove(word);
+            // Export every prefix of the words stored in the TrieDataStore with its best scoring suggestions, one
+            // first character at a time, and flush the partitions in parallel
+            List<Character> firstChars = trieDataStore.getFirstChars().chars()
+                    .mapToObj(c -> (char) c)
+                    .collect(Collectors.toList());
+            writer.accept(firstChars, (firstChar, sink) ->
+                    trieDataStore.exportTopK(firstChar, limit, (prefix, suggestions) ->
+                            sink.accept(prefix, toStoredScores.apply(prefix, suggestions))));
         }
+        trieDataStore.clearChanges();
     }
 
-    private static boolean isWordInCache(String word, boolean wordAlreadyInCacheAsKey, List<String> suggestions) {
-        return wordAlreadyInCacheAsKey && suggestions.contains(word);
+    /**
+     * How much of the cache a run rewrote, the total is the number of keys over all the shards (DBSIZE)
+     */
+    private void reportTouchedPrefixes(int touched, int refreshed) {
+        long total = redisAccessService.executeOnEachShard(Jedis::dbSize).stream().mapToLong(Long::longValue).sum();
+        cleanupPrefixes.record(touched);
+        log.info("run touched {} of {} prefix keys ({}%), {} of them refreshed in the suggestion snapshot",
+                touched, total, String.format("%.2f", total == 0 ? 0d : 100d * touched / total), refreshed);
     }
 
+    /**
+     * The trie is shared by the scheduled run and bulk loads, they take turns through this (the scheduled run
+     * holds the same monitor), so one never flushes or resets the words of the other.
+     */
+    public synchronized <T> T runExclusively(Supplier<T> job) {
+        return job.get();
+    }
 
-    private void redisIncreaseScoreOfExistingMembers(String word, Long wordScore) {
-        List<String> allPrefixesForWord = extractAllPrefixes(word);
-        for (String prefix : allPrefixesForWord) {
-            long setSize = jedis.zcount(prefix, 0d, Double.MAX_VALUE);
-            if (setSize < redisSetSize) {
-                jedis.zincrby(prefix, wordScore, word);
+    public void logInputQuery(String word) {
+        // journaled first, a query counted in a drained buffer is then always in a segment the run compacts
+        queryJournal.append(word);
+        queryScoreMap.increment(word);
+        loggedQueries.increment();
+    }
+
+    /**
+     * New words go to the trie and reach redis with the next loadDataToRedis, words already in the cache are
+     * returned so their score can be increased in redis
+     * @param wordScores word to number of times it was queried
+     * @return word to score increment for the words already in the cache
+     */
+    public Map<String, Long> processQueries(Map<String, Long> wordScores) {
+        Set<String> wordsInCache = findWordsInCache(wordScores.keySet());
+        Map<String, Long> existingWordScores = new HashMap<>();
+        wordScores.forEach((word, wordScore) -> {
+            if (wordsInCache.contains(word)) {
+                existingWordScores.put(word, wordScore);
             } else {
-                jedis.zpopmin(prefix);
-                jedis.zincrby(prefix, wordScore, word);
+                trieDataStore.insertWord(word, wordScore);
             }
-        }
+        });
+        return existingWordScores;
+    }
 
+    /**
+     * A word is in the cache when it is a member of the sorted set of its own prefix, checked with one
+     * pipelined ZSCORE per word on the shard of the word (PackedPrefixStore.ownScores with the packed layout)
+     */
+    public Set<String> findWordsInCache(Collection<String> words) {
+        //FIXME: sometimes word can be already present as a prefix even if not encountered before
+            /*
+             eg . if we had earlier processed the word herself , her will be present as a prefix in cache even though it won't contain the word her same for word he
+                need to find a better approach to fix such issues.
+             */
+        if (isPacked())
+            return new HashSet<>(packedPrefixStore.ownScores(words).keySet());
+        Map<String, Response<Double>> scores = new ConcurrentHashMap<>();   // the shards are queued in parallel
+        redisAccessService.pipelined(words, Function.identity(), (pipeline, word) -> scores.put(word, pipeline.zscore(word, word)));
+        Set<String> wordsInCache = new HashSet<>();
+        scores.forEach((word, score) -> {
+            if (score.get() != null)
+                wordsInCache.add(word);
+        });
+        return wordsInCache;
     }
 
-    private List<String> extractAllPrefixes(String word) {
-        List<String> prefixes = new ArrayList<>();
-        for (int i = 1; i <= word.length(); i++) {
-            prefixes.add(word.substring(0, i));
-        }
-        return prefixes;
+    /**
+     * Gives the counts of the words with a prefix the cutover didn't get to back to the tracker for the next
+     * run, the other words are in their live keys now. A word that went live on some of its prefixes is counted
+     * again on those, losing it on the rest would be worse. The journal isn't compacted then, the segment of the
+     * run still holds the counts that went back.
+     * @return the counts that went live
+     */
+    private Map<String, Long> keepUncommitted(Map<String, Long> drainedQueryScores, Set<String> uncommittedPrefixes) {
+        if (uncommittedPrefixes.isEmpty())
+            return drainedQueryScores;
+        Map<String, Long> committedQueryScores = new HashMap<>();
+        drainedQueryScores.forEach((word, count) -> {
+            if (PrefixFlushService.extractAllPrefixes(word).stream().anyMatch(uncommittedPrefixes::contains))
+                queryScoreMap.add(word, count);
+            else
+                committedQueryScores.put(word, count);
+        });
+        log.warn("cutover left {} prefixes on their old lists, {} of {} queries wait for the next run", uncommittedPrefixes.size(),
+                drainedQueryScores.size() - committedQueryScores.size(), drainedQueryScores.size());
+        return committedQueryScores;
     }
 
+    /**
+     * Pushes the logged queries to redis without taking the system down. Every prefix the run touches is copied
+     * to a shadow key, changes are applied to the shadow keys only and then they are renamed over the live
+     * keys in blocks, so reads and query logging carry on at full speed during the whole run. When the cutover
+     * fails part way only the queries of the words whose prefixes it didn't get to wait for the next run.
+     * <p>
+     * With redis.layout=PACKED there are no shadow keys, every list is replaced with a single HSET and readers
+     * switch prefix by prefix. A run that fails once it started writing keeps what it wrote and drops the rest
+     * of its queries, only one that fails before that keeps them for the next run.
+     */
     @Scheduled(cron = "*/30 * * * * *")
-    public void cleanUpAndDataLoading() {
+    public synchronized void cleanUpAndDataLoading() {
+        if (queryScoreMap.size() < 5)
+            return;
+        // queries logged from here on go to a fresh buffer and wait for the next run
+        long start = System.nanoTime();
+        Map<String, Long> drainedQueryScores = queryScoreMap.drain();
+        long journalSegment = queryJournal.rotate();
+        droppedQueries.increment(queryScoreMap.getLastDroppedQueries());
+        cleanupQueries.record(drainedQueryScores.size());
+        Timer outcome = cleanupSuccess;
+        log.info("processing {} logged queries, logging rate {} queries/sec per core, {}",
+                drainedQueryScores.size(), String.format("%.1f", queryScoreMap.getLastQueriesPerSecondPerCore()),
+                queryScoreMap.getLastDrainReport());
+        Set<String> uncommittedPrefixes = null;
         try {
-            if (queryScoreMap.size() >= 5) {
-                systemDown = true;
-                for (Map.Entry<String, Long> entry : queryScoreMap.entrySet()) {
-                    Long wordScore = entry.getValue();
-                    String word = entry.getKey();
-                    processQuery(word, wordScore);
-                }
+            Map<String, Long> existingWordScores = processQueries(drainedQueryScores);
+            // only what the run changes is staged, flushed and re-read, the rest of the keyspace is left alone
+            Set<String> touchedPrefixes = new HashSet<>();
+            trieDataStore.getChangedPrefixes().values().forEach(touchedPrefixes::addAll);
+            for (String word : existingWordScores.keySet())
+                touchedPrefixes.addAll(PrefixFlushService.extractAllPrefixes(word));
+            if (isPacked()) {
+                uncommittedPrefixes = Collections.emptySet();   // from here on part of the counts may be live
+                packedPrefixStore.incrementScores(existingWordScores);
                 loadDataToRedis();
-                queryScoreMap = new HashMap<>();
-                trieDataStore.reset();
-                systemDown = false;
+            } else {
+                prefixFlushService.stageShadowCopies(touchedPrefixes);
+                prefixFlushService.incrementScores(existingWordScores, PrefixFlushService::shadowKey);
+                loadDataToRedis(PrefixFlushService::shadowKey);
+                uncommittedPrefixes = prefixFlushService.cutover(touchedPrefixes);
             }
+            // the counts are live, a restart must not replay them from the journal whatever happens next
+            if (uncommittedPrefixes.isEmpty())
+                queryJournal.compact(journalSegment);
+            else
+                outcome = cleanupPartial;
+            Map<String, Long> committedQueryScores = keepUncommitted(drainedQueryScores, uncommittedPrefixes);
+            refreshReadTiers(touchedPrefixes, committedQueryScores);
         } catch (Exception e) {
-            systemDown = false;
+            outcome = cleanupFailure;
+            if (uncommittedPrefixes == null)
+                drainedQueryScores.forEach(queryScoreMap::add);   // nothing went live, keep the counts for the next run
             log.error("What the actual fuck {}", e);
+        } finally {
+            trieDataStore.reset();
+            outcome.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * What follows a run that went live, the in process tiers catching up with redis. Failures are caught here,
+     * they don't change what the run committed or its outcome. A snapshot that missed a refresh serves the old
+     * lists of those prefixes until the next start, the fuzzy dictionary misses the words of the run.
+     */
+    private void refreshReadTiers(Set<String> touchedPrefixes, Map<String, Long> committedQueryScores) {
+        try {
+            int refreshed = suggestionSnapshotService.refresh(touchedPrefixes);
+            reportTouchedPrefixes(touchedPrefixes.size(), refreshed);
+        } catch (RuntimeException e) {
+            log.error("suggestion snapshot refresh after the run failed", e);
+        }
+        try {
+            fuzzySuggestService.addQueries(committedQueryScores);
+        } catch (RuntimeException e) {
+            log.error("adding the queries of the run to the fuzzy dictionary failed", e);
         }
     }
 }
@@ -0,0 +1,33 @@
+package com.type.ahead.search.service;
+
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.util.StreamUtils;
+import redis.clients.jedis.Jedis;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A lua script kept under resources/scripts, loaded with SCRIPT LOAD and then run by sha with EVALSHA
+ */
+public class LuaScript {
+    private final String source;
+
+    public LuaScript(String name) {
+        try {
+            source = StreamUtils.copyToString(new ClassPathResource("scripts/" + name).getInputStream(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not read lua script " + name, e);
+        }
+    }
+
+    /**
+     * SCRIPT LOAD is idempotent, calling it once per batch job keeps us safe from redis restarts
+     * and SCRIPT FLUSH without handling NOSCRIPT errors inside pipelines.
+     * @return sha1 to use with EVALSHA
+     */
+    public String load(Jedis jedis) {
+        return jedis.scriptLoad(source);
+    }
+}
@@ -0,0 +1,248 @@
+package com.type.ahead.search.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import redis.clients.jedis.Connection;
+import redis.clients.jedis.DefaultJedisClientConfig;
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Protocol;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.resps.Tuple;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Opt in near cache of suggestion lists in front of redis for the prefixes the snapshot doesn't hold, bounded
+ * to nearcache.max.prefixes lists with W-TinyLFU eviction (Caffeine), so a skewed keystroke load is answered in
+ * process. Redis tells us when a list changes: every shard has a listener connection with CLIENT TRACKING in
+ * broadcast mode redirected to itself and subscribed to __redis__:invalidate, any write to a key (the trim and
+ * add of a flush, a ZINCRBY, the rename of the cutover) drops its list here. Broadcast mode over RESP2 works
+ * with jedis 4 and doesn't need tracking turned on for the pooled read connections.
+ * <p>
+ * While the listener of a shard is down the prefixes of that shard bypass the cache, it is emptied when a
+ * listener reconnects, a redis can have changed anything in between.
+ * <p>
+ * Sorted set layout only: with redis.layout=PACKED redis reports the bucket hash a list is in and not its prefix,
+ * the near cache stays off then.
+ */
+@Service
+@Slf4j
+public class NearCacheService {
+    private static final String INVALIDATE_CHANNEL = "__redis__:invalidate";
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final String SHADOW_PREFIX = PrefixFlushService.shadowKey("");
+
+    @Value("${nearcache.enabled}")
+    boolean nearCacheEnabled;
+
+    @Value("${nearcache.max.prefixes}")
+    Integer maxPrefixes;
+
+    @Value("${redis.layout}")
+    PackedPrefixStore.Layout redisLayout;
+
+    @Value("${redis.timeout.millis}")
+    Integer timeoutMillis;
+
+    @Autowired
+    private RedisShards redisShards;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    private Cache<String, List<Tuple>> cache;
+    private Counter invalidations;
+    // bumped by every invalidation, a list read from redis is only kept when none came in while it was read
+    private final AtomicLong invalidationSequence = new AtomicLong();
+    private volatile boolean[] listening;
+    private final List<Listener> listeners = new ArrayList<>();
+
+    @PostConstruct
+    public void start() {
+        if (nearCacheEnabled && redisLayout == PackedPrefixStore.Layout.PACKED) {
+            log.warn("nearcache.enabled is ignored with redis.layout=PACKED");
+            nearCacheEnabled = false;
+        }
+        if (!nearCacheEnabled)
+            return;
+        cache = Caffeine.newBuilder().maximumSize(maxPrefixes).recordStats().build();
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "typeahead.nearcache");
+        invalidations = Counter.builder("typeahead.nearcache.invalidations")
+                .description("keys redis reported changed, cached or not, shadow keys aside")
+                .register(meterRegistry);
+        listening = new boolean[redisShards.size()];
+        for (int shard = 0; shard < redisShards.size(); shard++) {
+            Listener listener = new Listener(shard);
+            listeners.add(listener);
+            listener.start();
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        listeners.forEach(Listener::shutdown);
+    }
+
+    public boolean isEnabled() {
+        return nearCacheEnabled;
+    }
+
+    /**
+     * @return the whole suggestion list of the prefix, null when it is not cached or can't be trusted right now
+     */
+    public List<Tuple> lookup(String prefix) {
+        if (!nearCacheEnabled || !listening[redisShards.shardOf(prefix)])
+            return null;
+        return cache.getIfPresent(prefix);
+    }
+
+    /**
+     * Reads the whole suggestion list of the prefix from redis with reader and keeps it, unless redis reported a
+     * change while it was being read (the list may already be outdated then). The list is put first and dropped
+     * again when an invalidation came in since the read: one that bumped the sequence after the check here
+     * removes the list itself, as invalidate drops the keys after bumping it.
+     */
+    public List<Tuple> load(String prefix, Function<String, List<Tuple>> reader) {
+        long sequence = invalidationSequence.get();
+        List<Tuple> suggestions = reader.apply(prefix);
+        if (nearCacheEnabled && listening[redisShards.shardOf(prefix)]) {
+            cache.put(prefix, suggestions);
+            if (invalidationSequence.get() != sequence)
+                cache.invalidate(prefix);
+        }
+        return suggestions;
+    }
+
+    /**
+     * @return true when the listeners of all shards are connected, i.e. every prefix can be cached
+     */
+    public boolean isTracking() {
+        if (!nearCacheEnabled)
+            return false;
+        for (boolean shardListening : listening) {
+            if (!shardListening)
+                return false;
+        }
+        return true;
+    }
+
+    public long size() {
+        return nearCacheEnabled ? cache.estimatedSize() : 0;
+    }
+
+    public double hitRate() {
+        return nearCacheEnabled ? cache.stats().hitRate() : 0d;
+    }
+
+    private void invalidate(List<?> keys) {
+        if (keys == null) {                         // FLUSHALL/FLUSHDB, or we lost track of what changed
+            invalidationSequence.incrementAndGet();
+            cache.invalidateAll();
+            return;
+        }
+        // the shadow keys a run writes are never read, only the rename of the cutover changes a cached list
+        List<String> prefixes = new ArrayList<>(keys.size());
+        for (Object key : keys) {
+            String prefix = new String((byte[]) key, StandardCharsets.UTF_8);
+            if (!prefix.startsWith(SHADOW_PREFIX))
+                prefixes.add(prefix);
+        }
+        if (prefixes.isEmpty())
+            return;
+        invalidationSequence.incrementAndGet();
+        invalidations.increment(prefixes.size());
+        cache.invalidateAll(prefixes);
+    }
+
+    private synchronized void setListening(int shard, boolean on) {
+        boolean[] next = listening.clone();
+        next[shard] = on;
+        listening = next;
+    }
+
+    /**
+     * Holds the tracking connection of one shard and applies its invalidation messages, reconnects until shut down
+     */
+    private class Listener extends Thread {
+        private final int shard;
+        private volatile boolean running = true;
+        private volatile Connection connection;
+
+        Listener(int shard) {
+            super("nearcache-invalidation-" + redisShards.endpoint(shard));
+            setDaemon(true);
+            this.shard = shard;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try (Connection tracking = new Connection(HostAndPort.from(redisShards.endpoint(shard)),
+                        DefaultJedisClientConfig.builder().timeoutMillis(timeoutMillis).build())) {
+                    connection = tracking;
+                    subscribe(tracking);
+                    invalidate(null);
+                    setListening(shard, true);
+                    log.info("near cache tracking {}", redisShards.endpoint(shard));
+                    tracking.setTimeoutInfinite();
+                    while (running) {
+                        List<Object> message = tracking.getUnflushedObjectMultiBulkReply();
+                        if ("message".equals(new String((byte[]) message.get(0), StandardCharsets.UTF_8)))
+                            invalidate((List<?>) message.get(2));
+                    }
+                } catch (JedisException e) {
+                    if (running)
+                        log.warn("near cache lost tracking of {}, bypassing it until reconnected", redisShards.endpoint(shard), e);
+                } catch (RuntimeException e) {
+                    // a message we can't read, the listener must not die with the shard left untracked
+                    log.error("near cache tracking of {} failed, bypassing it until reconnected", redisShards.endpoint(shard), e);
+                } finally {
+                    setListening(shard, false);
+                    invalidate(null);
+                }
+                sleepBeforeReconnect();
+            }
+        }
+
+        private void subscribe(Connection tracking) {
+            tracking.sendCommand(Protocol.Command.CLIENT, "ID");
+            long clientId = tracking.getIntegerReply();
+            tracking.sendCommand(Protocol.Command.CLIENT, "TRACKING", "ON", "REDIRECT", String.valueOf(clientId), "BCAST");
+            tracking.getStatusCodeReply();
+            tracking.sendCommand(Protocol.Command.SUBSCRIBE, INVALIDATE_CHANNEL);
+            tracking.getObjectMultiBulkReply();
+        }
+
+        private void sleepBeforeReconnect() {
+            if (!running)
+                return;
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            interrupt();
+            Connection current = connection;
+            if (current != null)
+                current.close();
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package com.type.ahead.search.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.type.ahead.search.util.PackedTopK;
+import com.type.ahead.search.util.ScoreDecay;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+import redis.clients.jedis.resps.Tuple;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Packed layout of the prefix index, an alternative to a sorted set key per prefix that repeats every word in
+ * every one of its prefix sets:
+ * <ul>
+ * <li>words are interned per first character, hash "w:{c}" word to id and hashes "i:{c}:{id / 128}" id to word
+ * (intern_words.lua, ids never change)</li>
+ * <li>prefixes are spread over redis.packed.buckets hashes per first character by the hash of the prefix,
+ * hash "t:{c}:{bucket}" with a field per prefix</li>
+ * <li>the field holds the prefix's suggestion list as PackedTopK, word ids and scores</li>
+ * </ul>
+ * The memory is saved when redis keeps the bucket hashes listpack encoded, which needs every bucket within
+ * hash-max-listpack-entries fields and every list within hash-max-listpack-value bytes. Size redis.packed.buckets
+ * for about 100 prefixes per bucket and run redis with hash-max-listpack-entries 512 and hash-max-listpack-value
+ * 128 (16 suggestions take 40 to 70 bytes), a bucket that grows past either limit silently becomes a regular hash.
+ * Everything of a first character stays on its shard. A read is one HGET, the words come from an in process
+ * id to word cache that needs no invalidation as ids never change (until the keys are deleted, clearWordCache
+ * after flushing redis), a miss costs one pipeline of HGETs more.
+ * <p>
+ * Used instead of the sorted sets with redis.layout=PACKED. A list is read, changed in process and written back
+ * with one HSET, readers see the old or the new list of a prefix. The changes a list gets are the ones the
+ * scripts of PrefixFlushService make to a sorted set (trim and add, merge, increment), the lists of a batch are
+ * read and written in one pipeline each. That is not atomic against another writer of the same prefix, the
+ * scheduled run and bulk loads take turns (JedisService.runExclusively) and nothing else writes.
+ */
+@Service
+public class PackedPrefixStore {
+    /**
+     * How the prefix index is kept in redis (redis.layout), a sorted set per prefix or this packed layout
+     */
+    public enum Layout {
+        ZSET, PACKED
+    }
+
+    @Value("${redis.sorted.set.size}")
+    Integer redisSetSize;
+
+    @Value("${redis.packed.buckets}")
+    Integer buckets;
+
+    @Value("${redis.packed.word.cache.size}")
+    Integer wordCacheSize;
+
+    @Value("${redis.flush.batch.size}")
+    Integer flushBatchSize;
+
+    @Autowired
+    private RedisAccessService redisAccessService;
+
+    @Autowired
+    private ScoreDecay scoreDecay;
+
+    private static final int ID_BUCKET_BITS = 7;   // 128 ids per id to word hash, see intern_words.lua
+
+    private final LuaScript internWordsScript = new LuaScript("intern_words.lua");
+    // first char << 32 | id -> word
+    private Cache<Long, String> words;
+
+    @PostConstruct
+    public void init() {
+        words = Caffeine.newBuilder().maximumSize(wordCacheSize).build();
+    }
+
+    public String bucketKey(String prefix) {
+        return "t:" + prefix.charAt(0) + ":" + Math.floorMod(prefix.hashCode(), buckets);
+    }
+
+    public static String wordIdsKey(char firstChar) {
+        return "w:" + firstChar;
+    }
+
+    public static String idWordsKey(char firstChar) {
+        return "i:" + firstChar;
+    }
+
+    private static String idWordsKey(char firstChar, long id) {
+        return idWordsKey(firstChar) + ":" + (id >> ID_BUCKET_BITS);
+    }
+
+    /**
+     * Writes the suggestion lists of the prefixes, replacing what they had. Per shard in batches of
+     * redis.flush.batch.size prefixes: one intern_words.lua call per first character of the batch for the word
+     * ids, then one pipeline of HSETs.
+     * @param suggestionsOf suggestions with score for a prefix, prefixes without suggestions are skipped
+     * @return number of prefixes written
+     */
+    public long write(Collection<String> prefixes, Function<String, Map<String, Double>> suggestionsOf) {
+        return write(prefixes, suggestionsOf, (list, incoming) -> {
+            list.clear();
+            list.putAll(incoming);
+        });
+    }
+
+    /**
+     * Adds the suggestion lists of the prefixes the way trim_and_add.lua does (see PrefixFlushService.flush): the
+     * lowest scored suggestions of a list make room for all of the new ones
+     * @param suggestionsOf suggestions with score for a prefix, prefixes without suggestions are skipped
+     * @return number of prefixes written
+     */
+    public long flush(Collection<String> prefixes, Function<String, Map<String, Double>> suggestionsOf) {
+        return write(prefixes, suggestionsOf, this::trimAndAdd);
+    }
+
+    /**
+     * Adds the suggestion lists handed out by export, which is called once per first character, like flush
+     * (see PrefixFlushService.flushPartitions)
+     * @return number of prefixes written
+     */
+    public long flushPartitions(Collection<Character> firstChars, BiConsumer<Character, BiConsumer<String, Map<String, Double>>> export) {
+        return writePartitions(firstChars, export, this::trimAndAdd);
+    }
+
+    /**
+     * Merges the suggestion lists handed out by export into the lists in redis the way merge_top_k.lua does
+     * (see PrefixFlushService.mergePartitions), for bulk loads flushed in several parts
+     * @return number of prefixes written
+     */
+    public long mergePartitions(Collection<Character> firstChars, BiConsumer<Character, BiConsumer<String, Map<String, Double>>> export) {
+        return writePartitions(firstChars, export, this::merge);
+    }
+
+    private long writePartitions(Collection<Character> firstChars, BiConsumer<Character, BiConsumer<String, Map<String, Double>>> export,
+                                 ListUpdate update) {
+        long written = 0;
+        for (char firstChar : firstChars) {
+            Map<String, Map<String, Double>> partition = new LinkedHashMap<>();
+            export.accept(firstChar, partition::put);
+            written += write(partition.keySet(), partition::get, update);
+        }
+        return written;
+    }
+
+    private long write(Collection<String> prefixes, Function<String, Map<String, Double>> suggestionsOf, ListUpdate update) {
+        return redisAccessService.executeByShard(prefixes, Function.identity(), (jedis, shardPrefixes) -> {
+            String sha = internWordsScript.load(jedis);
+            long written = 0;
+            for (int from = 0; from < shardPrefixes.size(); from += flushBatchSize) {
+                Map<String, Map<String, Double>> batch = new LinkedHashMap<>();
+                Set<String> batchWords = new LinkedHashSet<>();
+                for (String prefix : shardPrefixes.subList(from, Math.min(from + flushBatchSize, shardPrefixes.size()))) {
+                    Map<String, Double> suggestions = suggestionsOf.apply(prefix);
+                    if (!suggestions.isEmpty()) {
+                        batch.put(prefix, suggestions);
+                        batchWords.addAll(suggestions.keySet());
+                    }
+                }
+                Map<String, Integer> ids = intern(jedis, sha, batchWords);
+                Map<String, Map<Integer, Double>> lists = readLists(jedis, batch.keySet());
+                batch.forEach((prefix, suggestions) -> {
+                    Map<Integer, Double> incoming = new HashMap<>();
+                    suggestions.forEach((word, score) -> incoming.put(ids.get(word), score));
+                    update.apply(lists.get(prefix), incoming);
+                });
+                written += writeLists(jedis, lists);
+            }
+            return written;
+        }).stream().mapToLong(Long::longValue).sum();
+    }
+
+    /**
+     * Adds to the score of words already in the cache in all of their prefix lists, the way increment_top_k.lua
+     * does: a word only takes the place of the lowest suggestion of a full list when its new score is higher.
+     * With score decay the increments count as seen now.
+     * @param wordScores word to score increment
+     */
+    public void incrementScores(Map<String, Long> wordScores) {
+        long now = System.currentTimeMillis();
+        redisAccessService.executeByShard(wordScores.keySet(), Function.identity(), (jedis, shardWords) -> {
+            String sha = internWordsScript.load(jedis);
+            for (int from = 0; from < shardWords.size(); from += flushBatchSize) {
+                List<String> batch = shardWords.subList(from, Math.min(from + flushBatchSize, shardWords.size()));
+                Map<String, Integer> ids = intern(jedis, sha, batch);
+                Set<String> prefixes = new LinkedHashSet<>();
+                for (String word : batch)
+                    prefixes.addAll(PrefixFlushService.extractAllPrefixes(word));
+                Map<String, Map<Integer, Double>> lists = readLists(jedis, prefixes);
+                for (String word : batch) {
+                    long count = wordScores.get(word);
+                    double increment = scoreDecay.isEnabled() ? scoreDecay.stored(count, now) : count;
+                    for (String prefix : PrefixFlushService.extractAllPrefixes(word))
+                        increment(lists.get(prefix), ids.get(word), increment);
+                }
+                writeLists(jedis, lists);
+            }
+            return null;
+        });
+    }
+
+    private void trimAndAdd(Map<Integer, Double> list, Map<Integer, Double> incoming) {
+        int extra = list.size() + incoming.size() - redisSetSize;
+        if (extra > 0) {
+            List<Map.Entry<Integer, Double>> lowestFirst = new ArrayList<>(list.entrySet());
+            lowestFirst.sort(Map.Entry.comparingByValue());
+            for (Map.Entry<Integer, Double> evicted : lowestFirst.subList(0, Math.min(extra, lowestFirst.size())))
+                list.remove(evicted.getKey());
+        }
+        list.putAll(incoming);
+    }
+
+    private void merge(Map<Integer, Double> list, Map<Integer, Double> incoming) {
+        incoming.forEach((id, score) -> {
+            Double current = list.get(id);
+            if (current != null)
+                list.put(id, Math.max(current, score));
+            else
+                addOrEvictLowest(list, id, score);
+        });
+    }
+
+    private void increment(Map<Integer, Double> list, int id, double increment) {
+        Double current = list.get(id);
+        if (current != null)
+            list.put(id, scoreDecay.isEnabled() ? scoreDecay.add(current, increment) : current + increment);
+        else
+            addOrEvictLowest(list, id, increment);
+    }
+
+    /**
+     * Adds the suggestion to a list that isn't full, to a full one only in place of its lowest suggestion when
+     * the score is higher
+     */
+    private void addOrEvictLowest(Map<Integer, Double> list, int id, double score) {
+        if (list.size() < redisSetSize) {
+            list.put(id, score);
+            return;
+        }
+        Map.Entry<Integer, Double> lowest = Collections.min(list.entrySet(), Map.Entry.comparingByValue());
+        if (score > lowest.getValue()) {
+            list.remove(lowest.getKey());
+            list.put(id, score);
+        }
+    }
+
+    /**
+     * Ids of the words, new words get theirs from intern_words.lua, one call per first character. The script
+     * is given the id to word hashes the next ids fall in and is called again when other words got ids between
+     * counting them and the call.
+     */
+    private Map<String, Integer> intern(Jedis jedis, String sha, Collection<String> wordsToIntern) {
+        Map<Character, List<String>> wordsByFirstChar = new HashMap<>();
+        for (String word : wordsToIntern)
+            wordsByFirstChar.computeIfAbsent(word.charAt(0), c -> new ArrayList<>()).add(word);
+        Map<String, Integer> ids = new HashMap<>();
+        wordsByFirstChar.forEach((firstChar, wordList) -> {
+            List<Long> wordIds = null;
+            while (wordIds == null) {
+                long interned = jedis.hlen(wordIdsKey(firstChar));
+                List<String> keys = new ArrayList<>();
+                keys.add(wordIdsKey(firstChar));
+                for (long id = interned + 1; id >> ID_BUCKET_BITS <= interned + wordList.size() >> ID_BUCKET_BITS; id += 1 << ID_BUCKET_BITS)
+                    keys.add(idWordsKey(firstChar, id));
+                List<String> args = new ArrayList<>(1 + wordList.size());
+                args.add(String.valueOf(interned));
+                args.addAll(wordList);
+                @SuppressWarnings("unchecked")
+                List<Long> result = (List<Long>) jedis.evalsha(sha, keys, args);
+                wordIds = result;
+            }
+            for (int i = 0; i < wordList.size(); i++) {
+                int id = wordIds.get(i).intValue();
+                ids.put(wordList.get(i), id);
+                words.put(wordKey(firstChar, id), wordList.get(i));
+            }
+        });
+        return ids;
+    }
+
+    /**
+     * @return the lists of the prefixes as id to score, empty for the prefixes without one
+     */
+    private Map<String, Map<Integer, Double>> readLists(Jedis jedis, Collection<String> prefixes) {
+        Map<String, Response<byte[]>> responses = new LinkedHashMap<>();
+        Pipeline pipeline = jedis.pipelined();
+        for (String prefix : prefixes)
+            responses.put(prefix, pipeline.hget(bytes(bucketKey(prefix)), bytes(prefix)));
+        pipeline.sync();
+        Map<String, Map<Integer, Double>> lists = new LinkedHashMap<>();
+        responses.forEach((prefix, response) -> {
+            Map<Integer, Double> list = new HashMap<>();
+            if (response.get() != null) {
+                PackedTopK.Entries entries = PackedTopK.decode(response.get(), Integer.MAX_VALUE);
+                for (int i = 0; i < entries.size; i++)
+                    list.put(entries.ids[i], entries.scores[i]);
+            }
+            lists.put(prefix, list);
+        });
+        return lists;
+    }
+
+    /**
+     * @return number of lists written, the empty ones are skipped
+     */
+    private long writeLists(Jedis jedis, Map<String, Map<Integer, Double>> lists) {
+        Pipeline pipeline = jedis.pipelined();
+        long written = 0;
+        for (Map.Entry<String, Map<Integer, Double>> prefixList : lists.entrySet()) {
+            if (prefixList.getValue().isEmpty())
+                continue;
+            List<Map.Entry<Integer, Double>> ranked = new ArrayList<>(prefixList.getValue().entrySet());
+            ranked.sort(Map.Entry.<Integer, Double>comparingByValue().reversed());
+            int[] rankedIds = new int[ranked.size()];
+            double[] scores = new double[ranked.size()];
+            for (int i = 0; i < ranked.size(); i++) {
+                rankedIds[i] = ranked.get(i).getKey();
+                scores[i] = ranked.get(i).getValue();
+            }
+            pipeline.hset(bytes(bucketKey(prefixList.getKey())), bytes(prefixList.getKey()), PackedTopK.encode(rankedIds, scores, ranked.size()));
+            written++;
+        }
+        pipeline.sync();
+        return written;
+    }
+
+    /**
+     * @return up to limit suggestions of the prefix, highest score first
+     */
+    public List<Tuple> read(String prefix, int limit) {
+        if (prefix.isEmpty())
+            return Collections.emptyList();
+        byte[] packed = redisAccessService.execute(prefix, jedis -> jedis.hget(bytes(bucketKey(prefix)), bytes(prefix)));
+        return packed == null ? Collections.emptyList() : suggestions(prefix, packed, limit);
+    }
+
+    /**
+     * Whole lists of many prefixes, one pipeline per shard
+     * @return the suggestions of every prefix highest score first, empty for the prefixes without a list
+     */
+    public Map<String, List<Tuple>> readAll(Collection<String> prefixes) {
+        Map<String, List<Tuple>> lists = new HashMap<>();
+        redisAccessService.executeByShard(prefixes, Function.identity(), (jedis, shardPrefixes) -> {
+            Map<String, Response<byte[]>> responses = new HashMap<>();
+            Pipeline pipeline = jedis.pipelined();
+            for (String prefix : shardPrefixes)
+                responses.put(prefix, pipeline.hget(bytes(bucketKey(prefix)), bytes(prefix)));
+            pipeline.sync();
+            return responses;
+        }).forEach(responses -> responses.forEach((prefix, response) -> lists.put(prefix,
+                response.get() == null ? Collections.emptyList() : suggestions(prefix, response.get(), Integer.MAX_VALUE))));
+        return lists;
+    }
+
+    private List<Tuple> suggestions(String prefix, byte[] packed, int limit) {
+        PackedTopK.Entries entries = PackedTopK.decode(packed, limit);
+        char firstChar = prefix.charAt(0);
+        String[] suggestions = new String[entries.size];
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < entries.size; i++) {
+            suggestions[i] = words.getIfPresent(wordKey(firstChar, entries.ids[i]));
+            if (suggestions[i] == null)
+                missing.add(i);
+        }
+        if (!missing.isEmpty()) {
+            List<byte[]> found = redisAccessService.execute(prefix, jedis -> {
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<byte[]>> responses = new ArrayList<>(missing.size());
+                for (int entry : missing)
+                    responses.add(pipeline.hget(bytes(idWordsKey(firstChar, entries.ids[entry])), bytes(String.valueOf(entries.ids[entry]))));
+                pipeline.sync();
+                List<byte[]> foundWords = new ArrayList<>(responses.size());
+                responses.forEach(response -> foundWords.add(response.get()));
+                return foundWords;
+            });
+            for (int i = 0; i < missing.size(); i++) {
+                int entry = missing.get(i);
+                suggestions[entry] = new String(found.get(i), StandardCharsets.UTF_8);
+                words.put(wordKey(firstChar, entries.ids[entry]), suggestions[entry]);
+            }
+        }
+        List<Tuple> tuples = new ArrayList<>(entries.size);
+        for (int i = 0; i < entries.size; i++)
+            tuples.add(new Tuple(suggestions[i], entries.scores[i]));
+        return tuples;
+    }
+
+    /**
+     * A word is in the cache when it is in the list of its own prefix (the ZSCORE of the word in its own sorted
+     * set), checked with one pipeline per shard of its id and its list
+     * @return the score of every word that is in the cache
+     */
+    public Map<String, Double> ownScores(Collection<String> wordsToCheck) {
+        Map<String, Double> scores = new ConcurrentHashMap<>();   // the shards are read in parallel
+        redisAccessService.executeByShard(wordsToCheck, Function.identity(), (jedis, shardWords) -> {
+            Map<String, Response<String>> ids = new HashMap<>();
+            Map<String, Response<byte[]>> lists = new HashMap<>();
+            Pipeline pipeline = jedis.pipelined();
+            for (String word : shardWords) {
+                if (word.isEmpty())
+                    continue;
+                ids.put(word, pipeline.hget(wordIdsKey(word.charAt(0)), word));
+                lists.put(word, pipeline.hget(bytes(bucketKey(word)), bytes(word)));
+            }
+            pipeline.sync();
+            ids.forEach((word, id) -> {
+                byte[] packed = lists.get(word).get();
+                if (id.get() == null || packed == null)
+                    return;
+                int wordId = Integer.parseInt(id.get());
+                PackedTopK.Entries entries = PackedTopK.decode(packed, Integer.MAX_VALUE);
+                for (int i = 0; i < entries.size; i++) {
+                    if (entries.ids[i] == wordId)
+                        scores.put(word, entries.scores[i]);
+                }
+            });
+            return null;
+        });
+        return scores;
+    }
+
+    /**
+     * Every word ever interned, on all the shards at once, including the ones since pushed out of their lists
+     * (see ownScores)
+     */
+    public List<String> internedWords(int scanCount) {
+        return fieldsOfHashes(wordIdsKey('*'), scanCount);
+    }
+
+    /**
+     * Every prefix with a list, on all the shards at once
+     */
+    public List<String> prefixes(int scanCount) {
+        return fieldsOfHashes("t:*", scanCount);
+    }
+
+    private List<String> fieldsOfHashes(String keyPattern, int scanCount) {
+        List<String> fields = new ArrayList<>();
+        redisAccessService.executeOnEachShard(jedis -> {
+            List<String> shardFields = new ArrayList<>();
+            ScanParams keys = new ScanParams().match(keyPattern).count(scanCount);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> page = jedis.scan(cursor, keys, "hash");
+                for (String key : page.getResult()) {
+                    String fieldCursor = ScanParams.SCAN_POINTER_START;
+                    do {
+                        ScanResult<Map.Entry<String, String>> fieldPage = jedis.hscan(key, fieldCursor, new ScanParams().count(scanCount));
+                        fieldPage.getResult().forEach(field -> shardFields.add(field.getKey()));
+                        fieldCursor = fieldPage.getCursor();
+                    } while (!ScanParams.SCAN_POINTER_START.equals(fieldCursor));
+                }
+                cursor = page.getCursor();
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+            return shardFields;
+        }).forEach(fields::addAll);
+        return fields;
+    }
+
+    /**
+     * Drops the in process id to word lookups, e.g. after the redis behind them was flushed
+     */
+    public void clearWordCache() {
+        words.invalidateAll();
+    }
+
+    private static long wordKey(char firstChar, int id) {
+        return (long) firstChar << 32 | id;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Changes the list of a prefix, id to score, in place with the incoming suggestions
+     */
+    @FunctionalInterface
+    private interface ListUpdate {
+        void apply(Map<Integer, Double> list, Map<Integer, Double> incoming);
+    }
+}
@@ -0,0 +1,382 @@
+package com.type.ahead.search.service;
+
+import com.type.ahead.search.util.ScoreDecay;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+
+/**
+ * Writes prefix suggestion lists to redis. Each prefix is a single EVALSHA of trim_and_add.lua (trim and add
+ * in one call instead of exists/zcount/zremrangeByRank/zadd) and the calls are sent in pipelined batches of
+ * redis.flush.batch.size, so a flush costs one round trip per batch instead of up to four per prefix.
+ * Score increments of words already in the cache go out the same way, one increment_top_k.lua call per word.
+ * <p>
+ * The periodic rebuild doesn't write to the live prefix keys: it copies every prefix it is going to touch to a
+ * shadow key, applies its changes there and then renames the shadow keys over the live ones in MULTI/EXEC blocks
+ * of redis.flush.batch.size renames, so readers keep reading the old lists until they switch to the new ones. A
+ * single block for all of them would hold up every other client of the shard until the last rename is done.
+ * <p>
+ * A full flush of the trie goes through flushPartitions: the trie is exported one first character at a time,
+ * redis.flush.parallelism partitions at once, each on its own pooled connection.
+ * <p>
+ * With several redis shards every call is split up by the first character of the prefix (see RedisShards) and
+ * the shards are written at once. The cutover is atomic per block of a shard, not across blocks or shards.
+ */
+@Service
+@Slf4j
+public class PrefixFlushService {
+    @Value("${redis.sorted.set.size}")
+    Integer redisSetSize;
+
+    @Value("${redis.flush.batch.size}")
+    Integer flushBatchSize;
+
+    @Value("${redis.flush.parallelism}")
+    Integer flushParallelism;
+
+    @Autowired
+    private RedisAccessService redisAccessService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ScoreDecay scoreDecay;
+
+    private static final String SHADOW_KEY_PREFIX = "shadow:";
+
+    private final LuaScript trimAndAddScript = new LuaScript("trim_and_add.lua");
+    private final LuaScript incrementTopKScript = new LuaScript("increment_top_k.lua");
+    private final LuaScript mergeTopKScript = new LuaScript("merge_top_k.lua");
+
+    // numbers of the last flush, also logged after every flush
+    @Getter
+    private volatile long lastFlushPrefixes;
+    @Getter
+    private volatile long lastFlushMillis;
+
+    // looked up once, recording is then a few atomic adds
+    private Timer flushTimer;
+    private DistributionSummary flushPrefixes;
+    private Timer cutoverTimer;
+
+    // runs the partitions of flushPartitions and mergePartitions, kept for the life of the bean since an ingest
+    // flushes every ingest.flush.words
+    private ForkJoinPool flushPool;
+
+    @PostConstruct
+    public void init() {
+        flushPool = new ForkJoinPool(flushParallelism);
+        flushTimer = Timer.builder("typeahead.flush").description("prefix flushes to redis").register(meterRegistry);
+        flushPrefixes = DistributionSummary.builder("typeahead.flush.prefixes").description("prefixes written per flush")
+                .register(meterRegistry);
+        cutoverTimer = Timer.builder("typeahead.cutover").description("renaming the shadow keys over the live keys")
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void stop() {
+        flushPool.shutdown();
+    }
+
+    /**
+     * @param prefixes       prefix keys to write
+     * @param suggestionsOf  suggestions with score for a prefix, prefixes without suggestions are skipped
+     * @return number of prefixes written
+     */
+    public long flush(Collection<String> prefixes, Function<String, Map<String, Double>> suggestionsOf) {
+        return flush(prefixes, suggestionsOf, UnaryOperator.identity());
+    }
+
+    /**
+     * @param prefixes       prefix keys to write
+     * @param suggestionsOf  suggestions with score for a prefix, prefixes without suggestions are skipped
+     * @param keyOf          redis key to write for a prefix, e.g. PrefixFlushService::shadowKey
+     * @return number of prefixes written
+     */
+    public long flush(Collection<String> prefixes, Function<String, Map<String, Double>> suggestionsOf, UnaryOperator<String> keyOf) {
+        long start = System.currentTimeMillis();
+        String maxSize = String.valueOf(redisSetSize);
+        long written = redisAccessService.executeByShard(prefixes, Function.identity(), (jedis, shardPrefixes) ->
+                evalshaInBatches(jedis, trimAndAddScript, shardPrefixes::forEach,
+                        (pipeline, sha, prefix) -> queueTrimAndAdd(pipeline, sha, maxSize, keyOf.apply(prefix), suggestionsOf.apply(prefix)))
+        ).stream().mapToLong(Long::longValue).sum();
+        logFlush(written, System.currentTimeMillis() - start, redisAccessService.shardCount());
+        return written;
+    }
+
+    /**
+     * Flushes the suggestion lists handed out by export, which is called once per first character and hands every
+     * prefix starting with it and its suggestions to the sink it gets. First characters are flushed in parallel on
+     * redis.flush.parallelism threads, each one in pipelined batches on a pooled connection of its shard.
+     * @param firstChars  first characters of the trie
+     * @param export      hands out the prefixes of a first character, prefixes without suggestions are skipped
+     * @param keyOf       redis key to write for a prefix, e.g. PrefixFlushService::shadowKey
+     * @return number of prefixes written
+     */
+    public long flushPartitions(Collection<Character> firstChars, BiConsumer<Character, BiConsumer<String, Map<String, Double>>> export,
+                                UnaryOperator<String> keyOf) {
+        return writePartitions(trimAndAddScript, firstChars, export, keyOf);
+    }
+
+    /**
+     * Like flushPartitions, but merges the suggestions into the live lists with merge_top_k.lua instead of
+     * trimming them by rank: a suggestion only evicts the lowest member of a full list when its score is
+     * higher and one already in the list keeps the higher of the two scores. For bulk loads that flush a big
+     * file in several parts, the lists end up the same as with a single flush.
+     * @return number of prefixes written
+     */
+    public long mergePartitions(Collection<Character> firstChars, BiConsumer<Character, BiConsumer<String, Map<String, Double>>> export) {
+        return writePartitions(mergeTopKScript, firstChars, export, UnaryOperator.identity());
+    }
+
+    private long writePartitions(LuaScript script, Collection<Character> firstChars,
+                                 BiConsumer<Character, BiConsumer<String, Map<String, Double>>> export, UnaryOperator<String> keyOf) {
+        long start = System.currentTimeMillis();
+        String maxSize = String.valueOf(redisSetSize);
+        long written;
+        try {
+            written = flushPool.submit(() -> firstChars.parallelStream().mapToLong(firstChar ->
+                    redisAccessService.execute(String.valueOf(firstChar), jedis -> evalshaInBatches(jedis, script,
+                            (Consumer<Map.Entry<String, Map<String, Double>>> sink) ->
+                                    export.accept(firstChar, (prefix, suggestions) -> sink.accept(Map.entry(prefix, suggestions))),
+                            (pipeline, sha, prefixSuggestions) ->
+                                    queueTrimAndAdd(pipeline, sha, maxSize, keyOf.apply(prefixSuggestions.getKey()), prefixSuggestions.getValue())))
+            ).sum()).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("flush interrupted", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+        }
+        logFlush(written, System.currentTimeMillis() - start, flushParallelism);
+        return written;
+    }
+
+    private Response<Object> queueTrimAndAdd(Pipeline pipeline, String sha, String maxSize, String key, Map<String, Double> suggestions) {
+        if (suggestions.isEmpty())
+            return null;
+        List<String> args = new ArrayList<>(1 + 2 * suggestions.size());
+        args.add(maxSize);
+        suggestions.forEach((member, score) -> {
+            args.add(String.valueOf(score));
+            args.add(member);
+        });
+        return pipeline.evalsha(sha, Collections.singletonList(key), args);
+    }
+
+    private void logFlush(long written, long millis, int parallelism) {
+        lastFlushPrefixes = written;
+        lastFlushMillis = millis;
+        flushTimer.record(millis, TimeUnit.MILLISECONDS);
+        flushPrefixes.record(written);
+        log.info("flushed {} prefixes to redis in {} ms ({} prefixes/sec, batch size {}, parallelism {})",
+                written, millis, millis == 0 ? written : written * 1000 / millis, flushBatchSize, parallelism);
+    }
+
+    /**
+     * Adds to the score of words already in the cache. One EVALSHA of increment_top_k.lua per word updates all
+     * of its prefix sets atomically, a word only takes the place of the lowest member of a full set when its
+     * new score is higher. With score decay the increments count as seen now.
+     * @param wordScores word to score increment
+     */
+    public void incrementScores(Map<String, Long> wordScores) {
+        incrementScores(wordScores, UnaryOperator.identity());
+    }
+
+    /**
+     * @param wordScores word to score increment
+     * @param keyOf      redis key to write for a prefix, e.g. PrefixFlushService::shadowKey
+     */
+    public void incrementScores(Map<String, Long> wordScores, UnaryOperator<String> keyOf) {
+        String maxSize = String.valueOf(redisSetSize);
+        String decayed = scoreDecay.isEnabled() ? "1" : "0";
+        long now = System.currentTimeMillis();
+        redisAccessService.executeByShard(wordScores.entrySet(), Map.Entry::getKey, (jedis, shardWordScores) ->
+                evalshaInBatches(jedis, incrementTopKScript, shardWordScores::forEach, (pipeline, sha, wordScore) -> {
+                    List<String> keys = new ArrayList<>();
+                    for (String prefix : extractAllPrefixes(wordScore.getKey()))
+                        keys.add(keyOf.apply(prefix));
+                    String increment = String.valueOf(scoreDecay.isEnabled() ? scoreDecay.stored(wordScore.getValue(), now) : wordScore.getValue());
+                    return pipeline.evalsha(sha, keys, Arrays.asList(wordScore.getKey(), increment, maxSize, decayed));
+                }));
+    }
+
+    public static String shadowKey(String prefix) {
+        return SHADOW_KEY_PREFIX + prefix;
+    }
+
+    /**
+     * Starts a rebuild: every prefix gets a fresh shadow copy of its live sorted set (or no shadow key at all
+     * when it has no live key yet), left over shadow keys of a failed rebuild are replaced.
+     */
+    public void stageShadowCopies(Collection<String> prefixes) {
+        long replaced = redisAccessService.executeByShard(prefixes, Function.identity(), (jedis, shardPrefixes) -> {
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<Long>> deleted = new ArrayList<>(flushBatchSize);
+            long shardReplaced = 0;
+            for (String prefix : shardPrefixes) {
+                deleted.add(pipeline.del(shadowKey(prefix)));
+                pipeline.copy(prefix, shadowKey(prefix), true);
+                if (deleted.size() == flushBatchSize)
+                    shardReplaced += syncDeletes(pipeline, deleted);
+            }
+            return shardReplaced + syncDeletes(pipeline, deleted);
+        }).stream().mapToLong(Long::longValue).sum();
+        if (replaced > 0)
+            log.warn("replaced {} shadow keys left by a failed rebuild", replaced);
+    }
+
+    private static long syncDeletes(Pipeline pipeline, List<Response<Long>> deleted) {
+        pipeline.sync();
+        long count = deleted.stream().mapToLong(Response::get).sum();
+        deleted.clear();
+        return count;
+    }
+
+    /**
+     * Deletes the shadow keys of a rebuild the last process didn't finish, at startup before anything looks
+     * at the keyspace. They would count as cached prefixes and only go away when a run touches them again.
+     * @return number of shadow keys deleted
+     */
+    public long dropShadowKeys() {
+        long dropped = redisAccessService.executeOnEachShard(jedis -> {
+            long shardDropped = 0;
+            ScanParams scanParams = new ScanParams().match(shadowKey("*")).count(1000);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> page = jedis.scan(cursor, scanParams);
+                if (!page.getResult().isEmpty())
+                    shardDropped += jedis.unlink(page.getResult().toArray(new String[0]));
+                cursor = page.getCursor();
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+            return shardDropped;
+        }).stream().mapToLong(Long::longValue).sum();
+        if (dropped > 0)
+            log.warn("dropped {} shadow keys left by an unfinished rebuild", dropped);
+        return dropped;
+    }
+
+    /**
+     * Ends a rebuild: renames the shadow key of every prefix over its live key, redis.flush.batch.size renames
+     * per MULTI/EXEC, so readers see either the old or the new suggestion lists of a block and other clients
+     * get a turn between two blocks. A shard that fails doesn't stop the others.
+     * @return the prefixes that didn't go live, the ones of a block that failed and of all blocks after it on
+     * its shard, they keep their old lists and the run has to be redone for the words behind them
+     */
+    public Set<String> cutover(Collection<String> prefixes) {
+        long start = System.currentTimeMillis();
+        Map<Integer, List<String>> prefixesByShard = new HashMap<>();
+        for (String prefix : prefixes)
+            prefixesByShard.computeIfAbsent(redisAccessService.shardOf(prefix), shard -> new ArrayList<>()).add(prefix);
+        Set<String> uncommittedPrefixes = ConcurrentHashMap.newKeySet();
+        AtomicLong renamed = new AtomicLong();
+        prefixesByShard.entrySet().parallelStream().forEach(shardPrefixes -> {
+            AtomicInteger committed = new AtomicInteger();
+            try {
+                redisAccessService.executeOnShard(shardPrefixes.getKey(), jedis -> {
+                    cutoverShard(jedis, shardPrefixes.getValue(), committed, renamed);
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                List<String> remainder = shardPrefixes.getValue().subList(committed.get(), shardPrefixes.getValue().size());
+                uncommittedPrefixes.addAll(remainder);
+                log.error("cutover of shard {} failed after {} of {} prefixes, the other {} stay on the old lists",
+                        shardPrefixes.getKey(), committed.get(), shardPrefixes.getValue().size(), remainder.size(), e);
+            }
+        });
+        long millis = System.currentTimeMillis() - start;
+        cutoverTimer.record(millis, TimeUnit.MILLISECONDS);
+        log.info("cut over {} prefixes in {} ms", renamed.get(), millis);
+        return uncommittedPrefixes;
+    }
+
+    /**
+     * @param committed prefixes of the shard that went live, counted up block by block
+     */
+    private void cutoverShard(Jedis jedis, List<String> prefixes, AtomicInteger committed, AtomicLong renamed) {
+        for (int from = 0; from < prefixes.size(); from += flushBatchSize) {
+            List<String> block = prefixes.subList(from, Math.min(from + flushBatchSize, prefixes.size()));
+            Transaction transaction = jedis.multi();
+            for (String prefix : block)
+                transaction.rename(shadowKey(prefix), prefix);
+            long missing = transaction.exec().stream().filter(result -> result instanceof Exception).count();
+            if (missing > 0)
+                log.warn("{} of {} prefixes had no shadow key at cutover", missing, block.size());
+            renamed.addAndGet(block.size() - missing);
+            committed.addAndGet(block.size());
+        }
+    }
+
+    /**
+     * Runs one EVALSHA per item in pipelined batches of redis.flush.batch.size, all on the given connection
+     * @param items hands every item to the consumer it gets, e.g. list::forEach
+     * @return number of script calls made
+     */
+    private <T> long evalshaInBatches(Jedis jedis, LuaScript script, Consumer<Consumer<T>> items, ScriptCall<T> scriptCall) {
+        String sha = script.load(jedis);
+        Pipeline pipeline = jedis.pipelined();
+        List<Response<Object>> batch = new ArrayList<>(flushBatchSize);
+        long[] count = new long[1];
+        items.accept(item -> {
+            Response<Object> response = scriptCall.queue(pipeline, sha, item);
+            if (response == null)
+                return;
+            batch.add(response);
+            count[0]++;
+            if (batch.size() == flushBatchSize)
+                syncBatch(pipeline, batch);
+        });
+        syncBatch(pipeline, batch);
+        return count[0];
+    }
+
+    private void syncBatch(Pipeline pipeline, List<Response<Object>> batch) {
+        pipeline.sync();
+        for (Response<Object> response : batch) {
+            response.get();  // rethrows the error of a failed script call
+        }
+        batch.clear();
+    }
+
+    static List<String> extractAllPrefixes(String word) {
+        List<String> prefixes = new ArrayList<>();
+        for (int i = 1; i <= word.length(); i++) {
+            prefixes.add(word.substring(0, i));
+        }
+        return prefixes;
+    }
+
+    /**
+     * Queues the script call for one item, returns null to skip the item
+     */
+    @FunctionalInterface
+    private interface ScriptCall<T> {
+        Response<Object> queue(Pipeline pipeline, String sha, T item);
+    }
+}
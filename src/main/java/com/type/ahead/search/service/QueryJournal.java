@@ -0,0 +1,322 @@
+package com.type.ahead.search.service;
+
+import com.type.ahead.search.util.QueryTracker;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Append only journal of the logged queries, so the counts waiting for the next run survive a crash or a deploy.
+ * Request threads only queue the query, one writer thread appends everything queued to the current segment file
+ * through a FileChannel and fsyncs once per batch (group commit), a batch is what queued up during the last
+ * journal.fsync.interval.millis. A query is on disk within about two intervals after it was logged, when the
+ * writer is more than journal.max.pending queries behind new ones are only counted.
+ * <p>
+ * Segments are journal.dir/queries-{n}.log, a record is the length of the query, its UTF-8 bytes and a CRC32C
+ * of them. Every run starts a new segment when it drains the counts (rotate) and deletes the older ones once
+ * the counts are in redis (compact), a failed run keeps them, its counts go back to the tracker. Startup
+ * replays all segments into the tracker before anything else, a torn record at the end of a segment (a crash
+ * in the middle of a write) ends its replay.
+ * <p>
+ * A query logged in the instant of the drain can be counted by one run and journaled in the segment of the
+ * other, a crash before the next run then loses it. Counts a run flushed are replayed again when the service
+ * dies between the flush and the compaction.
+ */
+@Service
+@Slf4j
+public class QueryJournal {
+    private static final String SEGMENT_PREFIX = "queries-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+    private static final Object ROTATE = new Object();
+
+    // turned off when the journal can't be written any more
+    @Value("${journal.enabled}")
+    volatile boolean journalEnabled;
+
+    @Value("${journal.dir}")
+    String journalDir;
+
+    @Value("${journal.fsync.interval.millis}")
+    Integer fsyncIntervalMillis;
+
+    // queries waiting for the writer, above this new ones are counted but not journaled
+    @Value("${journal.max.pending}")
+    Integer maxPending;
+
+    @Autowired
+    private QueryTracker queryTracker;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // queries, ROTATE and Compact requests, in the order they were made
+    private final Queue<Object> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingQueries = new AtomicInteger();
+    // segment the last rotate switches to, the writer follows in queue order
+    private final AtomicLong lastSegment = new AtomicLong();
+    private Counter journaledQueries;
+    private Counter droppedQueries;
+    private Timer fsyncs;
+    private volatile boolean running;
+    private Thread writer;
+
+    /**
+     * Deletes the segments before keepFrom
+     */
+    private static final class Compact {
+        final long keepFrom;
+
+        Compact(long keepFrom) {
+            this.keepFrom = keepFrom;
+        }
+    }
+
+    /**
+     * Replays what the last process left in the journal into the query tracker and starts writing a new segment
+     */
+    @PostConstruct
+    public void start() throws IOException {
+        if (!journalEnabled)
+            return;
+        journaledQueries = Counter.builder("typeahead.journal.queries").description("queries written to the journal").register(meterRegistry);
+        droppedQueries = Counter.builder("typeahead.journal.dropped")
+                .description("queries counted but not journaled, the writer was journal.max.pending behind")
+                .register(meterRegistry);
+        fsyncs = Timer.builder("typeahead.journal.fsync").description("journal batches forced to disk").register(meterRegistry);
+        Path dir = Paths.get(journalDir);
+        Files.createDirectories(dir);
+        List<Long> segments = segments(dir);
+        replay(dir, segments);
+        lastSegment.set(segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1);
+        FileChannel channel = open(dir, lastSegment.get());
+        running = true;
+        writer = new Thread(() -> write(dir, channel), "query-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Writes what is still queued and closes the journal
+     */
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        if (!journalEnabled || writer == null)
+            return;
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join();
+    }
+
+    public boolean isEnabled() {
+        return journalEnabled;
+    }
+
+    /**
+     * Queues the query for the writer, never waits on the disk
+     */
+    public void append(String query) {
+        if (!journalEnabled)
+            return;
+        if (pendingQueries.incrementAndGet() > maxPending) {
+            pendingQueries.decrementAndGet();
+            droppedQueries.increment();
+            return;
+        }
+        pending.offer(query);
+    }
+
+    /**
+     * Starts a new segment for the queries appended from here on, call it right after draining the tracker
+     * @return the new segment, pass it to compact once the drained counts are in redis
+     */
+    public long rotate() {
+        if (!journalEnabled)
+            return 0;
+        long segment = lastSegment.incrementAndGet();
+        pending.offer(ROTATE);
+        return segment;
+    }
+
+    /**
+     * Deletes the segments before keepFrom (a rotate result), their queries are in redis
+     */
+    public void compact(long keepFrom) {
+        if (journalEnabled)
+            pending.offer(new Compact(keepFrom));
+    }
+
+    private void write(Path dir, FileChannel first) {
+        FileChannel channel = first;
+        long segment = lastSegment.get();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_RECORD_BYTES + 8);
+        CRC32C crc = new CRC32C();
+        long fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+        try {
+            while (true) {
+                boolean stopping = !running;
+                long batchStart = System.nanoTime();
+                int written = 0;
+                boolean dirty = false;
+                boolean drained = false;
+                Object next;
+                // under a steady stream the batch is cut after the interval, so the lag to disk stays bounded
+                while ((written & 1023) != 1023 || System.nanoTime() - batchStart < fsyncIntervalNanos) {
+                    if ((next = pending.poll()) == null) {
+                        drained = true;
+                        break;
+                    }
+                    if (next == ROTATE) {
+                        flush(channel, buffer);
+                        force(channel, batchStart);
+                        channel.close();
+                        channel = open(dir, ++segment);
+                        dirty = false;
+                    } else if (next instanceof Compact) {
+                        delete(dir, ((Compact) next).keepFrom);
+                    } else {
+                        pendingQueries.decrementAndGet();
+                        byte[] bytes = ((String) next).getBytes(StandardCharsets.UTF_8);
+                        if (bytes.length > MAX_RECORD_BYTES)
+                            continue;
+                        if (buffer.remaining() < bytes.length + 8)
+                            flush(channel, buffer);
+                        crc.reset();
+                        crc.update(bytes);
+                        buffer.putInt(bytes.length).put(bytes).putInt((int) crc.getValue());
+                        written++;
+                        dirty = true;
+                    }
+                }
+                if (dirty) {
+                    flush(channel, buffer);
+                    force(channel, batchStart);
+                }
+                if (written > 0)
+                    journaledQueries.increment(written);
+                if (stopping && drained)
+                    break;
+                if (drained)
+                    LockSupport.parkNanos(fsyncIntervalNanos);
+            }
+        } catch (IOException e) {
+            // the service keeps counting, only the durability of the counts is gone
+            log.error("query journal {} failed, logged queries are no longer journaled", dir, e);
+            journalEnabled = false;
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("could not close query journal segment {}", segment, e);
+            }
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    private void force(FileChannel channel, long batchStart) throws IOException {
+        channel.force(false);
+        fsyncs.record(System.nanoTime() - batchStart, TimeUnit.NANOSECONDS);
+    }
+
+    private static FileChannel open(Path dir, long segment) throws IOException {
+        return FileChannel.open(dir.resolve(SEGMENT_PREFIX + segment + SEGMENT_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void delete(Path dir, long keepFrom) throws IOException {
+        for (long segment : segments(dir)) {
+            if (segment < keepFrom)
+                Files.deleteIfExists(dir.resolve(SEGMENT_PREFIX + segment + SEGMENT_SUFFIX));
+        }
+    }
+
+    /**
+     * @return numbers of the segments in the directory, oldest first
+     */
+    private static List<Long> segments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private void replay(Path dir, List<Long> segments) throws IOException {
+        long start = System.currentTimeMillis();
+        Map<String, Long> counts = new HashMap<>();
+        long records = 0;
+        for (long segment : segments) {
+            Path file = dir.resolve(SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+            try (InputStream in = Files.newInputStream(file)) {
+                records += readSegment(file, new DataInputStream(new BufferedInputStream(in, 1 << 16)), counts);
+            }
+        }
+        counts.forEach(queryTracker::add);
+        if (!segments.isEmpty())
+            log.info("replayed {} journaled queries ({} distinct) from {} segments in {} ms",
+                    records, counts.size(), segments.size(), System.currentTimeMillis() - start);
+    }
+
+    private static long readSegment(Path file, DataInputStream in, Map<String, Long> counts) throws IOException {
+        CRC32C crc = new CRC32C();
+        long records = 0;
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < 0 || length > MAX_RECORD_BYTES) {
+                    log.warn("bad record length {} in {} after {} records, skipping the rest", length, file, records);
+                    return records;
+                }
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                int checksum = in.readInt();
+                crc.reset();
+                crc.update(bytes);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("checksum mismatch in {} after {} records, skipping the rest", file, records);
+                    return records;
+                }
+                counts.merge(new String(bytes, StandardCharsets.UTF_8), 1L, Long::sum);
+                records++;
+            }
+        } catch (EOFException e) {
+            return records;                          // end of the segment, or a record torn by a crash
+        }
+    }
+}
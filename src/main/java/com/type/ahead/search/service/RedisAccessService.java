@@ -0,0 +1,153 @@
+package com.type.ahead.search.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Every redis call goes through here, each call borrows a connection from the pool for its duration
+ * and hands it back, so no two threads ever share a connection.
+ * Calls for a prefix go to the shard of that prefix (see RedisShards), calls for many prefixes are split up
+ * by shard and run on all the shards at once, one connection per shard.
+ */
+@Service
+@Slf4j
+public class RedisAccessService {
+    @Autowired
+    private RedisShards redisShards;
+
+    public int shardCount() {
+        return redisShards.size();
+    }
+
+    public int shardOf(String prefix) {
+        return redisShards.shardOf(prefix);
+    }
+
+    /**
+     * Runs the commands on one pooled connection of the shard of prefix, keep several dependent commands in
+     * one call to avoid borrowing a connection per command.
+     * @param prefix logical prefix the commands are for, shadow keys are routed by their prefix too
+     */
+    public <T> T execute(String prefix, Function<Jedis, T> commands) {
+        return executeOnShard(redisShards.shardOf(prefix), commands);
+    }
+
+    public <T> T executeOnShard(int shard, Function<Jedis, T> commands) {
+        try (Jedis jedis = redisShards.pool(shard).getResource()) {
+            return commands.apply(jedis);
+        }
+    }
+
+    /**
+     * Runs the commands on every shard at once, for calls that are not about one prefix (dbsize, scan, ...)
+     * @return result of each shard in shard order
+     */
+    public <T> List<T> executeOnEachShard(Function<Jedis, T> commands) {
+        if (redisShards.size() == 1)
+            return Collections.singletonList(executeOnShard(0, commands));
+        return IntStream.range(0, redisShards.size()).parallel()
+                .mapToObj(shard -> executeOnShard(shard, commands))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Splits the items up by the shard of their prefix and runs job on the items of each shard, all shards at
+     * once on a connection of their own
+     * @return result of each shard that had items
+     */
+    public <T, R> List<R> executeByShard(Collection<T> items, Function<T, String> prefixOf, BiFunction<Jedis, List<T>, R> job) {
+        Map<Integer, List<T>> itemsByShard = new HashMap<>();
+        for (T item : items)
+            itemsByShard.computeIfAbsent(redisShards.shardOf(prefixOf.apply(item)), shard -> new ArrayList<>()).add(item);
+        if (itemsByShard.size() <= 1) {
+            List<R> results = new ArrayList<>();
+            itemsByShard.forEach((shard, shardItems) -> results.add(executeOnShard(shard, jedis -> job.apply(jedis, shardItems))));
+            return results;
+        }
+        return itemsByShard.entrySet().parallelStream()
+                .map(shardItems -> executeOnShard(shardItems.getKey(), jedis -> job.apply(jedis, shardItems.getValue())))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Queues the commands for every item on a pipeline of the shard of its prefix and syncs them, responses
+     * are only readable once this returns.
+     */
+    public <T> void pipelined(Collection<T> items, Function<T, String> prefixOf, BiConsumer<Pipeline, T> commands) {
+        executeByShard(items, prefixOf, (jedis, shardItems) -> {
+            Pipeline pipeline = jedis.pipelined();
+            for (T item : shardItems)
+                commands.accept(pipeline, item);
+            pipeline.sync();
+            return null;
+        });
+    }
+
+    /**
+     * What the keys matching the pattern take in redis over all the shards, MEMORY USAGE of every key (all elements
+     * counted, no sampling) pipelined per scan page
+     * @return number of keys and their bytes
+     */
+    public long[] memoryUsage(String keyPattern) {
+        long[] total = new long[2];
+        executeOnEachShard(jedis -> {
+            long[] shardTotal = new long[2];
+            ScanParams scanParams = new ScanParams().match(keyPattern).count(1000);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> page = jedis.scan(cursor, scanParams);
+                List<Response<Long>> usages = new ArrayList<>();
+                Pipeline pipeline = jedis.pipelined();
+                for (String key : page.getResult())
+                    usages.add(pipeline.memoryUsage(key, 0));
+                pipeline.sync();
+                for (Response<Long> usage : usages) {
+                    if (usage.get() != null) {
+                        shardTotal[0]++;
+                        shardTotal[1] += usage.get();
+                    }
+                }
+                cursor = page.getCursor();
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+            return shardTotal;
+        }).forEach(shardTotal -> {
+            total[0] += shardTotal[0];
+            total[1] += shardTotal[1];
+        });
+        return total;
+    }
+
+    /**
+     * Pool usage per shard, wait times are what callers spent blocked on getResource() and tell us when
+     * redis.pool.max.total is too small
+     */
+    public Map<String, Object> getPoolStats() {
+        Map<String, Object> statsByShard = new LinkedHashMap<>();
+        redisShards.asMap().forEach((endpoint, jedisPool) -> {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("active", jedisPool.getNumActive());
+            stats.put("idle", jedisPool.getNumIdle());
+            stats.put("waiters", jedisPool.getNumWaiters());
+            stats.put("maxTotal", jedisPool.getMaxTotal());
+            stats.put("borrowed", jedisPool.getBorrowedCount());
+            stats.put("created", jedisPool.getCreatedCount());
+            stats.put("meanBorrowWaitMillis", jedisPool.getMeanBorrowWaitTimeMillis());
+            stats.put("maxBorrowWaitMillis", jedisPool.getMaxBorrowWaitTimeMillis());
+            statsByShard.put(endpoint, stats);
+        });
+        return statsByShard;
+    }
+}
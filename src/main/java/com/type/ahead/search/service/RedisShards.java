@@ -0,0 +1,65 @@
+package com.type.ahead.search.service;
+
+import redis.clients.jedis.JedisPool;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The redis endpoints the prefix keyspace is split over, one connection pool each. A prefix lives on the shard
+ * of its first character, like a hash tag on the first character: all prefixes of a word (and their shadow
+ * keys) are on the same shard, so increment_top_k.lua and the cutover of a word never span two shards.
+ * Changing the number of shards moves most first characters, the cache has to be reloaded after that.
+ */
+public class RedisShards implements Closeable {
+    private final List<String> endpoints;
+    private final List<JedisPool> pools;
+
+    /**
+     * @param poolsByEndpoint pool per "host:port", in shard order
+     */
+    public RedisShards(LinkedHashMap<String, JedisPool> poolsByEndpoint) {
+        if (poolsByEndpoint.isEmpty())
+            throw new IllegalArgumentException("at least one redis shard is needed");
+        this.endpoints = new ArrayList<>(poolsByEndpoint.keySet());
+        this.pools = new ArrayList<>(poolsByEndpoint.values());
+    }
+
+    public int size() {
+        return pools.size();
+    }
+
+    public JedisPool pool(int shard) {
+        return pools.get(shard);
+    }
+
+    public String endpoint(int shard) {
+        return endpoints.get(shard);
+    }
+
+    /**
+     * @param prefix logical prefix, not the redis key, so a shadow key goes where its prefix goes
+     */
+    public int shardOf(String prefix) {
+        return prefix.isEmpty() ? 0 : shardOf(prefix.charAt(0));
+    }
+
+    public int shardOf(char firstChar) {
+        return firstChar % pools.size();
+    }
+
+    public Map<String, JedisPool> asMap() {
+        Map<String, JedisPool> poolsByEndpoint = new LinkedHashMap<>();
+        for (int shard = 0; shard < pools.size(); shard++)
+            poolsByEndpoint.put(endpoints.get(shard), pools.get(shard));
+        return poolsByEndpoint;
+    }
+
+    @Override
+    public void close() {
+        pools.forEach(JedisPool::close);
+    }
+}
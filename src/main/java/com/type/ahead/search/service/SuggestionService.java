@@ -0,0 +1,118 @@
+package com.type.ahead.search.service;
+
+import com.type.ahead.search.util.ScoreDecay;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import redis.clients.jedis.resps.Tuple;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The read path of a keystroke: the in process snapshot for short prefixes, then the near cache when enabled,
+ * then the sorted set of the prefix in redis (only the first limit members are fetched, the whole list when it
+ * goes to the near cache) or its packed list with redis.layout=PACKED, then fuzzy matches when redis has nothing.
+ * Every lookup is timed under typeahead.suggest tagged with the tier that answered it, the snapshot share of
+ * the count is the in process hit rate.
+ */
+@Service
+public class SuggestionService {
+    @Value("${redis.layout}")
+    PackedPrefixStore.Layout redisLayout;
+
+    @Autowired
+    private SuggestionSnapshotService suggestionSnapshotService;
+
+    @Autowired
+    private RedisAccessService redisAccessService;
+
+    @Autowired
+    private PackedPrefixStore packedPrefixStore;
+
+    @Autowired
+    private NearCacheService nearCacheService;
+
+    @Autowired
+    private FuzzySuggestService fuzzySuggestService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private ScoreDecay scoreDecay;
+
+    // looked up once, recording is then a few atomic adds
+    private Timer snapshotTimer;
+    private Timer nearCacheTimer;
+    private Timer redisTimer;
+    private Timer fuzzyTimer;
+
+    @PostConstruct
+    public void registerMeters() {
+        snapshotTimer = suggestTimer("snapshot");
+        nearCacheTimer = suggestTimer("nearcache");
+        redisTimer = suggestTimer("redis");
+        fuzzyTimer = suggestTimer("fuzzy");
+    }
+
+    private Timer suggestTimer(String source) {
+        return Timer.builder("typeahead.suggest")
+                .description("suggestion lookups by the tier that answered them")
+                .tag("source", source)
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return up to limit suggestions highest score first (fewest edits first for fuzzy matches), with score
+     * decay the scores are the counts as of now
+     */
+    public List<Tuple> suggest(String prefix, int limit) {
+        List<Tuple> suggestions = lookup(prefix, limit);
+        if (!scoreDecay.isEnabled() || suggestions.isEmpty())
+            return suggestions;
+        long now = System.currentTimeMillis();
+        List<Tuple> decayed = new ArrayList<>(suggestions.size());
+        for (Tuple suggestion : suggestions)
+            decayed.add(new Tuple(suggestion.getElement(), scoreDecay.decayedCount(suggestion.getScore(), now)));
+        return decayed;
+    }
+
+    private List<Tuple> lookup(String prefix, int limit) {
+        long start = System.nanoTime();
+        List<Tuple> snapshotSuggestions = suggestionSnapshotService.lookup(prefix);  // hot short prefixes never leave the process
+        if (snapshotSuggestions != null) {
+            snapshotTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return head(snapshotSuggestions, limit);
+        }
+        List<Tuple> nearCached = nearCacheService.lookup(prefix);
+        if (nearCached != null) {
+            nearCacheTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return head(nearCached, limit);
+        }
+        List<Tuple> suggestions = nearCacheService.isEnabled()
+                ? head(nearCacheService.load(prefix, key -> read(key, Integer.MAX_VALUE)), limit)
+                : read(prefix, limit);
+        if (suggestions.isEmpty() && fuzzySuggestService.isEnabled()) {
+            suggestions = head(fuzzySuggestService.suggest(prefix), limit);   // probably a typo, try close prefixes
+            fuzzyTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            return suggestions;
+        }
+        redisTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        return suggestions;
+    }
+
+    private List<Tuple> read(String prefix, int limit) {
+        if (redisLayout == PackedPrefixStore.Layout.PACKED)
+            return packedPrefixStore.read(prefix, limit);
+        return redisAccessService.execute(prefix, jedis -> jedis.zrevrangeWithScores(prefix, 0, limit - 1));
+    }
+
+    private static List<Tuple> head(List<Tuple> suggestions, int limit) {
+        return suggestions.size() <= limit ? suggestions : suggestions.subList(0, limit);
+    }
+}
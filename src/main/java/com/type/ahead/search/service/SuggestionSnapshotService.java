@@ -0,0 +1,142 @@
+package com.type.ahead.search.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.params.ScanParams;
+import redis.clients.jedis.resps.ScanResult;
+import redis.clients.jedis.resps.Tuple;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * In process read tier in front of redis. Keeps an immutable copy of the suggestion lists of all the short
+ * prefixes (the ones most keystrokes hit), rebuilt from redis at startup, refreshed with the prefixes a data
+ * load touched after every run and swapped in with a single volatile write. Readers never lock and never see
+ * a half built snapshot.
+ */
+@Service
+@Slf4j
+public class SuggestionSnapshotService {
+    @Value("${snapshot.enabled}")
+    boolean snapshotEnabled;
+
+    @Value("${snapshot.max.prefix.length}")
+    Integer maxPrefixLength;
+
+    @Value("${snapshot.scan.count}")
+    Integer scanCount;
+
+    @Value("${redis.layout}")
+    PackedPrefixStore.Layout redisLayout;
+
+    @Autowired
+    private RedisAccessService redisAccessService;
+
+    @Autowired
+    private PackedPrefixStore packedPrefixStore;
+
+    private volatile Map<String, List<Tuple>> snapshot = Collections.emptyMap();
+
+    /**
+     * @param prefix
+     * @return suggestions of the prefix highest score first, or null when the prefix is not in the snapshot
+     */
+    public List<Tuple> lookup(String prefix) {
+        return snapshot.get(prefix);
+    }
+
+    public int size() {
+        return snapshot.size();
+    }
+
+    /**
+     * Reads every prefix key up to snapshot.max.prefix.length chars from redis and swaps the new snapshot in.
+     * SCAN with a "?" pattern per length only walks the short keys, the lists are fetched with one pipeline
+     * per scan page. All the shards are scanned at once. With redis.layout=PACKED the prefixes are the fields
+     * of the bucket hashes, read in one pipeline per shard.
+     */
+    public void rebuild() {
+        if (!snapshotEnabled)
+            return;
+        long start = System.currentTimeMillis();
+        Map<String, List<Tuple>> next = new HashMap<>();
+        if (redisLayout == PackedPrefixStore.Layout.PACKED)
+            packedPrefixStore.readAll(shortPrefixes(packedPrefixStore.prefixes(scanCount))).forEach((prefix, suggestions) ->
+                    next.put(prefix, Collections.unmodifiableList(suggestions)));
+        else
+            redisAccessService.executeOnEachShard(this::readShortSortedSets).forEach(next::putAll);
+        snapshot = Collections.unmodifiableMap(next);
+        log.info("suggestion snapshot rebuilt with {} prefixes in {} ms", next.size(), System.currentTimeMillis() - start);
+    }
+
+    private Map<String, List<Tuple>> readShortSortedSets(Jedis jedis) {
+        Map<String, List<Tuple>> shardLists = new HashMap<>();
+        for (int length = 1; length <= maxPrefixLength; length++) {
+            ScanParams scanParams = new ScanParams().match("?".repeat(length)).count(scanCount);
+            String cursor = ScanParams.SCAN_POINTER_START;
+            do {
+                ScanResult<String> page = jedis.scan(cursor, scanParams, "zset");
+                Map<String, Response<List<Tuple>>> responses = new HashMap<>();
+                Pipeline pipeline = jedis.pipelined();
+                for (String prefix : page.getResult()) {
+                    responses.put(prefix, pipeline.zrevrangeWithScores(prefix, 0, -1));
+                }
+                pipeline.sync();
+                responses.forEach((prefix, response) -> shardLists.put(prefix, Collections.unmodifiableList(response.get())));
+                cursor = page.getCursor();
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+        }
+        return shardLists;
+    }
+
+    /**
+     * Re-reads just the given prefixes (the ones longer than snapshot.max.prefix.length are skipped) and swaps in
+     * a copy of the snapshot with their new lists. Costs as much as the run changed, a rebuild scans the whole
+     * keyspace once per prefix length.
+     * @return number of prefixes re-read
+     */
+    public int refresh(Collection<String> prefixes) {
+        if (!snapshotEnabled)
+            return 0;
+        List<String> shortPrefixes = shortPrefixes(prefixes);
+        if (shortPrefixes.isEmpty())
+            return 0;
+        Map<String, List<Tuple>> lists = new HashMap<>();
+        if (redisLayout == PackedPrefixStore.Layout.PACKED)
+            lists.putAll(packedPrefixStore.readAll(shortPrefixes));
+        else
+            redisAccessService.executeByShard(shortPrefixes, Function.identity(), (jedis, shardPrefixes) -> {
+                Map<String, Response<List<Tuple>>> responses = new HashMap<>();
+                Pipeline pipeline = jedis.pipelined();
+                for (String prefix : shardPrefixes) {
+                    responses.put(prefix, pipeline.zrevrangeWithScores(prefix, 0, -1));
+                }
+                pipeline.sync();
+                return responses;
+            }).forEach(responses -> responses.forEach((prefix, response) -> lists.put(prefix, response.get())));
+        Map<String, List<Tuple>> next = new HashMap<>(snapshot);
+        lists.forEach((prefix, suggestions) -> {
+            if (suggestions.isEmpty())
+                next.remove(prefix);
+            else
+                next.put(prefix, Collections.unmodifiableList(suggestions));
+        });
+        snapshot = Collections.unmodifiableMap(next);
+        return shortPrefixes.size();
+    }
+
+    private List<String> shortPrefixes(Collection<String> prefixes) {
+        List<String> shortPrefixes = new ArrayList<>();
+        for (String prefix : prefixes) {
+            if (prefix.length() <= maxPrefixLength)
+                shortPrefixes.add(prefix);
+        }
+        return shortPrefixes;
+    }
+}
@@ -0,0 +1,646 @@
+package com.type.ahead.search.util;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.BiConsumer;
+
+/**
+ * Array backed radix trie. Nodes are int ids into flat primitive arrays instead of objects, chains of
+ * single child nodes are collapsed into one node whose edge label is a slice of a shared char pool, and
+ * the children of a node are kept as a segment of a shared pool sorted by their first character so they
+ * can be binary searched.
+ * Every node also keeps the highest score found in its subtree, suggestWithScores uses it for a best
+ * first search that only opens the branches that can still make it into the top k.
+ * Inserting only copies the chars of the new suffix into the label pool, the arrays grow by doubling.
+ * <p>
+ * Since it is only arrays the whole trie can be saved as a snapshot file and loaded back with a few bulk copies
+ * out of a memory mapped file, no insert per word. Snapshot layout (big endian): magic, version, nodeCount,
+ * wordCount, labelsSize, childPoolSize as ints, then score and maxScore as longs, labelStart, labelLength,
+ * childStart, childCount as ints, labels as chars, childNodes as ints and childChars as chars. The child
+ * segments are packed on the way out, so the space abandoned by moved segments is not saved.
+ */
+public class CompactTrie implements TrieBackend {
+    private static final long NOT_A_WORD = -1;
+    private static final int ROOT = 0;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int SNAPSHOT_MAGIC = 0x54524945;  // "TRIE"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER_BYTES = 6 * 4;
+
+    // per node arrays, indexed by node id
+    private int[] labelStart = new int[INITIAL_CAPACITY];
+    private int[] labelLength = new int[INITIAL_CAPACITY];
+    private int[] childStart = new int[INITIAL_CAPACITY];
+    private int[] childCount = new int[INITIAL_CAPACITY];
+    private int[] childCapacity = new int[INITIAL_CAPACITY];
+    private long[] score = new long[INITIAL_CAPACITY];     // NOT_A_WORD for nodes that don't end a word
+    private long[] maxScore = new long[INITIAL_CAPACITY];  // highest word score in the subtree
+    private int nodeCount;
+    private int wordCount;
+
+    // edge labels of all nodes
+    private char[] labels = new char[INITIAL_CAPACITY * 4];
+    private int labelsSize;
+
+    // child segments of all nodes, childChars holds the first label char of the child in childNodes
+    private char[] childChars = new char[INITIAL_CAPACITY];
+    private int[] childNodes = new int[INITIAL_CAPACITY];
+    private int childPoolSize;
+    private int abandonedChildSlots;  // left behind when a segment is moved to grow
+
+    /**
+     * Nodes visited by an insert or score increase, root first. Writes are single writer (runExclusively or the
+     * fuzzy write lock) so one path is kept and reset per write, reads pass no path and can run in parallel.
+     */
+    private static final class NodePath {
+        int[] nodes = new int[32];
+        int length;
+
+        void push(int node) {
+            if (length == nodes.length)
+                nodes = Arrays.copyOf(nodes, length * 2);
+            nodes[length++] = node;
+        }
+
+        NodePath reset() {
+            length = 0;
+            return this;
+        }
+    }
+
+    private final NodePath writePath = new NodePath();
+
+    public CompactTrie() {
+        newNode(0, 0);
+    }
+
+    @Override
+    public void insert(String word, long delta) {
+        if (word == null || word.isEmpty())
+            return;
+        int node = ROOT;
+        int i = 0;
+        NodePath path = writePath.reset();
+        path.push(ROOT);
+        while (i < word.length()) {
+            char c = word.charAt(i);
+            int slot = findChild(node, c);
+            if (slot < 0) {
+                int leaf = newNode(appendLabel(word, i), word.length() - i);
+                addChild(node, -slot - 1, c, leaf);
+                path.push(leaf);
+                node = leaf;
+                break;
+            }
+            int child = childNodes[slot];
+            int matched = matchLabel(child, word, i);
+            if (matched < labelLength[child]) {
+                child = split(slot, child, matched);
+            }
+            path.push(child);
+            node = child;
+            i += matched;
+        }
+        if (score[node] == NOT_A_WORD) {
+            score[node] = 0;
+            wordCount++;
+        }
+        score[node] += delta;
+        propagateMaxScore(path, score[node]);
+    }
+
+    @Override
+    public boolean increaseScore(String word, long delta) {
+        NodePath path = writePath.reset();
+        long located = locate(word, path);
+        if (located < 0)
+            return false;
+        int node = nodeOf(located);
+        if (labelOffsetOf(located) != labelLength[node] || score[node] == NOT_A_WORD)
+            return false;
+        score[node] += delta;
+        propagateMaxScore(path, score[node]);
+        return true;
+    }
+
+    @Override
+    public List<String> suggest(String prefix) {
+        List<String> list = new ArrayList<>();
+        long located = locate(prefix, null);
+        if (located < 0)
+            return list;
+        int node = nodeOf(located);
+        int offset = labelOffsetOf(located);
+        StringBuilder curr = new StringBuilder(prefix)
+                .append(labels, labelStart[node] + offset, labelLength[node] - offset);
+        suggestHelper(node, list, curr);
+        return list;
+    }
+
+    private void suggestHelper(int node, List<String> list, StringBuilder curr) {
+        if (score[node] != NOT_A_WORD)
+            list.add(curr.toString());
+        for (int slot = childStart[node]; slot < childStart[node] + childCount[node]; slot++) {
+            int child = childNodes[slot];
+            curr.append(labels, labelStart[child], labelLength[child]);
+            suggestHelper(child, list, curr);
+            curr.setLength(curr.length() - labelLength[child]);
+        }
+    }
+
+    @Override
+    public LinkedHashMap<String, Long> suggestWithScores(String prefix, int k) {
+        long located = locate(prefix, null);
+        if (located < 0)
+            return new LinkedHashMap<>();
+        int node = nodeOf(located);
+        int offset = labelOffsetOf(located);
+        String text = prefix + new String(labels, labelStart[node] + offset, labelLength[node] - offset);
+        return topWords(node, text, k);
+    }
+
+    /**
+     * @param text the word up to and including the label of node
+     */
+    private LinkedHashMap<String, Long> topWords(int node, String text, int k) {
+        LinkedHashMap<String, Long> suggestions = new LinkedHashMap<>();
+        if (k <= 0)
+            return suggestions;
+        PriorityQueue<Candidate> queue = new PriorityQueue<>();
+        queue.add(new Candidate(node, maxScore[node], text, false));
+        while (!queue.isEmpty() && suggestions.size() < k) {
+            Candidate top = queue.poll();
+            if (top.isWord) {
+                suggestions.put(top.text, top.score);
+                continue;
+            }
+            if (score[top.node] != NOT_A_WORD)
+                queue.add(new Candidate(top.node, score[top.node], top.text, true));
+            for (int slot = childStart[top.node]; slot < childStart[top.node] + childCount[top.node]; slot++) {
+                int child = childNodes[slot];
+                String childText = top.text + new String(labels, labelStart[child], labelLength[child]);
+                queue.add(new Candidate(child, maxScore[child], childText, false));
+            }
+        }
+        return suggestions;
+    }
+
+    @Override
+    public LinkedHashMap<String, Long> suggestFuzzy(String prefix, int maxEdits, int k, int maxSteps) {
+        FuzzyMatches matches = new FuzzyMatches(prefix, maxEdits, k, maxSteps);
+        int bound = matches.noMatch();
+        if (matches.distance(0) < bound) {
+            matches.add(topWords(ROOT, "", k), matches.distance(0));
+            bound = matches.distance(0);
+        }
+        fuzzyHelper(ROOT, 0, bound, matches, new StringBuilder());
+        return matches.result();
+    }
+
+    /**
+     * Walks the labels one char at a time, a match in the middle of a label takes the subtree of that label's node
+     * @param bound edits of the best match above the node, children only count when they get below it
+     */
+    private void fuzzyHelper(int node, int depth, int bound, FuzzyMatches matches, StringBuilder text) {
+        for (int slot = childStart[node]; slot < childStart[node] + childCount[node]; slot++) {
+            int child = childNodes[slot];
+            int childDepth = depth;
+            int childBound = bound;
+            boolean alive = true;
+            text.append(labels, labelStart[child], labelLength[child]);
+            for (int i = 0; i < labelLength[child]; i++) {
+                if (matches.push(childDepth + 1, labels[labelStart[child] + i]) >= childBound) {
+                    alive = false;
+                    break;
+                }
+                int edits = matches.distance(++childDepth);
+                if (edits < childBound) {
+                    matches.add(topWords(child, text.toString(), matches.getK()), edits);
+                    childBound = edits;
+                }
+            }
+            if (alive)
+                fuzzyHelper(child, childDepth, childBound, matches, text);
+            text.setLength(text.length() - labelLength[child]);
+        }
+    }
+
+    @Override
+    public String firstChars() {
+        return new String(childChars, childStart[ROOT], childCount[ROOT]);
+    }
+
+    @Override
+    public void exportTopK(char firstChar, int k, BiConsumer<String, LinkedHashMap<String, Long>> sink) {
+        int slot = findChild(ROOT, firstChar);
+        if (slot >= 0)
+            exportHelper(childNodes[slot], new StringBuilder(), k, sink);
+    }
+
+    /**
+     * Post order, the top k of a node is merged from its own word and the top k of its children. Every prefix
+     * that ends inside the node's label has the same subtree, so they all get the same list.
+     */
+    private List<Candidate> exportHelper(int node, StringBuilder text, int k, BiConsumer<String, LinkedHashMap<String, Long>> sink) {
+        int labelFrom = text.length();
+        text.append(labels, labelStart[node], labelLength[node]);
+        List<Candidate> best = new ArrayList<>();
+        if (score[node] != NOT_A_WORD)
+            best.add(new Candidate(node, score[node], text.toString(), true));
+        for (int slot = childStart[node]; slot < childStart[node] + childCount[node]; slot++) {
+            best.addAll(exportHelper(childNodes[slot], text, k, sink));
+        }
+        best.sort(null);
+        if (best.size() > k)
+            best = new ArrayList<>(best.subList(0, k));
+        LinkedHashMap<String, Long> suggestions = new LinkedHashMap<>();
+        for (Candidate candidate : best)
+            suggestions.put(candidate.text, candidate.score);
+        for (int end = labelFrom + 1; end <= text.length(); end++)
+            sink.accept(text.substring(0, end), suggestions);
+        text.setLength(labelFrom);
+        return best;
+    }
+
+    /**
+     * Joins tries built in parallel into one, no two parts may have words with the same first character.
+     * The arrays of the parts are copied one after the other with node ids, label and child pool offsets moved
+     * along, then the root gets the root children of all parts.
+     */
+    public static CompactTrie merge(List<CompactTrie> parts) {
+        int nodes = 1;
+        int labelChars = 0;
+        int poolSlots = 0;
+        int rootChildren = 0;
+        for (CompactTrie part : parts) {
+            nodes += part.nodeCount - 1;
+            labelChars += part.labelsSize;
+            poolSlots += part.childPoolSize;
+            rootChildren += part.childCount[ROOT];
+        }
+        CompactTrie merged = new CompactTrie();
+        int capacity = Math.max(nodes, INITIAL_CAPACITY);
+        merged.labelStart = new int[capacity];
+        merged.labelLength = new int[capacity];
+        merged.childStart = new int[capacity];
+        merged.childCount = new int[capacity];
+        merged.childCapacity = new int[capacity];
+        merged.score = new long[capacity];
+        merged.maxScore = new long[capacity];
+        merged.labels = new char[Math.max(labelChars, 1)];
+        merged.childChars = new char[Math.max(poolSlots + rootChildren, 1)];
+        merged.childNodes = new int[Math.max(poolSlots + rootChildren, 1)];
+        merged.score[ROOT] = NOT_A_WORD;
+        merged.maxScore[ROOT] = NOT_A_WORD;
+
+        int nodeOffset = 1;                                // part node id -> nodeOffset + id - 1, the part roots are dropped
+        int rootSegment = poolSlots;                       // the merged root's children go after all part segments
+        for (CompactTrie part : parts) {
+            int delta = nodeOffset - 1;
+            for (int id = 1; id < part.nodeCount; id++) {
+                int node = id + delta;
+                merged.labelStart[node] = part.labelStart[id] + merged.labelsSize;
+                merged.labelLength[node] = part.labelLength[id];
+                merged.childStart[node] = part.childStart[id] + merged.childPoolSize;
+                merged.childCount[node] = part.childCount[id];
+                merged.childCapacity[node] = part.childCapacity[id];
+                merged.score[node] = part.score[id];
+                merged.maxScore[node] = part.maxScore[id];
+            }
+            System.arraycopy(part.labels, 0, merged.labels, merged.labelsSize, part.labelsSize);
+            for (int slot = 0; slot < part.childPoolSize; slot++) {
+                merged.childChars[merged.childPoolSize + slot] = part.childChars[slot];
+                merged.childNodes[merged.childPoolSize + slot] = part.childNodes[slot] + delta;
+            }
+            for (int slot = part.childStart[ROOT]; slot < part.childStart[ROOT] + part.childCount[ROOT]; slot++) {
+                merged.childChars[rootSegment] = part.childChars[slot];
+                merged.childNodes[rootSegment++] = part.childNodes[slot] + delta;
+            }
+            merged.maxScore[ROOT] = Math.max(merged.maxScore[ROOT], part.maxScore[ROOT]);
+            merged.wordCount += part.wordCount;
+            merged.abandonedChildSlots += part.abandonedChildSlots + part.childCapacity[ROOT];
+            merged.labelsSize += part.labelsSize;
+            merged.childPoolSize += part.childPoolSize;
+            nodeOffset += part.nodeCount - 1;
+        }
+        merged.nodeCount = nodes;
+        merged.childStart[ROOT] = poolSlots;
+        merged.childCount[ROOT] = rootChildren;
+        merged.childCapacity[ROOT] = rootChildren;
+        merged.childPoolSize = poolSlots + rootChildren;
+        sortSegment(merged, poolSlots, rootChildren);
+        return merged;
+    }
+
+    // insertion sort of a child segment by first char, the root has at most a few hundred children
+    private static void sortSegment(CompactTrie trie, int start, int count) {
+        for (int i = start + 1; i < start + count; i++) {
+            char c = trie.childChars[i];
+            int node = trie.childNodes[i];
+            int j = i - 1;
+            while (j >= start && trie.childChars[j] > c) {
+                trie.childChars[j + 1] = trie.childChars[j];
+                trie.childNodes[j + 1] = trie.childNodes[j];
+                j--;
+            }
+            trie.childChars[j + 1] = c;
+            trie.childNodes[j + 1] = node;
+        }
+    }
+
+    @Override
+    public int nodeCount() {
+        return nodeCount - 1;
+    }
+
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    @Override
+    public long estimatedMemoryBytes() {
+        long perNodeArrays = 5L * (ARRAY_HEADER_BYTES + 4L * labelStart.length) + 2L * (ARRAY_HEADER_BYTES + 8L * score.length);
+        long pools = ARRAY_HEADER_BYTES + 2L * labels.length
+                + ARRAY_HEADER_BYTES + 2L * childChars.length
+                + ARRAY_HEADER_BYTES + 4L * childNodes.length;
+        return perNodeArrays + pools;
+    }
+
+    /**
+     * Writes the trie to a temporary file next to path and moves it over path, so a reader never sees a half
+     * written snapshot
+     */
+    public void writeSnapshot(Path path) throws IOException {
+        // pack the child segments, each node's children end up right after the previous node's
+        int[] packedChildStart = new int[nodeCount];
+        int packedPoolSize = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            packedChildStart[node] = packedPoolSize;
+            packedPoolSize += childCount[node];
+        }
+        long size = snapshotBytes(nodeCount, labelsSize, packedPoolSize);
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putInt(nodeCount).putInt(wordCount)
+                    .putInt(labelsSize).putInt(packedPoolSize);
+            buffer.asLongBuffer().put(score, 0, nodeCount).put(maxScore, 0, nodeCount);
+            buffer.position(buffer.position() + 16 * nodeCount);
+            buffer.asIntBuffer().put(labelStart, 0, nodeCount).put(labelLength, 0, nodeCount)
+                    .put(packedChildStart).put(childCount, 0, nodeCount);
+            buffer.position(buffer.position() + 16 * nodeCount);
+            buffer.asCharBuffer().put(labels, 0, labelsSize);
+            buffer.position(buffer.position() + 2 * labelsSize);
+            IntBuffer packedChildNodes = buffer.asIntBuffer();
+            for (int node = 0; node < nodeCount; node++)
+                packedChildNodes.put(childNodes, childStart[node], childCount[node]);
+            buffer.position(buffer.position() + 4 * packedPoolSize);
+            CharBuffer packedChildChars = buffer.asCharBuffer();
+            for (int node = 0; node < nodeCount; node++)
+                packedChildChars.put(childChars, childStart[node], childCount[node]);
+            buffer.force();
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a snapshot written by writeSnapshot, the arrays are copied out of the mapped file in bulk
+     * @throws IOException when the file is not a snapshot of this version or is cut short
+     */
+    public static CompactTrie loadSnapshot(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < SNAPSHOT_HEADER_BYTES)
+                throw new IOException("not a trie snapshot: " + path);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION)
+                throw new IOException("not a trie snapshot of version " + SNAPSHOT_VERSION + ": " + path);
+            int nodes = buffer.getInt();
+            int words = buffer.getInt();
+            int labelsSize = buffer.getInt();
+            int poolSize = buffer.getInt();
+            if (nodes < 1 || labelsSize < 0 || poolSize != nodes - 1 || channel.size() != snapshotBytes(nodes, labelsSize, poolSize))
+                throw new IOException("trie snapshot is damaged: " + path);
+
+            CompactTrie trie = new CompactTrie();
+            trie.nodeCount = nodes;
+            trie.wordCount = words;
+            trie.score = new long[nodes];
+            trie.maxScore = new long[nodes];
+            buffer.asLongBuffer().get(trie.score).get(trie.maxScore);
+            buffer.position(buffer.position() + 16 * nodes);
+            trie.labelStart = new int[nodes];
+            trie.labelLength = new int[nodes];
+            trie.childStart = new int[nodes];
+            trie.childCount = new int[nodes];
+            buffer.asIntBuffer().get(trie.labelStart).get(trie.labelLength).get(trie.childStart).get(trie.childCount);
+            buffer.position(buffer.position() + 16 * nodes);
+            trie.childCapacity = Arrays.copyOf(trie.childCount, nodes);
+            trie.labels = new char[Math.max(labelsSize, 1)];
+            trie.labelsSize = labelsSize;
+            buffer.asCharBuffer().get(trie.labels, 0, labelsSize);
+            buffer.position(buffer.position() + 2 * labelsSize);
+            trie.childNodes = new int[Math.max(poolSize, 1)];
+            trie.childChars = new char[Math.max(poolSize, 1)];
+            trie.childPoolSize = poolSize;
+            buffer.asIntBuffer().get(trie.childNodes, 0, poolSize);
+            buffer.position(buffer.position() + 4 * poolSize);
+            buffer.asCharBuffer().get(trie.childChars, 0, poolSize);
+            return trie;
+        }
+    }
+
+    private static long snapshotBytes(int nodes, int labelsSize, int poolSize) {
+        return SNAPSHOT_HEADER_BYTES + 16L * nodes + 16L * nodes + 2L * labelsSize + 4L * poolSize + 2L * poolSize;
+    }
+
+    /**
+     * Wasted space in the pools, grows with the number of times child segments had to be moved
+     */
+    public int getAbandonedChildSlots() {
+        return abandonedChildSlots;
+    }
+
+    /**
+     * Finds the node the prefix ends in, the prefix can end in the middle of that node's label. Only reads the
+     * trie, the nodes on the way are added to path when one is given.
+     * @return -1 when no word starts with the prefix, otherwise the node (nodeOf) and how much of its label the
+     * prefix covered (labelOffsetOf) in one long
+     */
+    private long locate(String prefix, NodePath path) {
+        int node = ROOT;
+        int i = 0;
+        int labelOffset = 0;
+        if (path != null)
+            path.push(ROOT);
+        while (i < prefix.length()) {
+            int slot = findChild(node, prefix.charAt(i));
+            if (slot < 0)
+                return -1;
+            node = childNodes[slot];
+            int matched = matchLabel(node, prefix, i);
+            if (matched < labelLength[node] && i + matched < prefix.length())
+                return -1;                                 // prefix and label differ
+            if (path != null)
+                path.push(node);
+            i += matched;
+            labelOffset = matched;
+        }
+        return (long) labelOffset << 32 | node;
+    }
+
+    private static int nodeOf(long located) {
+        return (int) located;
+    }
+
+    private static int labelOffsetOf(long located) {
+        return (int) (located >>> 32);
+    }
+
+    /**
+     * Binary search over the children of the node
+     * @return the pool slot of the child starting with c, or -(insertion point within the segment) - 1
+     */
+    private int findChild(int node, char c) {
+        int low = childStart[node];
+        int high = low + childCount[node] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (childChars[mid] < c)
+                low = mid + 1;
+            else if (childChars[mid] > c)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low - childStart[node]) - 1;
+    }
+
+    private int matchLabel(int node, String word, int from) {
+        int start = labelStart[node];
+        int length = labelLength[node];
+        int matched = 0;
+        while (matched < length && from + matched < word.length() && labels[start + matched] == word.charAt(from + matched))
+            matched++;
+        return matched;
+    }
+
+    /**
+     * Cuts the label of child after matched chars, the first part becomes a new node that takes the
+     * child's place under its parent and gets the rest of the child as its only child.
+     */
+    private int split(int slot, int child, int matched) {
+        int start = labelStart[child];
+        int mid = newNode(start, matched);
+        labelStart[child] = start + matched;
+        labelLength[child] -= matched;
+        childNodes[slot] = mid;                            // mid starts with the same char as child did
+        addChild(mid, 0, labels[start + matched], child);
+        maxScore[mid] = maxScore[child];
+        return mid;
+    }
+
+    private void addChild(int node, int position, char c, int child) {
+        if (childCount[node] == childCapacity[node]) {
+            // move the segment to the end of the pool with twice the room
+            int newCapacity = Math.max(2, childCapacity[node] * 2);
+            ensureChildPoolCapacity(childPoolSize + newCapacity);
+            System.arraycopy(childChars, childStart[node], childChars, childPoolSize, childCount[node]);
+            System.arraycopy(childNodes, childStart[node], childNodes, childPoolSize, childCount[node]);
+            abandonedChildSlots += childCapacity[node];
+            childStart[node] = childPoolSize;
+            childCapacity[node] = newCapacity;
+            childPoolSize += newCapacity;
+        }
+        int at = childStart[node] + position;
+        int toShift = childCount[node] - position;
+        System.arraycopy(childChars, at, childChars, at + 1, toShift);
+        System.arraycopy(childNodes, at, childNodes, at + 1, toShift);
+        childChars[at] = c;
+        childNodes[at] = child;
+        childCount[node]++;
+    }
+
+    private int newNode(int start, int length) {
+        if (nodeCount == labelStart.length) {
+            int capacity = nodeCount * 2;
+            labelStart = Arrays.copyOf(labelStart, capacity);
+            labelLength = Arrays.copyOf(labelLength, capacity);
+            childStart = Arrays.copyOf(childStart, capacity);
+            childCount = Arrays.copyOf(childCount, capacity);
+            childCapacity = Arrays.copyOf(childCapacity, capacity);
+            score = Arrays.copyOf(score, capacity);
+            maxScore = Arrays.copyOf(maxScore, capacity);
+        }
+        int node = nodeCount++;
+        labelStart[node] = start;
+        labelLength[node] = length;
+        childStart[node] = 0;
+        childCount[node] = 0;
+        childCapacity[node] = 0;
+        score[node] = NOT_A_WORD;
+        maxScore[node] = NOT_A_WORD;
+        return node;
+    }
+
+    private int appendLabel(String word, int from) {
+        int length = word.length() - from;
+        if (labelsSize + length > labels.length)
+            labels = Arrays.copyOf(labels, Math.max(labels.length * 2, labelsSize + length));
+        word.getChars(from, word.length(), labels, labelsSize);
+        int start = labelsSize;
+        labelsSize += length;
+        return start;
+    }
+
+    private void ensureChildPoolCapacity(int capacity) {
+        if (capacity > childNodes.length) {
+            int newLength = Math.max(childNodes.length * 2, capacity);
+            childChars = Arrays.copyOf(childChars, newLength);
+            childNodes = Arrays.copyOf(childNodes, newLength);
+        }
+    }
+
+    // scores only ever go up so the subtree max of every node on the path is at least the new score
+    private void propagateMaxScore(NodePath path, long newScore) {
+        for (int i = 0; i < path.length; i++) {
+            if (maxScore[path.nodes[i]] < newScore)
+                maxScore[path.nodes[i]] = newScore;
+        }
+    }
+
+    private static final class Candidate implements Comparable<Candidate> {
+        final int node;
+        final long score;     // word score, or the best score in the subtree for a branch
+        final String text;
+        final boolean isWord;
+
+        Candidate(int node, long score, String text, boolean isWord) {
+            this.node = node;
+            this.score = score;
+            this.text = text;
+            this.isWord = isWord;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            int byScore = Long.compare(other.score, score);
+            if (byScore != 0)
+                return byScore;
+            return Boolean.compare(other.isWord, isWord);  // on a tie emit the word before opening more branches
+        }
+    }
+}
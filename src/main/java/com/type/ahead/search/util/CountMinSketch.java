@@ -0,0 +1,75 @@
+package com.type.ahead.search.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-Min Sketch, fixed memory frequency counts that never under count. With width e/epsilon and
+ * depth ln(1/delta) an estimate is over the real count by at most epsilon * total with probability 1 - delta.
+ * Counters are atomic so any number of threads can add at the same time.
+ */
+public class CountMinSketch {
+    private final int width;
+    private final int depth;
+    private final AtomicLongArray counts;  // depth rows of width counters
+
+    public CountMinSketch(double epsilon, double delta) {
+        this.width = (int) Math.ceil(Math.E / epsilon);
+        this.depth = (int) Math.ceil(Math.log(1 / delta));
+        this.counts = new AtomicLongArray(width * depth);
+    }
+
+    /**
+     * @return the estimated count of the item after adding
+     */
+    public long add(String item, long count) {
+        long hash = hash(item);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counts.addAndGet(row * width + Math.floorMod(h1 + row * h2, width), count));
+        }
+        return estimate;
+    }
+
+    public long estimate(String item) {
+        long hash = hash(item);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, counts.get(row * width + Math.floorMod(h1 + row * h2, width)));
+        }
+        return estimate;
+    }
+
+    // 64 bit FNV-1a, the two halves give the row hashes (h1 + row * h2)
+    private static long hash(String item) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < item.length(); i++) {
+            hash ^= item.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash ^ (hash >>> 29);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public double getEpsilon() {
+        return Math.E / width;
+    }
+
+    public double getDelta() {
+        return Math.exp(-depth);
+    }
+
+    public long estimatedMemoryBytes() {
+        return 16 + 8L * width * depth;
+    }
+}
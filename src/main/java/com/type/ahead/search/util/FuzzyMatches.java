@@ -0,0 +1,95 @@
+package com.type.ahead.search.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of one typo tolerant lookup, shared by the trie backends. While the trie is walked depth first it keeps
+ * one Levenshtein row per depth of the query against the current path, so a step costs O(query length).
+ * A path within maxEdits of the whole query matches and its top words are candidates. The lowest cell of a row
+ * never goes down further along the path, so a branch is pruned as soon as it can't beat the best match above
+ * it (or maxEdits). The number of steps is capped so a lookup has a fixed budget.
+ */
+class FuzzyMatches {
+    private final String query;
+    private final int maxEdits;
+    private final int k;
+    private final int maxSteps;
+    private final int[][] rows;         // rows[depth][j] = edits between the path up to depth and query[0, j)
+    private int steps;
+    private final Map<String, long[]> matches = new HashMap<>();  // word -> {edits, score}
+
+    FuzzyMatches(String query, int maxEdits, int k, int maxSteps) {
+        this.query = query;
+        this.maxEdits = maxEdits;
+        this.k = k;
+        this.maxSteps = maxSteps;
+        // a path longer than query + maxEdits can't be within maxEdits, so that is as deep as it goes
+        this.rows = new int[query.length() + maxEdits + 2][query.length() + 1];
+        for (int j = 0; j <= query.length(); j++)
+            rows[0][j] = j;
+    }
+
+    /**
+     * Bound to start a walk with, anything with more edits is not a match
+     */
+    int noMatch() {
+        return maxEdits + 1;
+    }
+
+    int getK() {
+        return k;
+    }
+
+    /**
+     * Extends the path at depth - 1 with c
+     * @return the fewest edits any path going on from here can still reach, Integer.MAX_VALUE when it is
+     *         deeper than a match can be or the step budget is used up
+     */
+    int push(int depth, char c) {
+        if (depth >= rows.length || ++steps > maxSteps)
+            return Integer.MAX_VALUE;
+        int[] previous = rows[depth - 1];
+        int[] row = rows[depth];
+        row[0] = depth;
+        int lowest = row[0];
+        for (int j = 1; j <= query.length(); j++) {
+            int substitute = previous[j - 1] + (query.charAt(j - 1) == c ? 0 : 1);
+            row[j] = Math.min(substitute, Math.min(previous[j] + 1, row[j - 1] + 1));
+            lowest = Math.min(lowest, row[j]);
+        }
+        return lowest;
+    }
+
+    /**
+     * Edits between the path up to depth and the whole query
+     */
+    int distance(int depth) {
+        return rows[depth][query.length()];
+    }
+
+    void add(Map<String, Long> words, int edits) {
+        words.forEach((word, score) -> {
+            long[] match = matches.get(word);
+            if (match == null || match[0] > edits)
+                matches.put(word, new long[]{edits, score});
+        });
+    }
+
+    /**
+     * Top k matches, fewest edits first then highest score
+     */
+    LinkedHashMap<String, Long> result() {
+        List<Map.Entry<String, long[]>> ranked = new ArrayList<>(matches.entrySet());
+        ranked.sort((a, b) -> a.getValue()[0] != b.getValue()[0]
+                ? Long.compare(a.getValue()[0], b.getValue()[0])
+                : Long.compare(b.getValue()[1], a.getValue()[1]));
+        LinkedHashMap<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, long[]> match : ranked.subList(0, Math.min(k, ranked.size())))
+            result.put(match.getKey(), match.getValue()[1]);
+        return result;
+    }
+}
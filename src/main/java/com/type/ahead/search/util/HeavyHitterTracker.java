@@ -0,0 +1,172 @@
+package com.type.ahead.search.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Fixed memory query tracking for when the exact QueryCounter would grow with every distinct long tail query.
+ * Every query goes into a CountMinSketch, only the top-K queries by estimated count are kept by name
+ * (Space-Saving style: a new query replaces the current minimum once its estimate beats it). Drains hand
+ * out just those heavy hitters, with counts that can be over by at most epsilon * total queries.
+ * Draining swaps buffers the same way QueryCounter does, so logging never blocks. Only a query that beats the
+ * current minimum takes a lock, to swap it in through a min-heap in O(log K).
+ */
+public class HeavyHitterTracker implements QueryTracker {
+    private static final int ENTRY_BYTES = 96;  // rough ConcurrentHashMap node + boxed Long + short String
+
+    private final double epsilon;
+    private final double delta;
+    private final int capacity;
+
+    private final class Buffer {
+        final CountMinSketch sketch = new CountMinSketch(epsilon, delta);
+        final ConcurrentHashMap<String, Long> heavyHitters = new ConcurrentHashMap<>();
+        volatile long admissionThreshold;           // lowest estimate kept once heavyHitters is full
+        final AtomicLong activeWriters = new AtomicLong();
+        final LongAdder total = new LongAdder();
+        final long createdNanos = System.nanoTime();
+
+        // one entry per heavy hitter, by the estimate it had when pushed. Estimates only go up (outside the
+        // lock too), so a heap entry is never above its heavy hitter's estimate and the lowest one is found by
+        // refreshing stale entries at the top until the top is up to date
+        final PriorityQueue<Ranked> byEstimate = new PriorityQueue<>();
+
+        synchronized void admit(String query, long estimate) {
+            if (heavyHitters.containsKey(query)) {
+                heavyHitters.merge(query, estimate, Math::max);
+            } else if (heavyHitters.size() < capacity) {
+                heavyHitters.put(query, estimate);
+                byEstimate.add(new Ranked(query, estimate));
+            } else {
+                Ranked lowest = lowest();
+                if (estimate <= lowest.estimate) {
+                    admissionThreshold = lowest.estimate;
+                    return;
+                }
+                byEstimate.poll();
+                heavyHitters.remove(lowest.query);
+                heavyHitters.put(query, estimate);
+                byEstimate.add(new Ranked(query, estimate));
+            }
+            if (heavyHitters.size() == capacity)
+                admissionThreshold = lowest().estimate;
+        }
+
+        private Ranked lowest() {
+            while (true) {
+                Ranked top = byEstimate.peek();
+                long estimate = heavyHitters.get(top.query);
+                if (estimate == top.estimate)
+                    return top;
+                byEstimate.poll();
+                byEstimate.add(new Ranked(top.query, estimate));
+            }
+        }
+    }
+
+    private static final class Ranked implements Comparable<Ranked> {
+        final String query;
+        final long estimate;
+
+        Ranked(String query, long estimate) {
+            this.query = query;
+            this.estimate = estimate;
+        }
+
+        @Override
+        public int compareTo(Ranked other) {
+            return Long.compare(estimate, other.estimate);
+        }
+    }
+
+    private volatile Buffer current;
+    private volatile double lastQueriesPerSecondPerCore;
+    private volatile long lastDroppedQueries;
+    private volatile String lastDrainReport = "nothing drained yet";
+
+    /**
+     * @param epsilon  max over count as a fraction of all queries in a window
+     * @param delta    probability of an estimate being off by more than that
+     * @param capacity number of heavy hitters kept per window
+     */
+    public HeavyHitterTracker(double epsilon, double delta, int capacity) {
+        this.epsilon = epsilon;
+        this.delta = delta;
+        this.capacity = capacity;
+        this.current = new Buffer();
+    }
+
+    @Override
+    public void increment(String query) {
+        add(query, 1);
+    }
+
+    @Override
+    public void add(String query, long count) {
+        while (true) {
+            Buffer buffer = current;
+            buffer.activeWriters.incrementAndGet();
+            try {
+                if (buffer != current)
+                    continue;                              // swapped under us, retry on the new buffer
+                long estimate = buffer.sketch.add(query, count);
+                buffer.total.add(count);
+                if (buffer.heavyHitters.computeIfPresent(query, (key, old) -> Math.max(old, estimate)) == null
+                        && (buffer.heavyHitters.size() < capacity || estimate > buffer.admissionThreshold))
+                    buffer.admit(query, estimate);         // only queries that beat the current minimum take the lock
+                return;
+            } finally {
+                buffer.activeWriters.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return current.heavyHitters.size();
+    }
+
+    @Override
+    public Map<String, Long> drain() {
+        Buffer drained = current;
+        current = new Buffer();
+        while (drained.activeWriters.get() != 0) {
+            Thread.onSpinWait();
+        }
+        Map<String, Long> counts = new HashMap<>(drained.heavyHitters);
+        long total = drained.total.sum();
+        double seconds = (System.nanoTime() - drained.createdNanos) / 1e9;
+        lastQueriesPerSecondPerCore = total / seconds / Runtime.getRuntime().availableProcessors();
+        // counts are estimates that can be over, so this can be a bit under the real number
+        lastDroppedQueries = Math.max(0, total - counts.values().stream().mapToLong(Long::longValue).sum());
+        CountMinSketch sketch = drained.sketch;
+        lastDrainReport = String.format("mode=HEAVY_HITTERS queries=%d heavyHitters=%d/%d sketch=%dx%d estimatedBytes=%d "
+                        + "maxOverCount=%d (epsilon=%.6f) with probability %.4f",
+                total, counts.size(), capacity, sketch.getDepth(), sketch.getWidth(), estimatedMemoryBytes(sketch),
+                (long) Math.ceil(sketch.getEpsilon() * total), sketch.getEpsilon(), 1 - sketch.getDelta());
+        return counts;
+    }
+
+    private long estimatedMemoryBytes(CountMinSketch sketch) {
+        return sketch.estimatedMemoryBytes() + (long) ENTRY_BYTES * capacity;
+    }
+
+    @Override
+    public double getLastQueriesPerSecondPerCore() {
+        return lastQueriesPerSecondPerCore;
+    }
+
+    @Override
+    public long getLastDroppedQueries() {
+        return lastDroppedQueries;
+    }
+
+    @Override
+    public String getLastDrainReport() {
+        return lastDrainReport;
+    }
+}
@@ -0,0 +1,276 @@
+package com.type.ahead.search.util;
+
+import lombok.Setter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * The original trie, one TrieNode object with a HashMap of children per character
+ */
+public class NodeTrie implements TrieBackend {
+    // rough object sizes with compressed oops, used for the memory report
+    private static final int NODE_BYTES = 40;
+    private static final int HASH_MAP_BYTES = 48;
+    private static final int HASH_MAP_ENTRY_BYTES = 32;
+    private static final int ARRAY_HEADER_BYTES = 16;
+
+    private final TrieNode root = new TrieNode();
+    @Setter
+    private int rankedTopK;  // ranked mode when > 0, every node then caches its best rankedTopK words by score
+    private int nodeCount;
+
+    public NodeTrie(int rankedTopK) {
+        this.rankedTopK = rankedTopK;
+    }
+
+    /**
+     * Joins tries built in parallel into one, no two parts may have words with the same first character.
+     * The parts' nodes are taken over as they are, only the top-K cache of the root is rebuilt.
+     */
+    public static NodeTrie merge(List<NodeTrie> parts, int rankedTopK) {
+        NodeTrie merged = new NodeTrie(rankedTopK);
+        for (NodeTrie part : parts) {
+            merged.root.children.putAll(part.root.children);
+            merged.nodeCount += part.nodeCount;
+            if (rankedTopK > 0) {
+                for (int i = 0; i < part.root.topKSize; i++)
+                    merged.root.offerTopK(part.root.topK[i], rankedTopK);
+            }
+        }
+        return merged;
+    }
+
+    void nodeCreated() {
+        nodeCount++;
+    }
+
+    @Override
+    public void insert(String word, long score) {
+        if (word == null || word.isEmpty())
+            return;
+        TrieNode wordNode = root;
+        for (int i = 0; i < word.length(); i++) {              // walk by index, no substring copy per level
+            wordNode = wordNode.childOrNew(word.charAt(i), this);
+        }
+        wordNode.isWord = true;
+        wordNode.word = word;
+        wordNode.score += score;
+        offerToRankedCaches(word, wordNode);
+    }
+
+    @Override
+    public boolean increaseScore(String word, long delta) {
+        TrieNode wordNode = findNode(word);
+        if (wordNode == null || !wordNode.isWord)
+            return false;
+        wordNode.score += delta;
+        offerToRankedCaches(word, wordNode);
+        return true;
+    }
+
+    /**
+     * In ranked mode the word node is offered to the top-K cache of every node on its path (root included),
+     * this keeps suggest(prefix, k) down to a walk over the prefix no matter how big the subtree below it is.
+     */
+    private void offerToRankedCaches(String word, TrieNode wordNode) {
+        if (rankedTopK <= 0)
+            return;
+        TrieNode node = root;
+        node.offerTopK(wordNode, rankedTopK);
+        for (int i = 0; i < word.length(); i++) {
+            node = node.children.get(word.charAt(i));
+            node.offerTopK(wordNode, rankedTopK);
+        }
+    }
+
+    @Override
+    public int topKFrom(String word) {
+        TrieNode wordNode = findNode(word);
+        if (rankedTopK <= 0 || wordNode == null)
+            return 1;
+        TrieNode node = root;
+        for (int i = 0; i < word.length(); i++) {
+            node = node.children.get(word.charAt(i));
+            if (node.hasInTopK(wordNode))
+                return i + 1;
+        }
+        return word.length() + 1;
+    }
+
+    private TrieNode findNode(String prefix) {
+        TrieNode lastNode = root;
+        for (int i = 0; i < prefix.length() && lastNode != null; i++) {
+            lastNode = lastNode.children.get(prefix.charAt(i));
+        }
+        return lastNode;
+    }
+
+    public void suggestHelper(TrieNode root, List<String> list, StringBuffer curr) {
+        if (root.isWord) {
+            list.add(curr.toString());
+        }
+
+        if (root.children == null || root.children.isEmpty())
+            return;
+
+        for (TrieNode child : root.children.values()) {
+            suggestHelper(child, list, curr.append(child.c));
+            curr.setLength(curr.length() - 1);
+        }
+    }
+
+    @Override
+    public List<String> suggest(String prefix) {
+        List<String> list = new ArrayList<>();
+        TrieNode lastNode = root;
+        StringBuffer curr = new StringBuffer();
+        for (char c : prefix.toCharArray()) {
+            lastNode = lastNode.children.get(c);
+            if (lastNode == null)
+                return list;
+            curr.append(c);
+        }
+        suggestHelper(lastNode, list, curr);
+        return list;
+    }
+
+    /**
+     * In ranked mode this is served from the top-K cache of the prefix node, so k is capped at rankedTopK,
+     * otherwise the whole subtree is walked and sorted.
+     */
+    @Override
+    public LinkedHashMap<String, Long> suggestWithScores(String prefix, int k) {
+        TrieNode lastNode = findNode(prefix);
+        if (lastNode == null)
+            return new LinkedHashMap<>();
+        return topWords(lastNode, k);
+    }
+
+    private LinkedHashMap<String, Long> topWords(TrieNode lastNode, int k) {
+        LinkedHashMap<String, Long> suggestions = new LinkedHashMap<>();
+        if (rankedTopK > 0) {
+            for (int i = 0; i < Math.min(k, lastNode.topKSize); i++) {
+                suggestions.put(lastNode.topK[i].word, lastNode.topK[i].score);
+            }
+            return suggestions;
+        }
+        List<TrieNode> wordNodes = new ArrayList<>();
+        collectWordNodes(lastNode, wordNodes);
+        wordNodes.sort((a, b) -> Long.compare(b.score, a.score));
+        for (TrieNode wordNode : wordNodes.subList(0, Math.min(k, wordNodes.size()))) {
+            suggestions.put(wordNode.word, wordNode.score);
+        }
+        return suggestions;
+    }
+
+    @Override
+    public LinkedHashMap<String, Long> suggestFuzzy(String prefix, int maxEdits, int k, int maxSteps) {
+        FuzzyMatches matches = new FuzzyMatches(prefix, maxEdits, k, maxSteps);
+        fuzzyHelper(root, 0, matches.noMatch(), matches);
+        return matches.result();
+    }
+
+    /**
+     * @param bound edits of the best match above the node, the node and its children only count when they get below it
+     */
+    private void fuzzyHelper(TrieNode node, int depth, int bound, FuzzyMatches matches) {
+        int edits = matches.distance(depth);
+        if (edits < bound) {
+            matches.add(topWords(node, matches.getK()), edits);
+            bound = edits;
+        }
+        for (TrieNode child : node.children.values()) {
+            if (matches.push(depth + 1, child.c) < bound)
+                fuzzyHelper(child, depth + 1, bound, matches);
+        }
+    }
+
+    private void collectWordNodes(TrieNode node, List<TrieNode> wordNodes) {
+        if (node.isWord)
+            wordNodes.add(node);
+        for (TrieNode child : node.children.values()) {
+            collectWordNodes(child, wordNodes);
+        }
+    }
+
+    @Override
+    public String firstChars() {
+        StringBuilder firstChars = new StringBuilder();
+        for (char c : root.children.keySet())
+            firstChars.append(c);
+        return firstChars.toString();
+    }
+
+    /**
+     * In ranked mode (k up to rankedTopK) every node already has its list, otherwise the lists are merged bottom
+     * up: a node's top k comes from its own word and the top k of its children.
+     */
+    @Override
+    public void exportTopK(char firstChar, int k, BiConsumer<String, LinkedHashMap<String, Long>> sink) {
+        TrieNode node = root.children.get(firstChar);
+        if (node == null)
+            return;
+        StringBuilder prefix = new StringBuilder().append(firstChar);
+        if (rankedTopK > 0 && k <= rankedTopK)
+            exportRanked(node, prefix, k, sink);
+        else
+            exportMerged(node, prefix, k, sink);
+    }
+
+    private void exportRanked(TrieNode node, StringBuilder prefix, int k, BiConsumer<String, LinkedHashMap<String, Long>> sink) {
+        LinkedHashMap<String, Long> suggestions = new LinkedHashMap<>();
+        for (int i = 0; i < Math.min(k, node.topKSize); i++)
+            suggestions.put(node.topK[i].word, node.topK[i].score);
+        sink.accept(prefix.toString(), suggestions);
+        for (TrieNode child : node.children.values()) {
+            exportRanked(child, prefix.append(child.c), k, sink);
+            prefix.setLength(prefix.length() - 1);
+        }
+    }
+
+    private List<TrieNode> exportMerged(TrieNode node, StringBuilder prefix, int k, BiConsumer<String, LinkedHashMap<String, Long>> sink) {
+        List<TrieNode> best = new ArrayList<>();
+        if (node.isWord)
+            best.add(node);
+        for (TrieNode child : node.children.values()) {
+            best.addAll(exportMerged(child, prefix.append(child.c), k, sink));
+            prefix.setLength(prefix.length() - 1);
+        }
+        best.sort((a, b) -> Long.compare(b.score, a.score));
+        if (best.size() > k)
+            best = new ArrayList<>(best.subList(0, k));
+        LinkedHashMap<String, Long> suggestions = new LinkedHashMap<>();
+        for (TrieNode wordNode : best)
+            suggestions.put(wordNode.word, wordNode.score);
+        sink.accept(prefix.toString(), suggestions);
+        return best;
+    }
+
+    @Override
+    public int nodeCount() {
+        return nodeCount;
+    }
+
+    @Override
+    public long estimatedMemoryBytes() {
+        return estimatedMemoryBytes(root);
+    }
+
+    private long estimatedMemoryBytes(TrieNode node) {
+        long bytes = NODE_BYTES + HASH_MAP_BYTES;
+        if (!node.children.isEmpty()) {
+            // HashMap table is a power of two with a 0.75 load factor, never smaller than 16
+            int tableSize = Math.max(16, Integer.highestOneBit((int) (node.children.size() / 0.75f)) << 1);
+            bytes += ARRAY_HEADER_BYTES + 4L * tableSize + (long) HASH_MAP_ENTRY_BYTES * node.children.size();
+        }
+        if (node.topK != null)
+            bytes += ARRAY_HEADER_BYTES + 4L * node.topK.length;
+        for (TrieNode child : node.children.values()) {
+            bytes += estimatedMemoryBytes(child);
+        }
+        return bytes;
+    }
+}
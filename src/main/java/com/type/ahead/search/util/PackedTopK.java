@@ -0,0 +1,97 @@
+package com.type.ahead.search.util;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Suggestion list of a prefix packed into one byte string by word id instead of word, for the packed redis layout
+ * (see PackedPrefixStore). Highest score first, so the top n are the first n entries. Per suggestion a varint of
+ * (word id << 1 | flag) and then the score: for whole numbers (plain counts, the usual case) a varint of how much
+ * lower it is than the whole score before it (the first one as is), mostly a single byte, or the 8 bytes of the
+ * double when the flag is set (decayed scores).
+ */
+public final class PackedTopK {
+
+    private PackedTopK() {
+    }
+
+    /**
+     * Decoded suggestions, ids[i] with scores[i] for i below size
+     */
+    public static final class Entries {
+        public final int[] ids;
+        public final double[] scores;
+        public int size;
+
+        Entries(int capacity) {
+            ids = new int[capacity];
+            scores = new double[capacity];
+        }
+    }
+
+    /**
+     * @param ids    word ids, highest score first
+     * @param scores their scores
+     */
+    public static byte[] encode(int[] ids, double[] scores, int size) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size * 4);
+        long previous = -1;   // last whole score, none yet
+        for (int i = 0; i < size; i++) {
+            double score = scores[i];
+            boolean whole = score >= 0 && score < 1L << 53 && score == Math.rint(score)
+                    && (previous < 0 || score <= previous);
+            writeVarint(out, (long) ids[i] << 1 | (whole ? 0 : 1));
+            if (whole) {
+                writeVarint(out, previous < 0 ? (long) score : previous - (long) score);
+                previous = (long) score;
+            } else {
+                long bits = Double.doubleToRawLongBits(score);
+                for (int shift = 56; shift >= 0; shift -= 8)
+                    out.write((int) (bits >>> shift));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the first limit suggestions of the packed list
+     */
+    public static Entries decode(byte[] packed, int limit) {
+        Entries entries = new Entries(Math.min(limit, packed.length / 2));
+        int[] at = {0};
+        long previous = -1;
+        while (at[0] < packed.length && entries.size < limit) {
+            long header = readVarint(packed, at);
+            entries.ids[entries.size] = (int) (header >>> 1);
+            if ((header & 1) == 0) {
+                long value = readVarint(packed, at);
+                previous = previous < 0 ? value : previous - value;
+                entries.scores[entries.size] = previous;
+            } else {
+                long bits = 0;
+                for (int i = 0; i < 8; i++)
+                    bits = bits << 8 | (packed[at[0]++] & 0xff);
+                entries.scores[entries.size] = Double.longBitsToDouble(bits);
+            }
+            entries.size++;
+        }
+        return entries;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] bytes, int[] at) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = bytes[at[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.type.ahead.search.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how many times each query was logged, safe to call from any number of request threads while the
+ * scheduler drains it. Counts are LongAdders so threads hitting the same hot query don't fight over one
+ * value, and draining swaps in a fresh buffer instead of locking: increments that started on the old
+ * buffer are waited for, everything after the swap lands in the new one, nothing is lost.
+ */
+public class QueryCounter implements QueryTracker {
+    private static final class Buffer {
+        final ConcurrentHashMap<String, LongAdder> counts = new ConcurrentHashMap<>();
+        final AtomicLong activeWriters = new AtomicLong();
+        final LongAdder total = new LongAdder();
+        final long createdNanos = System.nanoTime();
+    }
+
+    private static final int ENTRY_BYTES = 120;  // rough ConcurrentHashMap node + LongAdder + short String
+
+    private volatile Buffer current = new Buffer();
+    private volatile double lastQueriesPerSecondPerCore;
+    private volatile String lastDrainReport = "nothing drained yet";
+
+    @Override
+    public void increment(String query) {
+        add(query, 1);
+    }
+
+    @Override
+    public void add(String query, long count) {
+        while (true) {
+            Buffer buffer = current;
+            buffer.activeWriters.incrementAndGet();
+            try {
+                if (buffer != current)
+                    continue;                              // swapped under us, retry on the new buffer
+                LongAdder adder = buffer.counts.get(query);
+                if (adder == null)
+                    adder = buffer.counts.computeIfAbsent(query, key -> new LongAdder());
+                adder.add(count);
+                buffer.total.add(count);
+                return;
+            } finally {
+                buffer.activeWriters.decrementAndGet();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return current.counts.size();
+    }
+
+    public boolean isEmpty() {
+        return current.counts.isEmpty();
+    }
+
+    @Override
+    public Map<String, Long> drain() {
+        Buffer drained = current;
+        current = new Buffer();
+        while (drained.activeWriters.get() != 0) {
+            Thread.onSpinWait();                           // writers that got the old buffer finish in a few ns
+        }
+        Map<String, Long> counts = new HashMap<>(drained.counts.size() * 2);
+        drained.counts.forEach((query, adder) -> counts.put(query, adder.sum()));
+        double seconds = (System.nanoTime() - drained.createdNanos) / 1e9;
+        lastQueriesPerSecondPerCore = drained.total.sum() / seconds / Runtime.getRuntime().availableProcessors();
+        lastDrainReport = String.format("mode=EXACT queries=%d distinct=%d estimatedBytes=%d maxOverCount=0",
+                drained.total.sum(), counts.size(), (long) ENTRY_BYTES * counts.size());
+        return counts;
+    }
+
+    @Override
+    public double getLastQueriesPerSecondPerCore() {
+        return lastQueriesPerSecondPerCore;
+    }
+
+    @Override
+    public long getLastDroppedQueries() {
+        return 0;
+    }
+
+    @Override
+    public String getLastDrainReport() {
+        return lastDrainReport;
+    }
+}
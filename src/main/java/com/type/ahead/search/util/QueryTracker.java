@@ -0,0 +1,48 @@
+package com.type.ahead.search.util;
+
+import java.util.Map;
+
+/**
+ * Counts logged queries between two runs of the scheduled data load, called from request threads
+ * while the scheduler drains it
+ */
+public interface QueryTracker {
+
+    /**
+     * query.tracking.mode, EXACT is QueryCounter and HEAVY_HITTERS is HeavyHitterTracker
+     */
+    enum Mode {
+        EXACT, HEAVY_HITTERS
+    }
+
+    void increment(String query);
+
+    void add(String query, long count);
+
+    /**
+     * Number of distinct queries waiting for the next drain
+     */
+    int size();
+
+    /**
+     * Takes everything counted so far and starts over
+     * @return query to count
+     */
+    Map<String, Long> drain();
+
+    /**
+     * Logged queries per second per core over the window of the last drain
+     */
+    double getLastQueriesPerSecondPerCore();
+
+    /**
+     * Logged queries of the last drained window that are not in the drained counts, only HEAVY_HITTERS drops
+     * the long tail
+     */
+    long getLastDroppedQueries();
+
+    /**
+     * Memory used and counting error of the last drained window
+     */
+    String getLastDrainReport();
+}
@@ -0,0 +1,60 @@
+package com.type.ahead.search.util;
+
+/**
+ * Time decayed scores without ever rescoring what is already stored (forward decay in log space).
+ * A count seen at time t is stored as ln(count) + rate * t, t counted from a fixed epoch, and adding counts is a
+ * log-add-exp of the stored values. Decaying all scores by the same factor doesn't change their order, so the
+ * sorted sets rank by popularity decayed to "now" while the stored values stay put; old words just fall behind
+ * new traffic at one half life per half life. Stored values grow linearly with time, they never overflow.
+ * <p>
+ * Disabled it stores plain counts, the two representations can't be mixed in one redis.
+ */
+public class ScoreDecay {
+    // 2024-01-01T00:00:00Z, stored values stay small numbers for a long time
+    private static final long EPOCH_MILLIS = 1_704_067_200_000L;
+    // a count of 0, far enough below every real score that log-add-exp with it returns the other value exactly
+    static final double NO_SCORE = -1e6;
+
+    private final boolean enabled;
+    private final double ratePerMilli;
+
+    /**
+     * @param halfLifeHours time for a score to drop to half its weight against new traffic
+     */
+    public ScoreDecay(boolean enabled, double halfLifeHours) {
+        this.enabled = enabled;
+        this.ratePerMilli = Math.log(2) / (halfLifeHours * 3_600_000d);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return value to store in redis for count queries seen at nowMillis
+     */
+    public double stored(long count, long nowMillis) {
+        if (!enabled)
+            return count;
+        return count <= 0 ? NO_SCORE : Math.log(count) + ratePerMilli * (nowMillis - EPOCH_MILLIS);
+    }
+
+    /**
+     * @return the count a stored value is worth at nowMillis
+     */
+    public double decayedCount(double stored, long nowMillis) {
+        if (!enabled)
+            return stored;
+        return Math.exp(stored - ratePerMilli * (nowMillis - EPOCH_MILLIS));
+    }
+
+    /**
+     * Stored value of two stored values added up, what increment_top_k.lua does in redis
+     */
+    public double add(double stored, double increment) {
+        if (!enabled)
+            return stored + increment;
+        double max = Math.max(stored, increment);
+        return max + Math.log(Math.exp(stored - max) + Math.exp(increment - max));
+    }
+}
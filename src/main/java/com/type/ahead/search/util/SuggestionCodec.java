@@ -0,0 +1,101 @@
+package com.type.ahead.search.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import redis.clients.jedis.resps.Tuple;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Wire formats of the suggestion endpoint.
+ * <p>
+ * JSON is a bare array, ["apple","apply"] or with scores [["apple",12],["apply",3]], whole scores are written
+ * without a fraction.
+ * <p>
+ * Binary is length prefixed, big endian: a u16 count, then per suggestion a u16 byte length and the UTF-8 bytes
+ * of the word, followed by the score as an 8 byte double when scores are asked for.
+ */
+public final class SuggestionCodec {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private SuggestionCodec() {
+    }
+
+    public static byte[] json(List<Tuple> suggestions, boolean withScores) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + suggestions.size() * (withScores ? 24 : 12));
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out)) {
+            generator.writeStartArray();
+            for (Tuple suggestion : suggestions) {
+                if (withScores) {
+                    generator.writeStartArray();
+                    generator.writeString(suggestion.getElement());
+                    double score = suggestion.getScore();
+                    if (score == Math.rint(score) && Math.abs(score) < 0x1p53)
+                        generator.writeNumber((long) score);
+                    else
+                        generator.writeNumber(score);
+                    generator.writeEndArray();
+                } else {
+                    generator.writeString(suggestion.getElement());
+                }
+            }
+            generator.writeEndArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);   // only writes to memory
+        }
+        return out.toByteArray();
+    }
+
+    public static byte[] binary(List<Tuple> suggestions, boolean withScores) {
+        int count = Math.min(suggestions.size(), 0xFFFF);
+        List<byte[]> words = new ArrayList<>(count);
+        int size = 2;
+        for (int i = 0; i < count; i++) {
+            byte[] word = suggestions.get(i).getElement().getBytes(StandardCharsets.UTF_8);
+            if (word.length > 0xFFFF)
+                throw new IllegalArgumentException("suggestion longer than 65535 bytes");
+            words.add(word);
+            size += 2 + word.length + (withScores ? Double.BYTES : 0);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            buffer.putShort((short) words.get(i).length);
+            buffer.put(words.get(i));
+            if (withScores)
+                buffer.putDouble(suggestions.get(i).getScore());
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Reads the binary format back, scores are 0 when they were not written
+     */
+    public static List<Tuple> readBinary(byte[] bytes, boolean withScores) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int count = Short.toUnsignedInt(buffer.getShort());
+        List<Tuple> suggestions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] word = new byte[Short.toUnsignedInt(buffer.getShort())];
+            buffer.get(word);
+            suggestions.add(new Tuple(new String(word, StandardCharsets.UTF_8), withScores ? buffer.getDouble() : 0d));
+        }
+        return suggestions;
+    }
+
+    /**
+     * Strong ETag of a response body, the same suggestions give the same tag on every instance of the service
+     */
+    public static String etag(byte[] body) {
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(body.length) + "\"";
+    }
+}
@@ -0,0 +1,69 @@
+package com.type.ahead.search.util;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage behind the TrieDataStore, lets us swap the HashMap node trie for a compact array backed one
+ */
+public interface TrieBackend {
+
+    /**
+     * Inserts the word and adds the score to it, if the word is already present only its score goes up
+     */
+    void insert(String word, long score);
+
+    /**
+     * @return false if the word is not in the trie
+     */
+    boolean increaseScore(String word, long delta);
+
+    /**
+     * Length of the shortest prefix of the word that has it among its top suggestions, every longer prefix has it
+     * too (its subtree is a part of the shorter one's). Scores only go up, so right after an insert or increaseScore
+     * of the word these are exactly the prefixes whose suggestion lists changed. word.length() + 1 when none has it,
+     * backends without per prefix suggestions return 1 as any prefix may have changed.
+     */
+    default int topKFrom(String word) {
+        return 1;
+    }
+
+    /**
+     * All words starting with the prefix, in no particular order
+     */
+    List<String> suggest(String prefix);
+
+    /**
+     * Top k words starting with the prefix with their scores, highest score first
+     */
+    LinkedHashMap<String, Long> suggestWithScores(String prefix, int k);
+
+    /**
+     * Top k words starting with anything within maxEdits edits (Levenshtein) of the prefix, fewest edits
+     * first then highest score. Gives up after maxSteps trie steps so a lookup has a fixed worst case.
+     */
+    LinkedHashMap<String, Long> suggestFuzzy(String prefix, int maxEdits, int k, int maxSteps);
+
+    /**
+     * First characters of all words, each one starts an independent subtree
+     */
+    String firstChars();
+
+    /**
+     * Walks the subtree of the words starting with firstChar once and hands every prefix in it to the sink with
+     * its top k words, highest score first. Only reads the trie, so different subtrees can be exported from
+     * different threads at the same time.
+     */
+    void exportTopK(char firstChar, int k, BiConsumer<String, LinkedHashMap<String, Long>> sink);
+
+    /**
+     * Number of nodes, the root is not counted
+     */
+    int nodeCount();
+
+    /**
+     * Estimated heap footprint of the trie structure in bytes (assumes compressed oops)
+     */
+    long estimatedMemoryBytes();
+}
@@ -1,20 +1,39 @@
 package com.type.ahead.search.util;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Setter
 @Getter
 public class TrieDataStore {
-    TrieNode root;
+    public enum Storage {
+        NODE,       // TrieNode objects with HashMap children
+        COMPACT     // CompactTrie, flat arrays with path compression
+    }
+
+    @Setter(AccessLevel.NONE)
+    private TrieBackend backend;
     private static TrieDataStore trie_DataStore_instance = null;
     private Set<String> allWords = new HashSet<>();  // used to maintain a list of words loaded into the Trie
                                                      // which can then be used to generate a list of all possible prefixes
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private Map<String, Integer> changedWords = new HashMap<>();  // word -> its shortest prefix whose suggestions changed
+    @Setter(AccessLevel.NONE)
+    private Storage storage = Storage.NODE;
+    @Setter(AccessLevel.NONE)
+    private int rankedTopK = 0;  // ranked mode when > 0, node storage then caches the best rankedTopK words on every node
+    private static final int PARALLEL_LOAD_MIN_WORDS = 10_000;
+
     private TrieDataStore() {
+        backend = newBackend();
     }
 
     public static TrieDataStore getTrieInstance() {
@@ -24,59 +43,170 @@ public class TrieDataStore {
         return trie_DataStore_instance;
     }
 
+    /**
+     * Switches the storage used by the Trie, this resets the Trie
+     * @param storage
+     */
+    public void setStorage(Storage storage) {
+        this.storage = storage;
+        reset();
+    }
+
+    public void setRankedTopK(int rankedTopK) {
+        this.rankedTopK = rankedTopK;
+        if (backend instanceof NodeTrie)
+            ((NodeTrie) backend).setRankedTopK(rankedTopK);
+    }
+
+    private TrieBackend newBackend() {
+        return storage == Storage.COMPACT ? new CompactTrie() : new NodeTrie(rankedTopK);
+    }
+
     public void reset() {
-        root = new TrieNode();
+        backend = newBackend();
         allWords = new HashSet<>();
-        TrieNode.totalNodes = 0;
+        changedWords = new HashMap<>();
     }
 
     /**
-     * This method is used to bulk load data into the Trie
+     * This method is used to bulk load data into the Trie.
+     * A big load into an empty Trie is built in parallel: the words are split by first character, each group is
+     * built into its own trie on the common ForkJoinPool and the parts are merged at the end.
      * @param words
      */
     public void TrieLoadData(List<String> words) {
-        if(root ==null)
-            root = new TrieNode();
-        for (String word : words) {
-            allWords.add(word);
-            root.insert(word);
+        if (words.size() < PARALLEL_LOAD_MIN_WORDS || backend.nodeCount() > 0) {
+            for (String word : words) {
+                insertWord(word, 0);
+            }
+            return;
         }
+        Collection<List<String>> groups = words.stream()
+                .filter(word -> word != null && !word.isEmpty())
+                .collect(Collectors.groupingBy(word -> word.charAt(0)))
+                .values();
+        List<TrieBackend> parts = groups.parallelStream().map(group -> {
+            TrieBackend part = newBackend();
+            for (String word : group)
+                part.insert(word, 0);
+            return part;
+        }).collect(Collectors.toList());
+        if (storage == Storage.COMPACT)
+            backend = CompactTrie.merge(parts.stream().map(CompactTrie.class::cast).collect(Collectors.toList()));
+        else
+            backend = NodeTrie.merge(parts.stream().map(NodeTrie.class::cast).collect(Collectors.toList()), rankedTopK);
+        allWords.addAll(words);
+        for (String word : allWords)   // the trie was empty, every prefix is new
+            changedWords.put(word, 1);
     }
 
     public void insertWord(String word) {
+        insertWord(word, 0);
+    }
+
+    /**
+     * Inserts a word and adds the given score to it, if the word is already present only its score goes up
+     * @param word
+     * @param score
+     */
+    public void insertWord(String word, long score) {
         allWords.add(word);
-        if (root == null) {
-            root = new TrieNode();
-        }
-        root.insert(word);
+        backend.insert(word, score);
+        markChanged(word);
     }
 
-    public void suggestHelper(TrieNode root, List<String> list, StringBuffer curr) {
-        if (root.isWord) {
-            list.add(curr.toString());
-        }
+    /**
+     * Increases the score of a word already present in the Trie
+     * @param word
+     * @param delta
+     * @return false if the word is not in the Trie
+     */
+    public boolean increaseScore(String word, long delta) {
+        if (!backend.increaseScore(word, delta))
+            return false;
+        markChanged(word);
+        return true;
+    }
 
-        if (root.children == null || root.children.isEmpty())
+    private void markChanged(String word) {
+        if (word == null || word.isEmpty())
             return;
+        int from = backend.topKFrom(word);
+        if (from <= word.length())
+            changedWords.merge(word, from, Math::min);
+    }
 
-        for (TrieNode child : root.children.values()) {
-            suggestHelper(child, list, curr.append(child.c));
-            curr.setLength(curr.length() - 1);
-        }
+    /**
+     * True when the Trie knows which prefixes' suggestions changed (ranked node storage), otherwise every
+     * prefix of a changed word counts as changed
+     */
+    public boolean isTrackingChanges() {
+        return storage == Storage.NODE && rankedTopK > 0;
+    }
+
+    /**
+     * Prefixes whose top suggestions changed since the last clearChanges (or reset), grouped by first character
+     * so they can be flushed a partition at a time
+     */
+    public Map<Character, Set<String>> getChangedPrefixes() {
+        Map<Character, Set<String>> prefixes = new HashMap<>();
+        changedWords.forEach((word, from) -> {
+            Set<String> partition = prefixes.computeIfAbsent(word.charAt(0), firstChar -> new HashSet<>());
+            for (int i = from; i <= word.length(); i++)
+                partition.add(word.substring(0, i));
+        });
+        return prefixes;
+    }
+
+    public void clearChanges() {
+        changedWords = new HashMap<>();
     }
 
     public List<String> suggest(String prefix) {
-        List<String> list = new ArrayList<>();
-        TrieNode lastNode = root;
-        StringBuffer curr = new StringBuffer();
-        for (char c : prefix.toCharArray()) {
-            lastNode = lastNode.children.get(c);
-            if (lastNode == null)
-                return list;
-            curr.append(c);
-        }
-        suggestHelper(lastNode, list, curr);
-        return list;
+        return backend.suggest(prefix);
+    }
+
+    /**
+     * Top k suggestions for the prefix ordered by score (highest first)
+     * @param prefix
+     * @param k
+     */
+    public List<String> suggest(String prefix, int k) {
+        return new ArrayList<>(suggestWithScores(prefix, k).keySet());
+    }
+
+    /**
+     * Top k suggestions for the prefix with their scores, ordered by score (highest first).
+     * In ranked mode node storage serves this from the top-K cache of the prefix node so k is capped at
+     * rankedTopK, compact storage always does a best first search over the subtree.
+     * @param prefix
+     * @param k
+     */
+    public LinkedHashMap<String, Long> suggestWithScores(String prefix, int k) {
+        return backend.suggestWithScores(prefix, k);
+    }
+
+    /**
+     * First characters of all the words, the export can be split up by these
+     */
+    public String getFirstChars() {
+        return backend.firstChars();
+    }
+
+    /**
+     * Every prefix of the words starting with firstChar with its top k suggestions, in one walk over that
+     * subtree instead of building the prefix set and running suggest per prefix
+     */
+    public void exportTopK(char firstChar, int k, BiConsumer<String, LinkedHashMap<String, Long>> sink) {
+        backend.exportTopK(firstChar, k, sink);
+    }
+
+    /**
+     * Every prefix in the Trie with its top k suggestions, the first character subtrees are exported in parallel
+     * on the common ForkJoinPool so the sink is called from several threads at once
+     */
+    public void exportTopK(int k, BiConsumer<String, LinkedHashMap<String, Long>> sink) {
+        backend.firstChars().chars().parallel().forEach(firstChar -> backend.exportTopK((char) firstChar, k, sink));
     }
 
     public Set<String> getAllTriePrefixes() {
@@ -96,6 +226,24 @@ public class TrieDataStore {
     }
 
     public static int getTrieSize() {
-        return TrieNode.totalNodes;
+        return getTrieInstance().backend.nodeCount();
+    }
+
+    /**
+     * Estimated heap used by the trie structure, the allWords set is not included
+     */
+    public static long getTrieMemoryBytes() {
+        return getTrieInstance().backend.estimatedMemoryBytes();
+    }
+
+    /**
+     * One line memory summary so the storages can be compared in bytes per word
+     */
+    public static String getTrieMemoryReport() {
+        TrieDataStore trieDataStore = getTrieInstance();
+        long bytes = getTrieMemoryBytes();
+        int words = trieDataStore.allWords.size();
+        return String.format("storage=%s nodes=%d words=%d estimatedBytes=%d bytesPerWord=%.1f",
+                trieDataStore.storage, getTrieSize(), words, bytes, words == 0 ? 0d : (double) bytes / words);
     }
 }
@@ -2,22 +2,22 @@ package com.type.ahead.search.util;
 
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
 @Slf4j
 public class TrieNode {
-    public static int totalNodes;
     Map<Character, TrieNode> children;
     char c;
     boolean isWord;
-    int score;
+    String word;          // full word, only set on word nodes so ranked suggestions don't have to rebuild it
+    long score;
+    TrieNode[] topK;      // ranked mode only: best scoring word nodes of this subtree, highest score first
+    int topKSize;
 
     public TrieNode(char c) {
         this.c = c;
-        totalNodes++;                                           // Increment totalNodes when new node is created
         children = new HashMap<>();
     }
 
@@ -25,20 +25,57 @@ public class TrieNode {
         this.children = new HashMap<>();
     }
 
-    public void insert(String word) {
-        if (word == null || word.isEmpty()) return;
-        char firstChar = word.charAt(0);
-        TrieNode child = children.get(firstChar);
+    /**
+     * @return the child for c, created when there is none yet
+     */
+    TrieNode childOrNew(char c, NodeTrie trie) {
+        TrieNode child = children.get(c);
         if (child == null) {
-            // create a new node
-            child = new TrieNode(firstChar);
-            children.put(firstChar, child);
+            child = new TrieNode(c);
+            children.put(c, child);
+            trie.nodeCreated();
         }
-        if (word.length() > 1) child.insert(word.substring(1));
-        else child.isWord = true;
+        return child;
     }
 
-}
-
+    /**
+     * Offers a word node to the top-K cache of this node, the cache stays ordered by score (highest first).
+     * Scores only ever go up, so a node that is already cached can only move towards the front
+     * and whatever falls off the end can never come back ahead of the ones kept.
+     * @param wordNode node of the word whose score was set or increased
+     * @param k max number of suggestions cached per node
+     */
+    void offerTopK(TrieNode wordNode, int k) {
+        if (topK == null) {
+            topK = new TrieNode[k];
+        } else if (topK.length < k) {
+            topK = Arrays.copyOf(topK, k);
+        }
+        int i = 0;
+        while (i < topKSize && topK[i] != wordNode) i++;
+        if (i == topKSize) {                                    // not cached yet
+            if (topKSize < k) {
+                topKSize++;
+            } else if (wordNode.score > topK[k - 1].score) {
+                i = k - 1;                                      // evict the lowest scoring suggestion
+            } else {
+                return;
+            }
+            topK[i] = wordNode;
+        }
+        while (i > 0 && topK[i - 1].score < wordNode.score) {   // bubble up to keep the cache sorted
+            topK[i] = topK[i - 1];
+            topK[i - 1] = wordNode;
+            i--;
+        }
+    }
 
+    boolean hasInTopK(TrieNode wordNode) {
+        for (int i = 0; i < topKSize; i++) {
+            if (topK[i] == wordNode)
+                return true;
+        }
+        return false;
+    }
 
+}
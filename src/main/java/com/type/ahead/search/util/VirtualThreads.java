@@ -0,0 +1,41 @@
+package com.type.ahead.search.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual threads without compiling against JDK 21: the executor is looked up by reflection, so the same build
+ * runs on virtual threads when started on 21 or newer and reports them missing on older runtimes.
+ */
+public final class VirtualThreads {
+
+    /**
+     * request.execution.mode, PLATFORM keeps tomcat's worker pool and VIRTUAL serves requests on virtual threads
+     */
+    public enum ExecutionMode {
+        PLATFORM, VIRTUAL
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return an executor starting a new virtual thread per task, empty when the runtime has no virtual threads
+     * or has them as a preview feature that is not enabled (JDK 19 and 20 without --enable-preview)
+     */
+    public static Optional<ExecutorService> newThreadPerTaskExecutor() {
+        try {
+            return Optional.of((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+        } catch (NoSuchMethodException e) {
+            return Optional.empty();
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof UnsupportedOperationException)
+                return Optional.empty();
+            throw new IllegalStateException("could not create the virtual thread executor", e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("could not create the virtual thread executor", e);
+        }
+    }
+}
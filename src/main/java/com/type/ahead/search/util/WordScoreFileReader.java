@@ -0,0 +1,136 @@
+package com.type.ahead.search.util;
+
+import lombok.Getter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads a dictionary file of "word&lt;TAB&gt;score" lines (or just "word", score 0) in chunks through a FileChannel,
+ * only one read buffer and the current chunk are ever in memory no matter how big the file is.
+ * Lines are split on the bytes, only the word is decoded (UTF-8) and the score is parsed straight from the bytes.
+ * Blank lines and lines starting with # are ignored, lines with a bad score are skipped and counted.
+ */
+public class WordScoreFileReader implements Closeable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private byte[] line = new byte[256];
+    private int lineLength;
+    private boolean endOfFile;
+
+    @Getter
+    private final long fileBytes;
+    @Getter
+    private long bytesRead;
+    @Getter
+    private long skippedLines;
+
+    public WordScoreFileReader(Path path, int bufferBytes) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.fileBytes = channel.size();
+        this.buffer = ByteBuffer.allocate(bufferBytes);
+        buffer.flip();
+    }
+
+    /**
+     * @return up to maxEntries words with their scores, null once the file is done
+     */
+    public Chunk nextChunk(int maxEntries) throws IOException {
+        Chunk chunk = new Chunk(maxEntries);
+        while (chunk.size < maxEntries && !endOfFile) {
+            if (!buffer.hasRemaining() && !fill()) {
+                endOfFile = true;
+                if (lineLength > 0)
+                    parseLine(chunk);      // last line without a newline
+                break;
+            }
+            byte[] bytes = buffer.array();
+            int position = buffer.position();
+            int limit = buffer.limit();
+            int newline = position;
+            while (newline < limit && bytes[newline] != '\n')
+                newline++;
+            append(bytes, position, newline - position);
+            if (newline < limit) {
+                parseLine(chunk);
+                lineLength = 0;
+                newline++;
+            }
+            buffer.position(newline);
+        }
+        return chunk.size == 0 ? null : chunk;
+    }
+
+    private boolean fill() throws IOException {
+        buffer.clear();
+        int read = channel.read(buffer);
+        buffer.flip();
+        if (read < 0)
+            return false;
+        bytesRead += read;
+        return true;
+    }
+
+    private void append(byte[] bytes, int from, int length) {
+        if (lineLength + length > line.length)
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + length));
+        System.arraycopy(bytes, from, line, lineLength, length);
+        lineLength += length;
+    }
+
+    private void parseLine(Chunk chunk) {
+        int end = lineLength;
+        if (end > 0 && line[end - 1] == '\r')
+            end--;
+        if (end == 0 || line[0] == '#')
+            return;
+        int tab = 0;
+        while (tab < end && line[tab] != '\t')
+            tab++;
+        long score = 0;
+        if (tab < end) {
+            if (tab + 1 == end) {
+                skippedLines++;
+                return;
+            }
+            for (int i = tab + 1; i < end; i++) {
+                int digit = line[i] - '0';
+                if (digit < 0 || digit > 9 || score > (Long.MAX_VALUE - digit) / 10) {
+                    skippedLines++;
+                    return;
+                }
+                score = score * 10 + digit;
+            }
+        }
+        String word = new String(line, 0, tab, StandardCharsets.UTF_8).trim();
+        if (word.isEmpty()) {
+            skippedLines++;
+            return;
+        }
+        chunk.words[chunk.size] = word;
+        chunk.scores[chunk.size] = score;
+        chunk.size++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static final class Chunk {
+        public final String[] words;
+        public final long[] scores;
+        public int size;
+
+        public Chunk(int capacity) {
+            words = new String[capacity];
+            scores = new long[capacity];
+        }
+    }
+}
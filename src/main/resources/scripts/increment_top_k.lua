@@ -0,0 +1,26 @@
+-- Adds to the score of a word in all of its prefix sorted sets in one call, keeping every set at most max size.
+-- A word that is not in a full set only gets in when its score beats the current lowest one, which is evicted.
+-- With time decay (see ScoreDecay) scores are logs and adding is a log-add-exp instead of ZINCRBY.
+-- KEYS all prefix keys of the word
+-- ARGV[1] word, ARGV[2] score increment, ARGV[3] max size of a sorted set, ARGV[4] "1" for decayed scores
+local word = ARGV[1]
+local increment = tonumber(ARGV[2])
+local maxSize = tonumber(ARGV[3])
+local decayed = ARGV[4] == '1'
+for _, key in ipairs(KEYS) do
+    local current = redis.call('ZSCORE', key, word)
+    if decayed and current then
+        current = tonumber(current)
+        local max = math.max(current, increment)
+        redis.call('ZADD', key, max + math.log(math.exp(current - max) + math.exp(increment - max)), word)
+    elseif current or redis.call('ZCARD', key) < maxSize then
+        redis.call('ZINCRBY', key, increment, word)
+    else
+        local lowest = redis.call('ZRANGE', key, 0, 0, 'WITHSCORES')
+        if increment > tonumber(lowest[2]) then
+            redis.call('ZPOPMIN', key)
+            redis.call('ZADD', key, increment, word)
+        end
+    end
+end
+return #KEYS
@@ -0,0 +1,27 @@
+-- Word ids of the packed layout: returns the id of every word, a word seen for the first time gets the next id.
+-- Ids never change once given out, so clients can keep id to word lookups for good. The id to word side is split
+-- into hashes of 128 ids (name:{id / 128}) small enough for redis to keep them listpack encoded.
+-- Every key written is declared: the caller reads the number of words interned so far and passes the id to word
+-- hashes the next ids can fall in, from the one of id interned + 1 up to the one of id interned + #words. When
+-- another client interned words in between the count doesn't match, nothing is written and the call returns
+-- false for the caller to retry with the new count.
+-- KEYS[1] word -> id hash, KEYS[2..] id -> word hashes the new ids can fall in, in order
+-- ARGV[1] words interned so far (HLEN of KEYS[1]), ARGV[2..] words
+local last = redis.call('HLEN', KEYS[1])
+if last ~= tonumber(ARGV[1]) then
+    return false
+end
+local firstHash = math.floor((last + 1) / 128)
+local ids = {}
+for i = 2, #ARGV do
+    local word = ARGV[i]
+    local id = redis.call('HGET', KEYS[1], word)
+    if not id then
+        last = last + 1
+        id = last
+        redis.call('HSET', KEYS[1], word, id)
+        redis.call('HSET', KEYS[2 + math.floor(id / 128) - firstHash], id, word)
+    end
+    ids[i - 1] = tonumber(id)
+end
+return ids
@@ -0,0 +1,31 @@
+-- Merges suggestions into a prefix sorted set that holds at most max size members, keeping the best ones.
+-- A member already in the set keeps the higher of its two scores, a new one only gets into a full set when its
+-- score beats the current lowest one, which is evicted (the eviction of increment_top_k.lua).
+-- KEYS[1] prefix key
+-- ARGV[1] max size of the sorted set, ARGV[2..] score member pairs
+local key = KEYS[1]
+local maxSize = tonumber(ARGV[1])
+local size = redis.call('ZCARD', key)
+local added = 0
+for i = 2, #ARGV, 2 do
+    local score = tonumber(ARGV[i])
+    local member = ARGV[i + 1]
+    local current = redis.call('ZSCORE', key, member)
+    if current then
+        if score > tonumber(current) then
+            redis.call('ZADD', key, score, member)
+        end
+    elseif size < maxSize then
+        redis.call('ZADD', key, score, member)
+        size = size + 1
+        added = added + 1
+    else
+        local lowest = redis.call('ZRANGE', key, 0, 0, 'WITHSCORES')
+        if score > tonumber(lowest[2]) then
+            redis.call('ZPOPMIN', key)
+            redis.call('ZADD', key, score, member)
+            added = added + 1
+        end
+    end
+end
+return added
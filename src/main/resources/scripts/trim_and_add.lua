@@ -0,0 +1,11 @@
+-- Adds suggestions to a prefix sorted set without letting it grow past the max size.
+-- Makes room first by dropping the lowest scored members, same as the old exists/zcount/zremrangeByRank/zadd sequence.
+-- KEYS[1] prefix key
+-- ARGV[1] max size of the sorted set, ARGV[2..] score member pairs
+local maxSize = tonumber(ARGV[1])
+local incoming = (#ARGV - 1) / 2
+local extra = redis.call('ZCARD', KEYS[1]) + incoming - maxSize
+if extra > 0 then
+    redis.call('ZREMRANGEBYRANK', KEYS[1], 0, extra - 1)
+end
+return redis.call('ZADD', KEYS[1], unpack(ARGV, 2))
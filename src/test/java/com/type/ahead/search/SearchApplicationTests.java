@@ -3,7 +3,8 @@ package com.type.ahead.search;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
-@SpringBootTest
+// no journal or trie snapshot, they would write to data/ of the working tree and be replayed by the next run
+@SpringBootTest(properties = {"journal.enabled=false", "trie.snapshot.enabled=false"})
 class SearchApplicationTests {
 
 	@Test
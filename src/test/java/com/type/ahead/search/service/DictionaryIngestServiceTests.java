@@ -0,0 +1,146 @@
+package com.type.ahead.search.service;
+
+import com.type.ahead.search.util.ScoreDecay;
+import com.type.ahead.search.util.TrieDataStore;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+import redis.clients.jedis.resps.Tuple;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Bulk loads against an in process redis, in chunks of 5 words with 2 chunks queued and a flush every 10 words
+ */
+class DictionaryIngestServiceTests {
+	private static final String READER_THREAD = "dictionary-ingest-reader";
+
+	private static EmbeddedRedisShards redis;
+	private static RedisAccessService redisAccessService;
+	private static PrefixFlushService prefixFlushService;
+
+	@TempDir
+	Path dir;
+
+	private final AtomicBoolean readerBlockedAtFirstFlush = new AtomicBoolean();
+	private DictionaryIngestService ingest;
+
+	@BeforeAll
+	static void startRedis() throws IOException {
+		redis = EmbeddedRedisShards.start(1);
+		redisAccessService = redis.getRedisAccessService();
+		prefixFlushService = redis.prefixFlushService(4, 100, 2, new ScoreDecay(false, 24));
+	}
+
+	@AfterAll
+	static void stopRedis() throws IOException {
+		redis.close();
+	}
+
+	@BeforeEach
+	void wireIngest() throws IOException {
+		redis.flushAll();
+		TrieDataStore.getTrieInstance().reset();
+		JedisService jedisService = new JedisService() {
+			@Override
+			public void mergeDataToRedis() {
+				if (!readerBlockedAtFirstFlush.get())
+					readerBlockedAtFirstFlush.set(readerBlockedOnTheQueue());
+				super.mergeDataToRedis();
+			}
+		};
+		ReflectionTestUtils.setField(jedisService, "redisSetSize", 4);
+		ReflectionTestUtils.setField(jedisService, "redisRetainRatio", 2);
+		ReflectionTestUtils.setField(jedisService, "prefixFlushService", prefixFlushService);
+		ReflectionTestUtils.setField(jedisService, "scoreDecay", new ScoreDecay(false, 24));
+		ingest = new DictionaryIngestService();
+		ReflectionTestUtils.setField(ingest, "chunkSize", 5);
+		ReflectionTestUtils.setField(ingest, "queueChunks", 2);
+		ReflectionTestUtils.setField(ingest, "flushWords", 10);
+		ReflectionTestUtils.setField(ingest, "readBufferBytes", 64);
+		ReflectionTestUtils.setField(ingest, "ingestDir", Files.createDirectories(dir.resolve("ingest")).toString());
+		ReflectionTestUtils.setField(ingest, "jedisService", jedisService);
+		ReflectionTestUtils.setField(ingest, "fuzzySuggestService", new FuzzySuggestService());
+		ReflectionTestUtils.setField(ingest, "suggestionSnapshotService", new SuggestionSnapshotService());
+	}
+
+	@Test
+	void readerWaitsWhileInsertingFallsBehind() throws Exception {
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < 200; i++)
+			lines.add("word" + i + "\t" + i);
+		Files.write(ingest.resolve("words.tsv"), lines);
+
+		String report = ingest.ingest(ingest.resolve("words.tsv"));
+
+		assertThat(report).contains("words=200");
+		// the first flush comes after 2 chunks, by then the reader filled the queue and waits on it
+		assertThat(readerBlockedAtFirstFlush).isTrue();
+	}
+
+	@Test
+	void flushesOfLaterPartsKeepTheBestWordsOfEarlierOnes() throws Exception {
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < 39; i++)
+			lines.add(String.format("a%02d\t%d", i, 100 - i));   // best first, every flush brings lower scores
+		lines.add("a39\t1000");                                  // the best one comes last
+		lines.add("a00\t1");                                     // again, lower
+		Files.write(ingest.resolve("words.tsv"), lines);
+
+		ingest.ingest(ingest.resolve("words.tsv"));
+
+		// the full redis.sorted.set.size, not the retain ratio share of it
+		assertThat(suggestions("a")).containsExactly("a39", "a00", "a01", "a02");
+		Double bestScore = redisAccessService.execute("a", jedis -> jedis.zscore("a", "a00"));
+		assertThat(bestScore).isEqualTo(100d);
+		assertThat(suggestions("a1")).containsExactly("a10", "a11", "a12", "a13");
+	}
+
+	@Test
+	void onlyResolvesFilesUnderTheIngestDir() throws Exception {
+		Path ingestDir = dir.resolve("ingest");
+		Files.writeString(dir.resolve("secret"), "password\t1\n");
+		Files.createSymbolicLink(ingestDir.resolve("link"), dir.resolve("secret"));
+
+		assertThat(ingest.resolve("words.tsv")).isEqualTo(ingestDir.toAbsolutePath().resolve("words.tsv"));
+		assertThat(ingest.resolve("lists/../words.tsv")).isEqualTo(ingestDir.toAbsolutePath().resolve("words.tsv"));
+		for (String outside : new String[]{"../secret", "/etc/passwd", "link"})
+			assertThatThrownBy(() -> ingest.resolve(outside)).as(outside).isInstanceOf(IllegalArgumentException.class);
+	}
+
+	private static List<String> suggestions(String prefix) {
+		return redisAccessService.execute(prefix, jedis -> jedis.zrevrangeWithScores(prefix, 0, -1)).stream()
+				.map(Tuple::getElement).collect(Collectors.toList());
+	}
+
+	/**
+	 * Waits up to 5 seconds for the reader thread to block putting a chunk into the full queue
+	 */
+	private static boolean readerBlockedOnTheQueue() {
+		long deadline = System.currentTimeMillis() + 5_000;
+		while (System.currentTimeMillis() < deadline) {
+			for (Map.Entry<Thread, StackTraceElement[]> thread : Thread.getAllStackTraces().entrySet()) {
+				if (READER_THREAD.equals(thread.getKey().getName()) && thread.getKey().getState() == Thread.State.WAITING
+						&& Arrays.stream(thread.getValue()).anyMatch(frame -> frame.getMethodName().equals("put")))
+					return true;
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return false;
+	}
+}
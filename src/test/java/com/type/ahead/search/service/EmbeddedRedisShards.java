@@ -0,0 +1,106 @@
+package com.type.ahead.search.service;
+
+import com.type.ahead.search.util.ScoreDecay;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.Getter;
+import org.springframework.test.util.ReflectionTestUtils;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.embedded.RedisServer;
+import redis.embedded.core.RedisServerBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Redis servers started in process on free ports (embedded-redis), one per shard, for the tests and benchmarks
+ * that need a real redis without one installed. Services on top of them are wired by hand, the same way spring
+ * would.
+ */
+public final class EmbeddedRedisShards implements Closeable {
+	private final List<RedisServer> redisServers = new ArrayList<>();
+	@Getter
+	private final RedisShards redisShards;
+	@Getter
+	private final RedisAccessService redisAccessService = new RedisAccessService();
+
+	private final List<PrefixFlushService> prefixFlushServices = new ArrayList<>();
+
+	private EmbeddedRedisShards(int shards, String... settings) throws IOException {
+		LinkedHashMap<String, JedisPool> pools = new LinkedHashMap<>();
+		try {
+			for (int shard = 0; shard < shards; shard++) {
+				int port;
+				try (ServerSocket socket = new ServerSocket(0)) {
+					port = socket.getLocalPort();
+				}
+				RedisServerBuilder builder = RedisServer.newRedisServer().port(port).setting("save \"\"").setting("appendonly no");
+				for (String setting : settings)
+					builder.setting(setting);
+				RedisServer redisServer = builder.build();
+				redisServer.start();
+				redisServers.add(redisServer);
+				pools.put("localhost:" + port, new JedisPool("localhost", port));
+			}
+		} catch (IOException | RuntimeException e) {
+			pools.values().forEach(JedisPool::close);
+			for (RedisServer redisServer : redisServers)
+				redisServer.stop();
+			throw e;
+		}
+		redisShards = new RedisShards(pools);
+		ReflectionTestUtils.setField(redisAccessService, "redisShards", redisShards);
+	}
+
+	/**
+	 * @param settings redis.conf lines for every server on top of no persistence, e.g. "hash-max-ziplist-entries 512"
+	 */
+	public static EmbeddedRedisShards start(int shards, String... settings) throws IOException {
+		return new EmbeddedRedisShards(shards, settings);
+	}
+
+	public RedisServer server(int shard) {
+		return redisServers.get(shard);
+	}
+
+	public void flushAll() {
+		redisAccessService.executeOnEachShard(Jedis::flushAll);
+	}
+
+	public PrefixFlushService prefixFlushService(int redisSetSize, int flushBatchSize, int flushParallelism, ScoreDecay scoreDecay) {
+		PrefixFlushService prefixFlushService = new PrefixFlushService();
+		ReflectionTestUtils.setField(prefixFlushService, "redisSetSize", redisSetSize);
+		ReflectionTestUtils.setField(prefixFlushService, "flushBatchSize", flushBatchSize);
+		ReflectionTestUtils.setField(prefixFlushService, "flushParallelism", flushParallelism);
+		ReflectionTestUtils.setField(prefixFlushService, "redisAccessService", redisAccessService);
+		ReflectionTestUtils.setField(prefixFlushService, "meterRegistry", new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(prefixFlushService, "scoreDecay", scoreDecay);
+		prefixFlushService.init();
+		prefixFlushServices.add(prefixFlushService);
+		return prefixFlushService;
+	}
+
+	public PackedPrefixStore packedPrefixStore(int redisSetSize, int buckets, int wordCacheSize, int flushBatchSize, ScoreDecay scoreDecay) {
+		PackedPrefixStore packedPrefixStore = new PackedPrefixStore();
+		ReflectionTestUtils.setField(packedPrefixStore, "redisSetSize", redisSetSize);
+		ReflectionTestUtils.setField(packedPrefixStore, "buckets", buckets);
+		ReflectionTestUtils.setField(packedPrefixStore, "wordCacheSize", wordCacheSize);
+		ReflectionTestUtils.setField(packedPrefixStore, "flushBatchSize", flushBatchSize);
+		ReflectionTestUtils.setField(packedPrefixStore, "redisAccessService", redisAccessService);
+		ReflectionTestUtils.setField(packedPrefixStore, "scoreDecay", scoreDecay);
+		packedPrefixStore.init();
+		return packedPrefixStore;
+	}
+
+	@Override
+	public void close() throws IOException {
+		prefixFlushServices.forEach(PrefixFlushService::stop);
+		redisShards.close();
+		for (RedisServer redisServer : redisServers)
+			redisServer.stop();
+	}
+}
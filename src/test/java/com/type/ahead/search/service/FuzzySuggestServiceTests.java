@@ -0,0 +1,56 @@
+package com.type.ahead.search.service;
+
+import com.type.ahead.search.util.CompactTrie;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class FuzzySuggestServiceTests {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void runsOnlySaveTheSnapshotPastTheThreshold() throws Exception {
+		Path snapshot = dir.resolve("dictionary.trie");
+		FuzzySuggestService fuzzy = fuzzySuggestService(snapshot, 3);
+
+		fuzzy.addQueries(Map.of("tea", 4L, "toast", 2L));
+		assertThat(snapshot).doesNotExist();
+		assertThat(fuzzy.getUnsavedWords()).isEqualTo(2);
+
+		fuzzy.addQueries(Map.of("coffee", 7L));
+		assertThat(snapshot).exists();
+		assertThat(fuzzy.getUnsavedWords()).isZero();
+		assertThat(CompactTrie.loadSnapshot(snapshot).getWordCount()).isEqualTo(3);
+	}
+
+	@Test
+	void shutdownSavesWhatIsLeft() throws Exception {
+		Path snapshot = dir.resolve("dictionary.trie");
+		FuzzySuggestService fuzzy = fuzzySuggestService(snapshot, 100);
+
+		fuzzy.saveUnsaved();
+		assertThat(snapshot).doesNotExist();
+
+		fuzzy.addQueries(Map.of("tea", 4L));
+		fuzzy.saveUnsaved();
+		assertThat(Files.size(snapshot)).isPositive();
+		assertThat(fuzzy.getUnsavedWords()).isZero();
+	}
+
+	private static FuzzySuggestService fuzzySuggestService(Path snapshot, int saveUnsavedWords) {
+		FuzzySuggestService fuzzy = new FuzzySuggestService();
+		ReflectionTestUtils.setField(fuzzy, "fuzzyEnabled", true);
+		ReflectionTestUtils.setField(fuzzy, "trieSnapshotEnabled", true);
+		ReflectionTestUtils.setField(fuzzy, "trieSnapshotPath", snapshot.toString());
+		ReflectionTestUtils.setField(fuzzy, "saveUnsavedWords", saveUnsavedWords);
+		return fuzzy;
+	}
+}
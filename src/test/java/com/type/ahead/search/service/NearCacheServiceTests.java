@@ -0,0 +1,201 @@
+package com.type.ahead.search.service;
+
+import com.type.ahead.search.util.ScoreDecay;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import redis.clients.jedis.resps.Tuple;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Near cache against two in process redis servers, round trips are counted on the servers (INFO commandstats)
+ */
+class NearCacheServiceTests {
+	private static final int SHARDS = 2;
+	private static final int PREFIXES = 2_000;
+
+	private static EmbeddedRedisShards redis;
+	private static RedisShards redisShards;
+	private static RedisAccessService redisAccessService;
+	private static PrefixFlushService prefixFlushService;
+	private static NearCacheService nearCacheService;
+	private static final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	private final AtomicInteger reads = new AtomicInteger();
+	private final Function<String, List<Tuple>> reader = prefix -> {
+		reads.incrementAndGet();
+		return redisAccessService.execute(prefix, jedis -> jedis.zrevrangeWithScores(prefix, 0, -1));
+	};
+
+	@BeforeAll
+	static void startShards() throws IOException {
+		redis = EmbeddedRedisShards.start(SHARDS);
+		redisShards = redis.getRedisShards();
+		redisAccessService = redis.getRedisAccessService();
+		prefixFlushService = redis.prefixFlushService(4, 100, 2, new ScoreDecay(false, 24));
+		nearCacheService = new NearCacheService();
+		ReflectionTestUtils.setField(nearCacheService, "nearCacheEnabled", true);
+		ReflectionTestUtils.setField(nearCacheService, "maxPrefixes", 500);
+		ReflectionTestUtils.setField(nearCacheService, "timeoutMillis", 2000);
+		ReflectionTestUtils.setField(nearCacheService, "redisShards", redisShards);
+		ReflectionTestUtils.setField(nearCacheService, "meterRegistry", meterRegistry);
+		nearCacheService.start();
+	}
+
+	@AfterAll
+	static void stopShards() throws IOException {
+		nearCacheService.stop();
+		redis.close();
+	}
+
+	@BeforeEach
+	void fillShards() {
+		redis.flushAll();   // also empties the near cache
+		Map<String, Map<String, Double>> suggestions = new HashMap<>();
+		for (int i = 0; i < PREFIXES; i++)
+			suggestions.put(prefix(i), Map.of(prefix(i) + "-word", (double) i));
+		prefixFlushService.flush(suggestions.keySet(), suggestions::get);
+		await(nearCacheService::isTracking);
+		await(() -> nearCacheService.size() == 0);
+	}
+
+	@Test
+	void skewedKeystrokesMostlyStayInProcess() {
+		Random random = new Random(3);
+		double[] cumulative = zipf(PREFIXES, 1.1);
+		long zrevrangeBefore = zrevrangeCalls();
+		int lookups = 20_000;
+		for (int i = 0; i < lookups; i++) {
+			String prefix = prefix(sample(cumulative, random.nextDouble()));
+			List<Tuple> suggestions = nearCacheService.lookup(prefix);
+			if (suggestions == null)
+				suggestions = nearCacheService.load(prefix, reader);
+			assertThat(suggestions).extracting(Tuple::getElement).containsExactly(prefix + "-word");
+		}
+		long roundTrips = zrevrangeCalls() - zrevrangeBefore;
+
+		assertThat(roundTrips).isEqualTo(reads.get()).isLessThan(lookups / 5);
+		assertThat(nearCacheService.size()).isLessThanOrEqualTo(500);
+		assertThat(nearCacheService.hitRate()).isGreaterThan(0.8);
+	}
+
+	@Test
+	void writesToAPrefixDropItsCachedList() {
+		String prefix = prefix(7);
+		awaitInvalidations();
+		nearCacheService.load(prefix, reader);
+		nearCacheService.load(prefix(8), reader);
+		assertThat(nearCacheService.lookup(prefix)).extracting(Tuple::getElement).containsExactly(prefix + "-word");
+
+		// a scheduled run: written to the shadow key, renamed over the live key at the cutover
+		prefixFlushService.stageShadowCopies(List.of(prefix));
+		prefixFlushService.flush(List.of(prefix), p -> Map.of("newer", 100d), PrefixFlushService::shadowKey);
+		prefixFlushService.cutover(List.of(prefix));
+
+		await(() -> nearCacheService.lookup(prefix) == null);
+		assertThat(nearCacheService.load(prefix, reader)).extracting(Tuple::getElement).containsExactly("newer", prefix + "-word");
+		assertThat(nearCacheService.lookup(prefix(8))).isNotNull();
+	}
+
+	@Test
+	void shadowWritesDontInvalidate() {
+		String prefix = prefix(9);
+		awaitInvalidations();
+		nearCacheService.load(prefix, reader);
+		double invalidationsBefore = meterRegistry.counter("typeahead.nearcache.invalidations").count();
+
+		prefixFlushService.stageShadowCopies(List.of(prefix));
+		prefixFlushService.flush(List.of(prefix), p -> Map.of("newer", 100d), PrefixFlushService::shadowKey);
+		assertThat(nearCacheService.lookup(prefix)).isNotNull();
+		// a live write after them on the same connection, once it arrived the shadow ones did as well
+		redisAccessService.execute(prefix, jedis -> jedis.zadd(prefix, 1, "live"));
+
+		await(() -> nearCacheService.lookup(prefix) == null);
+		assertThat(meterRegistry.counter("typeahead.nearcache.invalidations").count() - invalidationsBefore).isEqualTo(1);
+	}
+
+	@Test
+	void aListChangedWhileLoadingIsNotKept() {
+		String prefix = prefix(11);
+		awaitInvalidations();
+		double invalidationsBefore = meterRegistry.counter("typeahead.nearcache.invalidations").count();
+
+		List<Tuple> loaded = nearCacheService.load(prefix, p -> {
+			List<Tuple> read = reader.apply(p);
+			redisAccessService.execute(p, jedis -> jedis.zadd(p, 1, "live"));
+			await(() -> meterRegistry.counter("typeahead.nearcache.invalidations").count() > invalidationsBefore);
+			return read;
+		});
+
+		assertThat(loaded).extracting(Tuple::getElement).containsExactly(prefix + "-word");
+		assertThat(nearCacheService.lookup(prefix)).isNull();
+	}
+
+	private static String prefix(int i) {
+		return (char) ('a' + i % 26) + Integer.toString(i, 36);
+	}
+
+	private static double[] zipf(int n, double s) {
+		double[] cumulative = new double[n];
+		double sum = 0;
+		for (int i = 0; i < n; i++)
+			cumulative[i] = sum += 1 / Math.pow(i + 1, s);
+		for (int i = 0; i < n; i++)
+			cumulative[i] /= sum;
+		return cumulative;
+	}
+
+	private static int sample(double[] cumulative, double u) {
+		int i = Arrays.binarySearch(cumulative, u);
+		return Math.min(i < 0 ? -i - 1 : i, cumulative.length - 1);
+	}
+
+	/**
+	 * Waits until the invalidations of all earlier writes arrived, a write to a cached list of every shard
+	 * queues up behind them
+	 */
+	private void awaitInvalidations() {
+		for (int shard = 0; shard < SHARDS; shard++) {
+			int i = 0;
+			while (redisShards.shardOf(prefix(i)) != shard)
+				i++;
+			String marker = prefix(i);
+			nearCacheService.load(marker, reader);
+			redisAccessService.execute(marker, jedis -> jedis.zadd(marker, 0, "marker"));
+			await(() -> nearCacheService.lookup(marker) == null);
+		}
+	}
+
+	private static long zrevrangeCalls() {
+		return redisAccessService.executeOnEachShard(jedis -> {
+			String stats = jedis.info("commandstats");
+			int start = stats.indexOf("cmdstat_zrevrange:calls=");
+			if (start < 0)
+				return 0L;
+			start += "cmdstat_zrevrange:calls=".length();
+			return Long.parseLong(stats.substring(start, stats.indexOf(',', start)));
+		}).stream().mapToLong(Long::longValue).sum();
+	}
+
+	private static void await(BooleanSupplier condition) {
+		long deadline = System.currentTimeMillis() + 5_000;
+		while (!condition.getAsBoolean()) {
+			assertThat(System.currentTimeMillis()).as("timed out").isLessThan(deadline);
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
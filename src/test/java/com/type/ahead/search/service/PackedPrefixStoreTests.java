@@ -0,0 +1,206 @@
+package com.type.ahead.search.service;
+
+import com.type.ahead.search.util.PackedTopK;
+import com.type.ahead.search.util.ScoreDecay;
+import com.type.ahead.search.util.TrieDataStore;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.resps.Tuple;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * The packed layout next to the sorted set layout in one in process redis, same suggestion lists in both
+ */
+class PackedPrefixStoreTests {
+	private static final int WORDS = 5_000;
+	private static final int SET_SIZE = 16;
+
+	private static EmbeddedRedisShards redis;
+	private static RedisAccessService redisAccessService;
+	private static PrefixFlushService prefixFlushService;
+	private static PackedPrefixStore packedPrefixStore;
+	private static final Map<String, Map<String, Double>> suggestionsByPrefix = new HashMap<>();
+
+	@BeforeAll
+	static void startRedis() throws IOException {
+		redis = EmbeddedRedisShards.start(1, "hash-max-ziplist-entries 512", "hash-max-ziplist-value 128");
+		redisAccessService = redis.getRedisAccessService();
+		prefixFlushService = redis.prefixFlushService(SET_SIZE, 500, 1, new ScoreDecay(false, 24));
+		packedPrefixStore = redis.packedPrefixStore(SET_SIZE, 16, 100, 500, new ScoreDecay(false, 24));
+
+		TrieDataStore trieDataStore = TrieDataStore.getTrieInstance();
+		trieDataStore.reset();
+		trieDataStore.setRankedTopK(SET_SIZE);
+		try {
+			Random random = new Random(5);
+			Set<String> words = new LinkedHashSet<>();
+			while (words.size() < WORDS) {
+				char[] word = new char[3 + random.nextInt(8)];
+				for (int j = 0; j < word.length; j++)
+					word[j] = (char) ('a' + random.nextInt(8));
+				words.add(new String(word));
+			}
+			int rank = 0;
+			for (String word : words)
+				trieDataStore.insertWord(word, WORDS / ++rank);   // zipf like counts
+			trieDataStore.exportTopK(SET_SIZE, (prefix, topK) -> {
+				Map<String, Double> suggestions = new HashMap<>();
+				topK.forEach((word, score) -> suggestions.put(word, score.doubleValue()));
+				synchronized (suggestionsByPrefix) {
+					suggestionsByPrefix.put(prefix, suggestions);
+				}
+			});
+		} finally {
+			trieDataStore.setRankedTopK(0);
+			trieDataStore.reset();
+		}
+		redis.flushAll();
+		prefixFlushService.flush(suggestionsByPrefix.keySet(), suggestionsByPrefix::get);
+		packedPrefixStore.write(suggestionsByPrefix.keySet(), suggestionsByPrefix::get);
+	}
+
+	@AfterAll
+	static void stopRedis() throws IOException {
+		redis.close();
+	}
+
+	@Test
+	void readsTheSameListsAsTheSortedSets() {
+		packedPrefixStore.clearWordCache();   // a small cache, most words come from redis
+		for (String prefix : suggestionsByPrefix.keySet()) {
+			List<Tuple> sortedSet = redisAccessService.execute(prefix, jedis -> jedis.zrevrangeWithScores(prefix, 0, -1));
+			List<Tuple> packed = packedPrefixStore.read(prefix, SET_SIZE);
+			assertThat(packed).as(prefix).containsExactlyInAnyOrderElementsOf(sortedSet);   // ties may come in any order
+			assertThat(packed).as(prefix).extracting(Tuple::getScore).containsExactlyElementsOf(scores(sortedSet));
+			assertThat(packedPrefixStore.read(prefix, 4)).extracting(Tuple::getScore).containsExactlyElementsOf(scores(sortedSet.subList(0, Math.min(4, sortedSet.size()))));
+		}
+		assertThat(packedPrefixStore.read("nope", 8)).isEmpty();
+	}
+
+	@Test
+	void packedLayoutTakesLessMemory() {
+		long[] sortedSets = redisAccessService.memoryUsage("[a-h]*");
+		long[] packed = new long[2];
+		for (String pattern : new String[]{"t:*", "w:*", "i:*"}) {
+			long[] usage = redisAccessService.memoryUsage(pattern);
+			packed[0] += usage[0];
+			packed[1] += usage[1];
+		}
+		assertThat(sortedSets[0]).isEqualTo(suggestionsByPrefix.size());
+		assertThat(packed[1]).isLessThan(sortedSets[1]);
+	}
+
+	@Test
+	void packsWholeAndFractionalScores() {
+		int[] ids = {1, 300, 5_000, 70_000};
+		double[] scores = {123_456_789, 123_456_700, 17.25, 0};
+		PackedTopK.Entries entries = PackedTopK.decode(PackedTopK.encode(ids, scores, 4), 8);
+
+		assertThat(entries.size).isEqualTo(4);
+		assertThat(Arrays.copyOf(entries.ids, 4)).containsExactly(ids);
+		assertThat(Arrays.copyOf(entries.scores, 4)).containsExactly(scores);
+		assertThat(PackedTopK.decode(PackedTopK.encode(ids, scores, 4), 1).size).isEqualTo(1);
+		// the second score is 89 below the first, the last 123456700 below the second, fractions take 8 bytes
+		assertThat(PackedTopK.encode(ids, scores, 4)).hasSize(1 + 4 + 2 + 1 + 2 + 8 + 3 + 4);
+	}
+
+	@Test
+	void changesTheListsLikeTheScriptsChangeTheSortedSets() {
+		// first chars the other tests don't use, fractional scores so no two suggestions tie
+		Random random = new Random(7);
+		Map<String, Map<String, Double>> lists = randomLists(random, 'x', 'y');
+		Map<String, Map<String, Double>> moreLists = randomLists(random, 'x', 'y');
+		Map<String, Long> increments = new HashMap<>();
+		moreLists.values().forEach(suggestions -> suggestions.keySet().forEach(word -> increments.put(word, 1L + random.nextInt(50))));
+
+		for (PrefixWriter writer : new PrefixWriter[]{
+				(firstChars, export) -> prefixFlushService.flushPartitions(firstChars, export, prefix -> prefix),
+				packedPrefixStore::flushPartitions})
+			writer.write(Arrays.asList('x', 'y'), partitionsOf(lists));
+		prefixFlushService.mergePartitions(Arrays.asList('x', 'y'), partitionsOf(moreLists));
+		packedPrefixStore.mergePartitions(Arrays.asList('x', 'y'), partitionsOf(moreLists));
+		prefixFlushService.incrementScores(increments);
+		packedPrefixStore.incrementScores(increments);
+		prefixFlushService.flush(lists.keySet(), lists::get);
+		packedPrefixStore.flush(lists.keySet(), lists::get);
+
+		Set<String> prefixes = new HashSet<>(lists.keySet());
+		prefixes.addAll(moreLists.keySet());
+		Map<String, List<Tuple>> packed = packedPrefixStore.readAll(prefixes);
+		for (String prefix : prefixes) {
+			List<Tuple> sortedSet = redisAccessService.execute(prefix, jedis -> jedis.zrevrangeWithScores(prefix, 0, -1));
+			assertThat(packed.get(prefix)).as(prefix).isNotEmpty().containsExactlyElementsOf(sortedSet);
+		}
+	}
+
+	@Test
+	void findsTheWordsInTheirOwnLists() {
+		List<String> words = new ArrayList<>(suggestionsByPrefix.keySet());
+		words.add("nope");
+
+		Map<String, Double> ownScores = packedPrefixStore.ownScores(words);
+
+		assertThat(ownScores).isNotEmpty().doesNotContainKey("nope");
+		for (String word : words) {
+			Double score = redisAccessService.execute(word, jedis -> jedis.zscore(word, word));
+			assertThat(ownScores.get(word)).as(word).isEqualTo(score);
+		}
+	}
+
+	@Test
+	void internsNothingWhenOtherWordsGotIdsInBetween() {
+		LuaScript internWords = new LuaScript("intern_words.lua");
+		List<String> keys = Arrays.asList(PackedPrefixStore.wordIdsKey('q'), PackedPrefixStore.idWordsKey('q') + ":0");
+		redisAccessService.execute("q", jedis -> {
+			String sha = internWords.load(jedis);
+			assertThat(jedis.evalsha(sha, keys, Arrays.asList("1", "quiz"))).isNull();
+			assertThat(jedis.exists(keys.get(0))).isFalse();
+			assertThat(jedis.evalsha(sha, keys, Arrays.asList("0", "quiz", "quay", "quiz"))).isEqualTo(Arrays.asList(1L, 2L, 1L));
+			assertThat(jedis.hget(keys.get(1), "2")).isEqualTo("quay");
+			return null;
+		});
+	}
+
+	private static Map<String, Map<String, Double>> randomLists(Random random, char... firstChars) {
+		Map<String, Map<String, Double>> lists = new HashMap<>();
+		for (char firstChar : firstChars) {
+			for (int i = 0; i < 300; i++) {
+				String word = firstChar + Integer.toString(random.nextInt(2_000), 4);
+				double score = random.nextInt(1_000) + random.nextDouble();
+				for (String prefix : PrefixFlushService.extractAllPrefixes(word))
+					lists.computeIfAbsent(prefix, p -> new HashMap<>()).merge(word, score, Math::max);
+			}
+		}
+		lists.values().forEach(suggestions -> {   // the top SET_SIZE, what the trie hands out
+			List<String> lowestFirst = new ArrayList<>(suggestions.keySet());
+			lowestFirst.sort(Comparator.comparing(suggestions::get));
+			lowestFirst.subList(0, Math.max(0, lowestFirst.size() - SET_SIZE)).forEach(suggestions::remove);
+		});
+		return lists;
+	}
+
+	private static BiConsumer<Character, BiConsumer<String, Map<String, Double>>> partitionsOf(Map<String, Map<String, Double>> lists) {
+		return (firstChar, sink) -> lists.forEach((prefix, suggestions) -> {
+			if (prefix.charAt(0) == firstChar)
+				sink.accept(prefix, suggestions);
+		});
+	}
+
+	@FunctionalInterface
+	private interface PrefixWriter {
+		void write(Collection<Character> firstChars, BiConsumer<Character, BiConsumer<String, Map<String, Double>>> export);
+	}
+
+	private static List<Double> scores(List<Tuple> suggestions) {
+		List<Double> scores = new ArrayList<>();
+		for (Tuple suggestion : suggestions)
+			scores.add(suggestion.getScore());
+		return scores;
+	}
+}
@@ -0,0 +1,239 @@
+package com.type.ahead.search.service;
+
+import com.type.ahead.search.util.ScoreDecay;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import redis.clients.jedis.Response;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * Flushes and rebuild cycles against three in process redis servers standing in for three shards
+ */
+class PrefixFlushServiceTests {
+	private static final int SHARDS = 3;
+	private static final List<String> WORDS = Arrays.asList("apple", "apply", "banana", "band", "cherry", "chess", "date", "dog", "egg", "fig");
+
+	private static EmbeddedRedisShards redis;
+	private static RedisShards redisShards;
+	private static RedisAccessService redisAccessService;
+	private static PrefixFlushService prefixFlushService;
+	private static final ScoreDecay scoreDecay = new ScoreDecay(false, 24);
+
+	@BeforeAll
+	static void startShards() throws IOException {
+		redis = EmbeddedRedisShards.start(SHARDS);
+		redisShards = redis.getRedisShards();
+		redisAccessService = redis.getRedisAccessService();
+		prefixFlushService = redis.prefixFlushService(4, 3, 2, scoreDecay);
+	}
+
+	@AfterAll
+	static void stopShards() throws IOException {
+		redis.close();
+	}
+
+	@BeforeEach
+	void emptyShards() {
+		redis.flushAll();
+	}
+
+	@Test
+	void flushWritesEveryPrefixToTheShardOfItsFirstChar() {
+		Map<String, Map<String, Double>> expected = suggestionsByPrefix();
+		long written = flush();
+
+		assertThat(written).isEqualTo(expected.size());
+		Set<Integer> usedShards = new HashSet<>();
+		expected.forEach((prefix, suggestions) -> {
+			int shard = redisAccessService.shardOf(prefix);
+			usedShards.add(shard);
+			for (int other = 0; other < SHARDS; other++) {
+				boolean exists = redisAccessService.executeOnShard(other, jedis -> jedis.exists(prefix));
+				assertThat(exists).as(prefix + " on shard " + other).isEqualTo(other == shard);
+			}
+			Map<String, Double> stored = new HashMap<>();
+			redisAccessService.execute(prefix, jedis -> jedis.zrangeWithScores(prefix, 0, -1))
+					.forEach(tuple -> stored.put(tuple.getElement(), tuple.getScore()));
+			assertThat(stored).as(prefix).isEqualTo(suggestions);
+		});
+		assertThat(usedShards).hasSize(SHARDS);
+	}
+
+	@Test
+	void rebuildCycleStaysOnOneShardPerWord() {
+		flush();
+		Set<String> prefixes = suggestionsByPrefix().keySet();
+
+		prefixFlushService.stageShadowCopies(prefixes);
+		prefixFlushService.incrementScores(Map.of("apple", 10L, "dog", 5L, "fig", 1L), PrefixFlushService::shadowKey);
+		assertThat(score("ap", "apple")).isEqualTo(10d);     // live keys untouched until the cutover
+		prefixFlushService.cutover(prefixes);
+
+		assertThat(score("a", "apple")).isEqualTo(20d);
+		assertThat(score("apple", "apple")).isEqualTo(20d);
+		assertThat(score("do", "dog")).isEqualTo(8d);
+		assertThat(score("f", "fig")).isEqualTo(2d);
+		long shadowKeys = redisAccessService.executeOnEachShard(jedis -> jedis.keys(PrefixFlushService.shadowKey("*")).size())
+				.stream().mapToLong(Integer::longValue).sum();
+		assertThat(shadowKeys).isZero();
+
+		Map<String, Response<Double>> scores = new ConcurrentHashMap<>();
+		redisAccessService.pipelined(WORDS, Function.identity(), (pipeline, word) -> scores.put(word, pipeline.zscore(word, word)));
+		assertThat(scores).hasSize(WORDS.size());
+		scores.forEach((word, score) -> assertThat(score.get()).as(word).isNotNull());
+	}
+
+	@Test
+	void cutoverCommitsInBlocksOfTheBatchSize() {
+		flush();
+		Set<String> prefixes = suggestionsByPrefix().keySet();
+		prefixFlushService.stageShadowCopies(prefixes);
+		long expectedBlocks = 0;
+		for (int shard = 0; shard < SHARDS; shard++) {
+			int current = shard;
+			long shardPrefixes = prefixes.stream().filter(prefix -> redisAccessService.shardOf(prefix) == current).count();
+			expectedBlocks += (shardPrefixes + 2) / 3;   // flushBatchSize 3
+		}
+		long execBefore = execCalls();
+
+		prefixFlushService.cutover(prefixes);
+
+		assertThat(execCalls() - execBefore).isEqualTo(expectedBlocks);
+		long shadowKeys = redisAccessService.executeOnEachShard(jedis -> jedis.keys(PrefixFlushService.shadowKey("*")).size())
+				.stream().mapToLong(Integer::longValue).sum();
+		assertThat(shadowKeys).isZero();
+	}
+
+	@Test
+	void cutoverReportsThePrefixesThatDidNotGoLive() throws IOException {
+		flush();
+		Set<String> prefixes = suggestionsByPrefix().keySet();
+		prefixFlushService.stageShadowCopies(prefixes);
+		prefixFlushService.incrementScores(Map.of("apple", 10L, "banana", 10L, "cherry", 10L), PrefixFlushService::shadowKey);
+		int down = redisAccessService.shardOf("banana");
+		redis.server(down).stop();
+		Set<String> uncommitted;
+		try {
+			uncommitted = prefixFlushService.cutover(prefixes);
+		} finally {
+			redis.server(down).start();
+			redisShards.pool(down).clear();       // connections to the stopped server are dead
+		}
+
+		// a, b and c are on three different shards
+		assertThat(uncommitted).containsExactlyInAnyOrderElementsOf(
+				prefixes.stream().filter(prefix -> redisAccessService.shardOf(prefix) == down).collect(Collectors.toList()));
+		assertThat(score("ap", "apple")).isEqualTo(20d);
+		assertThat(score("ch", "cherry")).isEqualTo(16d);
+	}
+
+	@Test
+	void cutoverReportsTheRestOfAShardAfterAFailedBlock() {
+		flush();
+		List<String> prefixes = PrefixFlushService.extractAllPrefixes("apple");
+		prefixes.add("apply");
+		prefixFlushService.stageShadowCopies(prefixes);
+		prefixFlushService.incrementScores(Map.of("apple", 10L), PrefixFlushService::shadowKey);
+		int shard = redisAccessService.shardOf("a");
+		// no access to the keys of the second block (appl, apple, apply), its MULTI/EXEC is aborted
+		redisAccessService.executeOnShard(shard, jedis -> jedis.aclSetUser("default", "resetkeys", "~[^a]*", "~a", "~ap", "~app"));
+		Set<String> uncommitted;
+		try {
+			uncommitted = prefixFlushService.cutover(prefixes);
+		} finally {
+			redisAccessService.executeOnShard(shard, jedis -> jedis.aclSetUser("default", "resetkeys", "~*"));
+		}
+
+		assertThat(uncommitted).containsExactlyInAnyOrder("appl", "apple", "apply");
+		assertThat(score("app", "apple")).isEqualTo(20d);
+		assertThat(score("apple", "apple")).isEqualTo(10d);
+	}
+
+	@Test
+	void leftOverShadowKeysAreDropped() {
+		flush();
+		Set<String> prefixes = suggestionsByPrefix().keySet();
+		prefixFlushService.stageShadowCopies(prefixes);   // a run that died before its cutover
+		long keys = redisAccessService.executeOnEachShard(jedis -> jedis.dbSize()).stream().mapToLong(Long::longValue).sum();
+
+		assertThat(prefixFlushService.dropShadowKeys()).isEqualTo(prefixes.size());
+		long left = redisAccessService.executeOnEachShard(jedis -> jedis.dbSize()).stream().mapToLong(Long::longValue).sum();
+		assertThat(left).isEqualTo(keys - prefixes.size());
+		assertThat(score("ap", "apple")).isEqualTo(10d);
+	}
+
+	@Test
+	void decayedIncrementsAddUpAndEvictStaleWords() {
+		ScoreDecay decay = new ScoreDecay(true, 1);
+		ReflectionTestUtils.setField(prefixFlushService, "scoreDecay", decay);
+		try {
+			long now = System.currentTimeMillis();
+			long dayAgo = now - 24 * 3_600_000L;
+			Map<String, Double> stale = new HashMap<>();
+			for (int i = 0; i < 4; i++)
+				stale.put("zoo" + i, decay.stored(1000, dayAgo));  // popular a day (24 half lives) ago
+			prefixFlushService.flush(List.of("z"), prefix -> stale);
+			prefixFlushService.flush(List.of("zebra"), prefix -> Map.of("zebra", decay.stored(3, now)));
+
+			prefixFlushService.incrementScores(Map.of("zebra", 2L));
+			assertThat(decay.decayedCount(score("zebra", "zebra"), now)).isCloseTo(5, within(0.01));
+			// 2 queries now outweigh 1000 a day ago, the full set gives up its lowest member
+			assertThat(score("z", "zebra")).isNotNull();
+			long size = redisAccessService.execute("z", jedis -> jedis.zcard("z"));
+			List<String> best = redisAccessService.execute("z", jedis -> jedis.zrevrange("z", 0, 0));
+			assertThat(size).isEqualTo(4);
+			assertThat(best).containsExactly("zebra");
+		} finally {
+			ReflectionTestUtils.setField(prefixFlushService, "scoreDecay", scoreDecay);
+		}
+	}
+
+	private static long execCalls() {
+		return redisAccessService.executeOnEachShard(jedis -> {
+			String stats = jedis.info("commandstats");
+			int start = stats.indexOf("cmdstat_exec:calls=");
+			if (start < 0)
+				return 0L;
+			start += "cmdstat_exec:calls=".length();
+			return Long.parseLong(stats.substring(start, stats.indexOf(',', start)));
+		}).stream().mapToLong(Long::longValue).sum();
+	}
+
+	private long flush() {
+		Map<String, Map<String, Double>> suggestions = suggestionsByPrefix();
+		List<Character> firstChars = new ArrayList<>();
+		for (String word : WORDS) {
+			if (!firstChars.contains(word.charAt(0)))
+				firstChars.add(word.charAt(0));
+		}
+		return prefixFlushService.flushPartitions(firstChars, (firstChar, sink) -> suggestions.forEach((prefix, prefixSuggestions) -> {
+			if (prefix.charAt(0) == firstChar)
+				sink.accept(prefix, prefixSuggestions);
+		}), UnaryOperator.identity());
+	}
+
+	private static Map<String, Map<String, Double>> suggestionsByPrefix() {
+		Map<String, Map<String, Double>> suggestions = new HashMap<>();
+		for (int i = 0; i < WORDS.size(); i++) {
+			for (String prefix : PrefixFlushService.extractAllPrefixes(WORDS.get(i)))
+				suggestions.computeIfAbsent(prefix, p -> new HashMap<>()).put(WORDS.get(i), (double) (WORDS.size() - i));
+		}
+		return suggestions;
+	}
+
+	private static Double score(String prefix, String word) {
+		return redisAccessService.execute(prefix, jedis -> jedis.zscore(prefix, word));
+	}
+}
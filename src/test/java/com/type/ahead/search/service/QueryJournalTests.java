@@ -0,0 +1,85 @@
+package com.type.ahead.search.service;
+
+import com.type.ahead.search.util.QueryCounter;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class QueryJournalTests {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void countsSurviveARestart() throws Exception {
+		QueryJournal journal = start(new QueryCounter());
+		for (int i = 0; i < 1_000; i++)
+			journal.append("query" + (i % 10));
+		journal.append("thé");
+		journal.stop();
+
+		QueryCounter replayed = new QueryCounter();
+		start(replayed).stop();
+
+		assertThat(replayed.drain()).hasSize(11).containsEntry("query3", 100L).containsEntry("thé", 1L);
+	}
+
+	@Test
+	void compactDropsTheSegmentsOfAFlushedRun() throws Exception {
+		QueryJournal journal = start(new QueryCounter());
+		journal.append("flushed");
+		long segment = journal.rotate();
+		journal.append("waiting");
+		journal.compact(segment);
+		journal.stop();
+
+		assertThat(segments()).hasSize(1);
+		QueryCounter replayed = new QueryCounter();
+		start(replayed).stop();
+		assertThat(replayed.drain()).containsOnlyKeys("waiting");
+	}
+
+	@Test
+	void replayStopsAtATornRecord() throws Exception {
+		QueryJournal journal = start(new QueryCounter());
+		journal.append("tea");
+		journal.append("toast");
+		journal.stop();
+		// a crash in the middle of the next record: its length and half of its bytes
+		Files.write(segments().get(0), new byte[]{0, 0, 0, 6, 'c', 'o', 'f'}, StandardOpenOption.APPEND);
+
+		QueryCounter replayed = new QueryCounter();
+		start(replayed).stop();
+
+		assertThat(replayed.drain()).containsOnlyKeys("tea", "toast");
+	}
+
+	private QueryJournal start(QueryCounter queryCounter) throws IOException {
+		QueryJournal journal = new QueryJournal();
+		ReflectionTestUtils.setField(journal, "journalEnabled", true);
+		ReflectionTestUtils.setField(journal, "journalDir", dir.toString());
+		ReflectionTestUtils.setField(journal, "fsyncIntervalMillis", 1);
+		ReflectionTestUtils.setField(journal, "maxPending", 10_000);
+		ReflectionTestUtils.setField(journal, "queryTracker", queryCounter);
+		ReflectionTestUtils.setField(journal, "meterRegistry", new SimpleMeterRegistry());
+		journal.start();
+		return journal;
+	}
+
+	private List<Path> segments() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.sorted().collect(Collectors.toList());
+		}
+	}
+}
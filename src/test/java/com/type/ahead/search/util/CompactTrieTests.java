@@ -0,0 +1,202 @@
+package com.type.ahead.search.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CompactTrieTests {
+
+	@Test
+	void splitsLabelsOnInsert() {
+		CompactTrie trie = new CompactTrie();
+		for (String word : Arrays.asList("romane", "romanus", "romulus", "rubens", "ruber", "rubicon", "rubicundus", "rom"))
+			trie.insert(word, 1);
+
+		assertThat(trie.suggest("rom")).containsExactlyInAnyOrder("romane", "romanus", "romulus", "rom");
+		assertThat(trie.suggest("ru")).containsExactlyInAnyOrder("rubens", "ruber", "rubicon", "rubicundus");
+		assertThat(trie.suggest("rubic")).containsExactlyInAnyOrder("rubicon", "rubicundus");
+		assertThat(trie.suggest("romx")).isEmpty();
+		assertThat(trie.suggest("z")).isEmpty();
+		assertThat(trie.getWordCount()).isEqualTo(8);
+		assertThat(trie.increaseScore("ro", 1)).isFalse();
+		assertThat(trie.increaseScore("rom", 1)).isTrue();
+	}
+
+	@Test
+	void matchesNodeTrieOnRandomWords() {
+		Random random = new Random(42);
+		CompactTrie compact = new CompactTrie();
+		NodeTrie node = new NodeTrie(0);
+		List<String> words = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			StringBuilder word = new StringBuilder();
+			int length = 1 + random.nextInt(8);
+			for (int j = 0; j < length; j++)
+				word.append((char) ('a' + random.nextInt(6)));
+			words.add(word.toString());
+			long score = random.nextInt(1000) * 10L + i % 10;   // mostly distinct scores keep the order comparable
+			compact.insert(word.toString(), score);
+			node.insert(word.toString(), score);
+		}
+
+		for (String word : words.subList(0, 200)) {
+			String prefix = word.substring(0, Math.min(word.length(), 3));
+			assertThat(compact.suggest(prefix)).containsExactlyInAnyOrderElementsOf(node.suggest(prefix));
+			LinkedHashMap<String, Long> expected = node.suggestWithScores(prefix, 10);
+			LinkedHashMap<String, Long> actual = compact.suggestWithScores(prefix, 10);
+			assertThat(new ArrayList<>(actual.values())).isEqualTo(new ArrayList<>(expected.values()));
+			for (Map.Entry<String, Long> entry : actual.entrySet())
+				assertThat(node.suggestWithScores(entry.getKey(), Integer.MAX_VALUE)).containsEntry(entry.getKey(), entry.getValue());
+		}
+		assertThat(compact.nodeCount()).isLessThanOrEqualTo(node.nodeCount());
+		assertThat(compact.estimatedMemoryBytes()).isLessThan(node.estimatedMemoryBytes());
+	}
+
+	@Test
+	void parallelReadsDontInterfere() throws Exception {
+		Random random = new Random(7);
+		CompactTrie trie = new CompactTrie();
+		for (int i = 0; i < 20_000; i++) {
+			StringBuilder word = new StringBuilder();
+			for (int length = 2 + random.nextInt(8); word.length() < length; )
+				word.append((char) ('a' + random.nextInt(6)));
+			trie.insert(word.toString(), 1 + random.nextInt(1000));
+		}
+		List<String> prefixes = new ArrayList<>();
+		for (int i = 0; i < 200; i++)
+			prefixes.add(Character.toString((char) ('a' + random.nextInt(6))).repeat(1 + random.nextInt(3)) + (char) ('a' + random.nextInt(6)));
+		Map<String, LinkedHashMap<String, Long>> expected = new HashMap<>();
+		for (String prefix : prefixes)
+			expected.put(prefix, trie.suggestWithScores(prefix, 10));
+
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> results = new ArrayList<>();
+		for (int t = 0; t < 8; t++) {
+			int offset = t;
+			results.add(executor.submit(() -> {
+				for (int round = 0; round < 50; round++) {
+					for (int i = 0; i < prefixes.size(); i++) {
+						String prefix = prefixes.get((i + offset * 31) % prefixes.size());
+						if (!trie.suggestWithScores(prefix, 10).equals(expected.get(prefix)))
+							return false;
+					}
+				}
+				return true;
+			}));
+		}
+		executor.shutdown();
+		for (Future<Boolean> result : results)
+			assertThat(result.get()).isTrue();
+	}
+
+	@Test
+	void snapshotRoundTrip(@TempDir Path directory) throws IOException {
+		Random random = new Random(3);
+		CompactTrie trie = new CompactTrie();
+		List<String> words = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			StringBuilder word = new StringBuilder();
+			int length = 1 + random.nextInt(8);
+			for (int j = 0; j < length; j++)
+				word.append((char) ('a' + random.nextInt(6)));
+			words.add(word.toString());
+			trie.insert(word.toString(), random.nextInt(1000) * 10L + i % 10);
+		}
+		Path path = directory.resolve("dictionary.trie");
+		trie.writeSnapshot(path);
+		CompactTrie loaded = CompactTrie.loadSnapshot(path);
+
+		assertThat(loaded.getWordCount()).isEqualTo(trie.getWordCount());
+		assertThat(loaded.nodeCount()).isEqualTo(trie.nodeCount());
+		assertThat(loaded.getAbandonedChildSlots()).isZero();
+		for (String word : words.subList(0, 200)) {
+			String prefix = word.substring(0, Math.min(word.length(), 2));
+			assertThat(loaded.suggest(prefix)).containsExactlyInAnyOrderElementsOf(trie.suggest(prefix));
+			assertThat(loaded.suggestWithScores(prefix, 10)).containsExactlyEntriesOf(trie.suggestWithScores(prefix, 10));
+		}
+
+		// still takes inserts after loading, the packed child segments have to grow
+		for (String word : Arrays.asList("abcdefgh", "fa", "zzz", "a")) {
+			trie.insert(word, 50_000);
+			loaded.insert(word, 50_000);
+		}
+		assertThat(loaded.suggestWithScores("", 20)).containsExactlyEntriesOf(trie.suggestWithScores("", 20));
+		assertThat(loaded.suggest("z")).containsExactly("zzz");
+
+		Files.write(path, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25});
+		assertThatThrownBy(() -> CompactTrie.loadSnapshot(path)).isInstanceOf(IOException.class);
+	}
+
+	@Test
+	void fuzzySuggestionsMatchBruteForce() {
+		Random random = new Random(7);
+		CompactTrie compact = new CompactTrie();
+		NodeTrie node = new NodeTrie(0);
+		Map<String, Long> words = new LinkedHashMap<>();
+		for (int i = 0; i < 3000; i++) {
+			StringBuilder word = new StringBuilder();
+			int length = 2 + random.nextInt(7);
+			for (int j = 0; j < length; j++)
+				word.append((char) ('a' + random.nextInt(5)));
+			words.putIfAbsent(word.toString(), random.nextInt(1000) * 10_000L + i);   // distinct scores keep the order comparable
+		}
+		words.forEach(compact::insert);
+		words.forEach(node::insert);
+
+		for (String query : Arrays.asList("abc", "eeda", "dcbaed", "x", "bbxbb")) {
+			for (int maxEdits = 0; maxEdits <= 2; maxEdits++) {
+				LinkedHashMap<String, Long> expected = bruteForceFuzzy(words, query, maxEdits, 10);
+				assertThat(compact.suggestFuzzy(query, maxEdits, 10, Integer.MAX_VALUE)).containsExactlyEntriesOf(expected);
+				assertThat(node.suggestFuzzy(query, maxEdits, 10, Integer.MAX_VALUE)).containsExactlyEntriesOf(expected);
+			}
+		}
+		assertThat(compact.suggestFuzzy("abcd", 1, 10, 0)).isEmpty();
+	}
+
+	// fewest edits between the query and any prefix of the word, then highest score
+	private static LinkedHashMap<String, Long> bruteForceFuzzy(Map<String, Long> words, String query, int maxEdits, int k) {
+		List<Object[]> matches = new ArrayList<>();
+		words.forEach((word, score) -> {
+			int edits = Integer.MAX_VALUE;
+			for (int i = 0; i <= word.length(); i++)
+				edits = Math.min(edits, levenshtein(word.substring(0, i), query));
+			if (edits <= maxEdits)
+				matches.add(new Object[]{word, score, edits});
+		});
+		matches.sort((a, b) -> (int) a[2] != (int) b[2] ? Integer.compare((int) a[2], (int) b[2]) : Long.compare((long) b[1], (long) a[1]));
+		LinkedHashMap<String, Long> result = new LinkedHashMap<>();
+		for (Object[] match : matches.subList(0, Math.min(k, matches.size())))
+			result.put((String) match[0], (long) match[1]);
+		return result;
+	}
+
+	private static int levenshtein(String a, String b) {
+		int[] previous = new int[b.length() + 1];
+		for (int j = 0; j <= b.length(); j++)
+			previous[j] = j;
+		for (int i = 1; i <= a.length(); i++) {
+			int[] row = new int[b.length() + 1];
+			row[0] = i;
+			for (int j = 1; j <= b.length(); j++)
+				row[j] = Math.min(previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1), Math.min(previous[j] + 1, row[j - 1] + 1));
+			previous = row;
+		}
+		return previous[b.length()];
+	}
+}
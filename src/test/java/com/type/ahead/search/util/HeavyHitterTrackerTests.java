@@ -0,0 +1,54 @@
+package com.type.ahead.search.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class HeavyHitterTrackerTests {
+
+	@Test
+	void sketchNeverUnderCounts() {
+		CountMinSketch sketch = new CountMinSketch(0.01, 0.01);
+		for (int i = 0; i < 1000; i++)
+			sketch.add("query" + i, i % 7 + 1);
+
+		for (int i = 0; i < 1000; i++)
+			assertThat(sketch.estimate("query" + i)).isGreaterThanOrEqualTo(i % 7 + 1);
+		assertThat(sketch.getEpsilon()).isLessThanOrEqualTo(0.01);
+	}
+
+	@Test
+	void keepsHeavyHittersOfSkewedTraffic() {
+		HeavyHitterTracker tracker = new HeavyHitterTracker(0.001, 0.001, 20);
+		Random random = new Random(7);
+		for (int i = 0; i < 100_000; i++) {
+			if (random.nextInt(2) == 0)
+				tracker.increment("hot" + random.nextInt(10));     // half the traffic on 10 queries
+			else
+				tracker.increment("tail" + random.nextInt(50_000));
+		}
+		Map<String, Long> heavyHitters = tracker.drain();
+
+		assertThat(heavyHitters).hasSizeLessThanOrEqualTo(20);
+		for (int i = 0; i < 10; i++)
+			assertThat(heavyHitters.get("hot" + i)).isBetween(4_500L, 5_300L);
+		assertThat(tracker.getLastDrainReport()).contains("mode=HEAVY_HITTERS", "queries=100000");
+		assertThat(tracker.getLastDroppedQueries()).isBetween(40_000L, 50_000L);   // most of the tail
+		assertThat(tracker.size()).isZero();
+	}
+
+	@Test
+	void evictsTheLowestAfterEstimatesRose() {
+		HeavyHitterTracker tracker = new HeavyHitterTracker(0.001, 0.001, 2);
+		tracker.increment("first");
+		tracker.increment("second");
+		tracker.add("first", 5);          // raised without taking the lock, its heap entry still says 1
+		tracker.add("third", 3);
+		tracker.add("fourth", 2);         // doesn't beat third
+
+		assertThat(tracker.drain()).containsOnlyKeys("first", "third");
+	}
+}
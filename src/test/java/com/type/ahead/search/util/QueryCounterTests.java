@@ -0,0 +1,53 @@
+package com.type.ahead.search.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class QueryCounterTests {
+
+	@Test
+	void drainStartsOver() {
+		QueryCounter counter = new QueryCounter();
+		counter.increment("tea");
+		counter.increment("tea");
+		counter.add("toast", 3);
+
+		assertThat(counter.drain()).containsEntry("tea", 2L).containsEntry("toast", 3L).hasSize(2);
+		assertThat(counter.isEmpty()).isTrue();
+		assertThat(counter.getLastQueriesPerSecondPerCore()).isPositive();
+	}
+
+	@Test
+	void noIncrementLostWhileDraining() throws InterruptedException {
+		QueryCounter counter = new QueryCounter();
+		int threads = 8;
+		int perThread = 50_000;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		for (int t = 0; t < threads; t++) {
+			executor.submit(() -> {
+				start.await();
+				for (int i = 0; i < perThread; i++)
+					counter.increment("query" + (i % 100));
+				return null;
+			});
+		}
+		Map<String, Long> total = new HashMap<>();
+		start.countDown();
+		executor.shutdown();
+		while (!executor.awaitTermination(1, TimeUnit.MILLISECONDS))
+			counter.drain().forEach((query, count) -> total.merge(query, count, Long::sum));
+		counter.drain().forEach((query, count) -> total.merge(query, count, Long::sum));
+
+		assertThat(total).hasSize(100);
+		assertThat(total.values().stream().mapToLong(Long::longValue).sum()).isEqualTo((long) threads * perThread);
+	}
+}
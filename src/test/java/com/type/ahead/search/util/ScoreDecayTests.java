@@ -0,0 +1,33 @@
+package com.type.ahead.search.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class ScoreDecayTests {
+	private static final long HOUR = 3_600_000L;
+
+	@Test
+	void recentTrafficOutranksOldTotals() {
+		ScoreDecay decay = new ScoreDecay(true, 1);
+		long now = 1_800_000_000_000L;
+		double old = decay.stored(1024, now - 10 * HOUR);     // ten half lives ago
+		double recent = decay.stored(2, now);
+
+		assertThat(decay.decayedCount(old, now)).isCloseTo(1, within(1e-6));
+		assertThat(recent).isGreaterThan(old);
+		assertThat(decay.decayedCount(decay.add(old, recent), now)).isCloseTo(3, within(1e-6));
+		assertThat(decay.add(decay.stored(0, now), recent)).isEqualTo(recent);
+		// a year of hourly half lives later the stored values are still small, ordinary doubles
+		assertThat(decay.stored(1, now + 365 * 24 * HOUR)).isFinite().isLessThan(1e5);
+	}
+
+	@Test
+	void disabledKeepsPlainCounts() {
+		ScoreDecay decay = new ScoreDecay(false, 1);
+		assertThat(decay.stored(7, 0)).isEqualTo(7);
+		assertThat(decay.decayedCount(7, HOUR)).isEqualTo(7);
+		assertThat(decay.add(7, 3)).isEqualTo(10);
+	}
+}
@@ -0,0 +1,40 @@
+package com.type.ahead.search.util;
+
+import org.junit.jupiter.api.Test;
+import redis.clients.jedis.resps.Tuple;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class SuggestionCodecTests {
+
+	private final List<Tuple> suggestions = Arrays.asList(new Tuple("apple", 12d), new Tuple("crème \"brûlée\"", 2.5), new Tuple("apply", 0d));
+
+	@Test
+	void writesCompactJson() {
+		assertThat(new String(SuggestionCodec.json(suggestions, false), StandardCharsets.UTF_8))
+				.isEqualTo("[\"apple\",\"crème \\\"brûlée\\\"\",\"apply\"]");
+		assertThat(new String(SuggestionCodec.json(suggestions, true), StandardCharsets.UTF_8))
+				.isEqualTo("[[\"apple\",12],[\"crème \\\"brûlée\\\"\",2.5],[\"apply\",0]]");
+		assertThat(new String(SuggestionCodec.json(List.of(), true), StandardCharsets.UTF_8)).isEqualTo("[]");
+	}
+
+	@Test
+	void binaryRoundTripAndEtags() {
+		byte[] withScores = SuggestionCodec.binary(suggestions, true);
+		assertThat(SuggestionCodec.readBinary(withScores, true)).containsExactlyElementsOf(suggestions);
+		assertThat(SuggestionCodec.readBinary(withScores, true)).extracting(Tuple::getScore).containsExactly(12d, 2.5, 0d);
+
+		byte[] wordsOnly = SuggestionCodec.binary(suggestions, false);
+		assertThat(wordsOnly).hasSize(withScores.length - 3 * Double.BYTES);
+		assertThat(SuggestionCodec.readBinary(wordsOnly, false)).extracting(Tuple::getElement)
+				.containsExactly("apple", "crème \"brûlée\"", "apply");
+
+		assertThat(SuggestionCodec.etag(wordsOnly)).isEqualTo(SuggestionCodec.etag(SuggestionCodec.binary(suggestions, false)))
+				.isNotEqualTo(SuggestionCodec.etag(withScores))
+				.startsWith("\"").endsWith("\"");
+	}
+}
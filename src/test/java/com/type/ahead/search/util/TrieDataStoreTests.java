@@ -0,0 +1,171 @@
+package com.type.ahead.search.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TrieDataStoreTests {
+
+	private final TrieDataStore trieDataStore = TrieDataStore.getTrieInstance();
+
+	@BeforeEach
+	void setUp() {
+		trieDataStore.reset();
+		trieDataStore.setRankedTopK(2);
+	}
+
+	@AfterEach
+	void tearDown() {
+		trieDataStore.setRankedTopK(0);
+		trieDataStore.setStorage(TrieDataStore.Storage.NODE);
+		trieDataStore.reset();
+	}
+
+	@Test
+	void rankedSuggestReturnsHighestScoresFirst() {
+		trieDataStore.insertWord("car", 1);
+		trieDataStore.insertWord("cat", 5);
+		trieDataStore.insertWord("cart", 3);
+		trieDataStore.insertWord("dog", 10);
+
+		assertThat(trieDataStore.suggest("ca", 2)).containsExactly("cat", "cart");
+		assertThat(trieDataStore.suggest("car", 2)).containsExactly("cart", "car");
+		assertThat(trieDataStore.suggest("", 2)).containsExactly("dog", "cat");
+		assertThat(trieDataStore.suggest("x", 2)).isEmpty();
+	}
+
+	@Test
+	void rankedCacheFollowsScoreIncrease() {
+		trieDataStore.TrieLoadData(Arrays.asList("tea", "ten", "tent"));
+		trieDataStore.increaseScore("tent", 4);
+		trieDataStore.increaseScore("tea", 2);
+
+		assertThat(trieDataStore.suggestWithScores("te", 2)).containsEntry("tent", 4L).containsEntry("tea", 2L);
+		assertThat(trieDataStore.suggest("te", 2)).containsExactly("tent", "tea");
+		assertThat(trieDataStore.increaseScore("toast", 1)).isFalse();
+	}
+
+	@Test
+	void unrankedSuggestMatchesRankedOrder() {
+		List<String> words = Arrays.asList("sun", "sunny", "sunday", "sung");
+		for (int i = 0; i < words.size(); i++)
+			trieDataStore.insertWord(words.get(i), i);
+		List<String> ranked = trieDataStore.suggest("sun", 2);
+
+		trieDataStore.setRankedTopK(0);
+		assertThat(trieDataStore.suggest("sun", 2)).isEqualTo(ranked).containsExactly("sung", "sunday");
+		assertThat(trieDataStore.suggest("sun")).containsExactlyInAnyOrderElementsOf(words);
+	}
+
+	@Test
+	void parallelLoadMatchesSequentialInserts() {
+		List<String> words = randomWords(20_000);
+		for (TrieDataStore.Storage storage : TrieDataStore.Storage.values()) {
+			trieDataStore.setStorage(storage);
+			trieDataStore.reset();
+			for (String word : words)
+				trieDataStore.insertWord(word, 0);
+			List<String> prefixes = new ArrayList<>(trieDataStore.getAllTriePrefixes());
+			Map<String, List<String>> sequential = new LinkedHashMap<>();
+			for (String prefix : prefixes)
+				sequential.put(prefix, trieDataStore.suggest(prefix));
+			int nodes = trieDataStore.getTrieSize();
+
+			trieDataStore.reset();
+			trieDataStore.TrieLoadData(words);
+			assertThat(trieDataStore.getTrieSize()).as(storage.name()).isEqualTo(nodes);
+			assertThat(trieDataStore.getAllTriePrefixes()).containsExactlyInAnyOrderElementsOf(prefixes);
+			for (String prefix : prefixes)
+				assertThat(trieDataStore.suggest(prefix)).as(storage + " " + prefix).containsExactlyInAnyOrderElementsOf(sequential.get(prefix));
+			trieDataStore.insertWord("zzz-after-merge", 1);
+			assertThat(trieDataStore.suggest("zzz-a")).containsExactly("zzz-after-merge");
+		}
+	}
+
+	@Test
+	void exportTopKMatchesSuggestForEveryPrefix() {
+		List<String> words = randomWords(5_000);
+		for (TrieDataStore.Storage storage : TrieDataStore.Storage.values()) {
+			for (int rankedTopK : new int[]{0, 2}) {
+				trieDataStore.setStorage(storage);
+				trieDataStore.setRankedTopK(rankedTopK);
+				trieDataStore.reset();
+				for (int i = 0; i < words.size(); i++)
+					trieDataStore.insertWord(words.get(i), i + 1);  // distinct scores, so the top k is unambiguous
+
+				Map<String, LinkedHashMap<String, Long>> exported = new ConcurrentHashMap<>();
+				trieDataStore.exportTopK(2, (prefix, topK) -> assertThat(exported.put(prefix, topK)).isNull());
+				assertThat(exported.keySet()).containsExactlyInAnyOrderElementsOf(trieDataStore.getAllTriePrefixes());
+				exported.forEach((prefix, topK) -> assertThat(topK).as(storage + " " + rankedTopK + " " + prefix)
+						.containsExactlyEntriesOf(trieDataStore.suggestWithScores(prefix, 2)));
+			}
+		}
+	}
+
+	@Test
+	void changedPrefixesAreTheOnesWhoseTopKChanged() {
+		trieDataStore.insertWord("car", 5);
+		trieDataStore.insertWord("cat", 3);
+		trieDataStore.clearChanges();
+
+		trieDataStore.insertWord("cab", 1);     // c and ca keep car and cat
+		assertThat(trieDataStore.getChangedPrefixes()).containsOnlyKeys('c');
+		assertThat(trieDataStore.getChangedPrefixes().get('c')).containsExactly("cab");
+
+		trieDataStore.increaseScore("cab", 9);  // now the best word of every prefix
+		assertThat(trieDataStore.getChangedPrefixes().get('c')).containsExactlyInAnyOrder("c", "ca", "cab");
+
+		trieDataStore.clearChanges();
+		assertThat(trieDataStore.increaseScore("cow", 1)).isFalse();
+		assertThat(trieDataStore.getChangedPrefixes()).isEmpty();
+	}
+
+	@Test
+	void changedPrefixesCoverEveryChangedTopK() {
+		List<String> words = randomWords(2_000);
+		for (int i = 0; i < words.size(); i++)
+			trieDataStore.insertWord(words.get(i), i % 50);
+		trieDataStore.clearChanges();
+
+		Random random = new Random(11);
+		Set<String> changed = new LinkedHashSet<>();
+		for (int i = 0; i < 200; i++) {
+			String word = words.get(random.nextInt(words.size()));
+			Map<String, LinkedHashMap<String, Long>> before = new LinkedHashMap<>();
+			for (int length = 1; length <= word.length(); length++)
+				before.put(word.substring(0, length), trieDataStore.suggestWithScores(word.substring(0, length), 2));
+			trieDataStore.increaseScore(word, random.nextInt(20));
+			before.forEach((prefix, topK) -> {
+				if (!trieDataStore.suggestWithScores(prefix, 2).equals(topK))
+					changed.add(prefix);
+			});
+		}
+		Set<String> tracked = new LinkedHashSet<>();
+		trieDataStore.getChangedPrefixes().values().forEach(tracked::addAll);
+		assertThat(tracked).containsAll(changed).hasSizeLessThan(trieDataStore.getAllTriePrefixes().size());
+	}
+
+	private static List<String> randomWords(int count) {
+		Random random = new Random(7);
+		Set<String> words = new LinkedHashSet<>();
+		while (words.size() < count) {
+			char[] word = new char[1 + random.nextInt(8)];
+			for (int j = 0; j < word.length; j++)
+				word[j] = (char) ('a' + random.nextInt(6));
+			words.add(new String(word));
+		}
+		return new ArrayList<>(words);
+	}
+}
@@ -0,0 +1,23 @@
+package com.type.ahead.search.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class VirtualThreadsTests {
+
+	@Test
+	void executorOnlyOnRuntimesWithVirtualThreads() throws Exception {
+		Optional<ExecutorService> executor = VirtualThreads.newThreadPerTaskExecutor();
+		assertThat(executor.isPresent()).isEqualTo(Runtime.version().feature() >= 21);
+		if (executor.isPresent()) {
+			Future<String> threadName = executor.get().submit(() -> Thread.currentThread().toString());
+			assertThat(threadName.get()).startsWith("VirtualThread");
+			executor.get().shutdown();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.type.ahead.search.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class WordScoreFileReaderTests {
+
+	@Test
+	void readsWordsAndScoresAcrossBufferBoundaries(@TempDir Path directory) throws IOException {
+		Path file = directory.resolve("words.tsv");
+		Files.write(file, ("# comment\n" +
+				"apple\t42\n" +
+				"banana\r\n" +
+				"\n" +
+				"cherry\tnot-a-score\n" +
+				"crème brûlée\t7\r\n" +
+				"durian\t\n" +
+				"elderberry\t9000000000").getBytes(StandardCharsets.UTF_8));
+
+		List<String> words = new ArrayList<>();
+		List<Long> scores = new ArrayList<>();
+		try (WordScoreFileReader reader = new WordScoreFileReader(file, 5)) {   // tiny buffer splits every line
+			WordScoreFileReader.Chunk chunk;
+			while ((chunk = reader.nextChunk(2)) != null) {
+				assertThat(chunk.size).isBetween(1, 2);
+				for (int i = 0; i < chunk.size; i++) {
+					words.add(chunk.words[i]);
+					scores.add(chunk.scores[i]);
+				}
+			}
+			assertThat(reader.getSkippedLines()).isEqualTo(2);
+			assertThat(reader.getBytesRead()).isEqualTo(Files.size(file));
+		}
+		assertThat(words).containsExactly("apple", "banana", "crème brûlée", "elderberry");
+		assertThat(scores).containsExactly(42L, 0L, 7L, 9_000_000_000L);
+	}
+
+	@Test
+	void readsLargeFileInFullChunks(@TempDir Path directory) throws IOException {
+		Path file = directory.resolve("words.tsv");
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 100_000; i++)
+			content.append("word").append(i).append('\t').append(i).append('\n');
+		Files.write(file, content.toString().getBytes(StandardCharsets.UTF_8));
+
+		long words = 0;
+		long scoreSum = 0;
+		int chunks = 0;
+		try (WordScoreFileReader reader = new WordScoreFileReader(file, 64 * 1024)) {
+			WordScoreFileReader.Chunk chunk;
+			while ((chunk = reader.nextChunk(10_000)) != null) {
+				chunks++;
+				words += chunk.size;
+				for (int i = 0; i < chunk.size; i++)
+					scoreSum += chunk.scores[i];
+			}
+		}
+		assertThat(chunks).isEqualTo(10);
+		assertThat(words).isEqualTo(100_000);
+		assertThat(scoreSum).isEqualTo(100_000L * 99_999 / 2);
+	}
+}